@@ -0,0 +1,106 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.ErrorHandler;
+import org.apache.mina.common.ByteBuffer;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Sets up the sessions the benchmarks measure<br />
+ * Each session has registered with a server that isn't there and joined a channel of MEMBERS users, and the lines it sends go
+ * nowhere. The sessions have no listeners unless a benchmark registers some, so the benchmarks measure the library rather than
+ * the events it fires
+ *
+ * @author newbiehacker
+ */
+final class BenchmarkSessions {
+    static final String CHANNEL = "#bench";
+    static final int MEMBERS = 500;
+
+    private BenchmarkSessions() {}
+
+    /**
+     * Creates a connection manager which prints the errors of its sessions, as a benchmark which goes wrong should say so
+     */
+    static ConnectionManager newManager() {
+        return printErrors(new ConnectionManager());
+    }
+
+    /**
+     * Creates a connection manager with the specified number of event workers (0 for a thread for each busy listener), which
+     * prints the errors of its sessions
+     */
+    static ConnectionManager newManager(int workerThreads) {
+        return printErrors(new ConnectionManager(4096, workerThreads));
+    }
+
+    /**
+     * Creates a connection manager which delivers events on the specified executor, and prints the errors of its sessions
+     */
+    static ConnectionManager newManager(ExecutorService executor) {
+        return printErrors(new ConnectionManager(4096, executor, DeliveryOrder.PER_LISTENER));
+    }
+
+    private static ConnectionManager printErrors(ConnectionManager cm) {
+        cm.registerErrorHandler(new ErrorHandler() {
+            public void onError(Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        return cm;
+    }
+
+    /**
+     * Creates a session which has registered and joined a channel of MEMBERS users, with the lines it sends going nowhere
+     */
+    static Session newSession(ConnectionManager parent) throws Exception {
+        Session s = new Session(parent, "bench.test", 6667, "bot", "bot", "Benchmark");
+        s.setFloodLimits(0, 1, 0, 0);
+        s.openReplay();
+        feed(s, welcome());
+        return s;
+    }
+
+    /**
+     * Returns the lines a server sends when we register and join CHANNEL
+     */
+    static String welcome() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(":bench.test 001 bot :Welcome to the benchmark\r\n");
+        sb.append(":bench.test 005 bot PREFIX=(ov)@+ CHANTYPES=#& CHANMODES=beI,k,l,imnt CASEMAPPING=rfc1459 :are supported\r\n");
+        sb.append(":bench.test 376 bot :End of /MOTD command.\r\n");
+        sb.append(":bot!bot@bench.test JOIN " + CHANNEL + "\r\n");
+        sb.append(":bench.test 353 bot = " + CHANNEL + " :@bot");
+        for (int i = 0; i < MEMBERS; i++) {
+            // Split the names over several replies as a server would, as one line of them all is longer than we accept
+            if (i > 0 && i % 100 == 0)
+                sb.append("\r\n:bench.test 353 bot = " + CHANNEL + " :");
+            sb.append(i % 10 == 0 ? " @" : " ").append(member(i).substring(1));
+        }
+        sb.append("\r\n:bench.test 366 bot " + CHANNEL + " :End of /NAMES list.\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the prefix of one of the members of CHANNEL
+     */
+    static String member(int i) {
+        i %= MEMBERS;
+        return ":m" + i + "!u" + i + "@h" + i % 50 + ".bench";
+    }
+
+    static void feed(Session s, String lines) throws Exception {
+        feed(s, lines.getBytes("UTF-8"));
+    }
+
+    static void feed(Session s, byte[] lines) throws Exception {
+        s.messageReceived(null, ByteBuffer.wrap(lines, 0, lines.length));
+    }
+
+    static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package net.newbiehacker.commodorej;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the results of a benchmark run with a baseline, so that a change which is meant to make the library faster can be
+ * checked, and one which makes it slower can fail a build<br />
+ * Both files are the CSV written by JMH's -rf csv option. Each benchmark, along with its parameters, is printed with its score
+ * in the baseline and now, and the exit status is 1 if any has become slower by more than the threshold (10% by default).
+ * Benchmarks are taken to report time per operation, so a higher score is slower.<br />
+ * Usage: CompareBaseline baseline.csv results.csv [percent]
+ *
+ * @author newbiehacker
+ */
+public final class CompareBaseline {
+    private CompareBaseline() {}
+
+    /**
+     * Application entry point
+     *
+     * @param args the arguments to send to this program
+     * @throws IOException if either file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3)
+            throw new IllegalArgumentException("Usage: CompareBaseline baseline.csv results.csv [percent]");
+        Map<String, double[]> baseline = read(new File(args[0])), results = read(new File(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        boolean ok = true;
+        for (Map.Entry<String, double[]> e : results.entrySet()) {
+            double[] was = baseline.get(e.getKey()), now = e.getValue();
+            if (was == null) {
+                System.out.printf("%-60s %12s -> %12.1f%n", e.getKey(), "new", now[0]);
+                continue;
+            }
+            double change = (now[0] - was[0]) * 100 / was[0];
+            boolean slower = change > threshold;
+            ok &= !slower;
+            System.out.printf("%-60s %12.1f -> %12.1f %+7.1f%%%s%n", e.getKey(), was[0], now[0], change, slower ? "  SLOWER" : "");
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Reads the score and error of each benchmark in a JMH CSV file, by the benchmark's name and parameters
+     */
+    static Map<String, double[]> read(File f) throws IOException {
+        Map<String, double[]> m = new LinkedHashMap<String, double[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line == null)
+                return m;
+            List<String> header = split(line);
+            int name = header.indexOf("Benchmark"), score = header.indexOf("Score"), error = header.indexOf("Score Error (99.9%)");
+            if (name == -1 || score == -1)
+                throw new IOException(f + " is not a JMH CSV file");
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                List<String> row = split(line);
+                // Only the class and method of the benchmark, as they're all in our package
+                String benchmark = row.get(name);
+                int dot = benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1);
+                StringBuilder key = new StringBuilder(benchmark.substring(dot + 1));
+                for (int i = 0; i < header.size() && i < row.size(); i++)
+                    if (header.get(i).startsWith("Param: ") && row.get(i).length() > 0)
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+                double err = error == -1 || row.get(error).length() == 0 ? 0 : parse(row.get(error));
+                m.put(key.toString(), new double[]{parse(row.get(score)), err});
+            }
+        } finally {
+            in.close();
+        }
+        return m;
+    }
+
+    private static double parse(String s) {
+        // JMH writes the scores in the default locale, which may use a comma for the decimal point
+        return s.equalsIgnoreCase("NaN") ? Double.NaN : Double.parseDouble(s.replace(',', '.'));
+    }
+
+    /**
+     * Splits a line of CSV into its fields, which may be quoted
+     */
+    private static List<String> split(String line) {
+        List<String> l = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                l.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        l.add(sb.toString());
+        return l;
+    }
+}
@@ -0,0 +1,105 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCEventListener;
+import net.newbiehacker.commodorej.event.IRCMessageEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures how long events take to reach a number of listeners, from being fired until they have all been delivered<br />
+ * The listeners either all want every event, or are subscribed to a channel each with only one of them getting the messages.
+ * They may block for a while on each event, as a listener waiting on I/O would, and are run either by the manager's pool of worker
+ * threads, by a thread for each busy listener, or by a virtual thread for each busy listener. Virtual threads need Java 21, so on
+ * an older JVM the virtual runs fail in setup and are skipped. Each message fired is an operation
+ *
+ * @author newbiehacker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+    private static final int EVENTS = 1000;
+
+    @Param({"1", "4", "16"})
+    public int listeners;
+
+    @Param({"false", "true"})
+    public boolean byChannel;
+
+    /**
+     * What delivers the events: the manager's pool of a worker for each processor, a platform thread for each busy listener, or a
+     * virtual thread for each busy listener
+     */
+    @Param({"workers", "threads", "virtual"})
+    public String executor;
+
+    /**
+     * How long each listener blocks for on every event, in microseconds
+     */
+    @Param({"0", "50"})
+    public int blockMicros;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private ConnectionManager manager;
+    private ExecutorService virtual;
+    private IRCEvent[] events;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (executor.equals("virtual")) {
+            // Throws on a JVM without virtual threads, so that JMH skips these runs
+            virtual = ConnectionManager.newVirtualThreadExecutor();
+            manager = newManager(virtual);
+        } else if (executor.equals("threads")) {
+            manager = newManager(0);
+        } else {
+            manager = newManager();
+        }
+        final long block = TimeUnit.MICROSECONDS.toNanos(blockMicros);
+        IRCEventListener counter = new IRCEventListener() {
+            public void onIRCEvent(IRCEvent e) {
+                if (block > 0)
+                    LockSupport.parkNanos(block);
+                delivered.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < listeners; i++) {
+            if (byChannel)
+                manager.subscribe(counter, i == 0 ? CHANNEL : "#other" + i);
+            else
+                manager.registerListener(counter);
+        }
+        Session s = newSession(manager);
+        Channel chan = s.getChannel(CHANNEL);
+        events = new IRCEvent[EVENTS];
+        for (int i = 0; i < EVENTS; i++)
+            events[i] = new IRCMessageEvent(s, s.findUser("m" + i % MEMBERS), chan, "hello there, this is message number " + i);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.stop();
+        if (virtual != null)
+            virtual.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void fanout() {
+        long target = delivered.get() + (long) EVENTS * (byChannel ? 1 : listeners);
+        for (IRCEvent e : events)
+            manager.fireEvent(e);
+        while (delivered.get() < target)
+            Thread.yield();
+    }
+}
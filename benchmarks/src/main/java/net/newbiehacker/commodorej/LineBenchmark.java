@@ -0,0 +1,110 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures how long a session takes to read, parse and handle lines of each type, as they would be read from the server<br />
+ * Each operation feeds the session the next of a cycle of lines. The lines which change the channel come in pairs that put it
+ * back as it was (a join and a part, a nick change and back), so every cycle does the same work
+ *
+ * @author newbiehacker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineBenchmark {
+    @Param({"privmsg", "notice", "join+part", "join+quit", "nick", "mode", "topic", "names", "who", "ping", "mixed"})
+    public String kind;
+
+    private ConnectionManager parent;
+    private Session session;
+    private byte[][] lines;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        session = newSession(parent);
+        int count = kind.equals("names") ? MEMBERS / 50 + 1 : 1000;
+        lines = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            append(sb, i);
+            lines[i] = sb.append("\r\n").toString().getBytes("UTF-8");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+    }
+
+    @Benchmark
+    public void line() throws Exception {
+        feed(session, lines[next]);
+        if (++next == lines.length)
+            next = 0;
+    }
+
+    private void append(StringBuilder sb, int i) {
+        if (kind.equals("privmsg")) {
+            sb.append(member(i)).append(" PRIVMSG " + CHANNEL + " :hello there, this is message number ").append(i);
+        } else if (kind.equals("notice")) {
+            sb.append(member(i)).append(" NOTICE bot :notice number ").append(i);
+        } else if (kind.equals("join+part")) {
+            sb.append(":x").append(i).append("!u@guest.bench JOIN " + CHANNEL + "\r\n");
+            sb.append(":x").append(i).append("!u@guest.bench PART " + CHANNEL + " :bye");
+        } else if (kind.equals("join+quit")) {
+            sb.append(":x").append(i).append("!u@guest.bench JOIN " + CHANNEL + "\r\n");
+            sb.append(":x").append(i).append("!u@guest.bench QUIT :Client exited");
+        } else if (kind.equals("nick")) {
+            int m = i % MEMBERS;
+            sb.append(member(m)).append(" NICK n").append(m).append("\r\n");
+            sb.append(":n").append(m).append("!u").append(m).append("@h").append(m % 50).append(".bench NICK m").append(m);
+        } else if (kind.equals("mode")) {
+            sb.append(member(0)).append(" MODE " + CHANNEL + " +o m").append(i % MEMBERS).append("\r\n");
+            sb.append(member(0)).append(" MODE " + CHANNEL + " -o m").append(i % MEMBERS);
+        } else if (kind.equals("topic")) {
+            sb.append(member(i)).append(" TOPIC " + CHANNEL + " :topic number ").append(i);
+        } else if (kind.equals("names")) {
+            if (i == MEMBERS / 50) {
+                sb.append(":bench.test 366 bot " + CHANNEL + " :End of /NAMES list.");
+                return;
+            }
+            sb.append(":bench.test 353 bot = " + CHANNEL + " :").append(i == 0 ? "@bot" : "");
+            for (int j = i * 50; j < i * 50 + 50; j++)
+                sb.append(j % 10 == 0 ? " @m" : " m").append(j);
+        } else if (kind.equals("who")) {
+            int m = i % MEMBERS;
+            sb.append(":bench.test 352 bot " + CHANNEL + " u").append(m).append(" h").append(m % 50)
+                    .append(".bench bench.test m").append(m).append(" H :0 Benchmark User");
+        } else if (kind.equals("ping")) {
+            sb.append("PING :bench.test");
+        } else if (kind.equals("mixed")) {
+            switch (i % 10) {
+                case 0:
+                    sb.append(":x").append(i).append("!u@guest.bench JOIN " + CHANNEL + "\r\n");
+                    sb.append(":x").append(i).append("!u@guest.bench PART " + CHANNEL);
+                    break;
+                case 1:
+                    sb.append(member(i)).append(" MODE " + CHANNEL + " +v m").append(i % MEMBERS).append("\r\n");
+                    sb.append(member(i)).append(" MODE " + CHANNEL + " -v m").append(i % MEMBERS);
+                    break;
+                case 2:
+                    sb.append("PING :bench.test");
+                    break;
+                default:
+                    sb.append(member(i)).append(" PRIVMSG " + CHANNEL + " :hello there, this is message number ").append(i);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown kind of line " + kind);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures how long it takes to decide whether names are channels and to find the nodes they refer to, which is done for the
+ * target of every message<br />
+ * Each name checked and each node found is an operation, as is each user or channel found by findLowerCase and findMixedCase
+ *
+ * @author newbiehacker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    private static final String[] NAMES = {CHANNEL, "#BENCH", "#other", "&local", "m1", "M[2]", "m499", "nobody", "bench.test", ""};
+    // The same users and channel, as they're found in lower case and as they're found in mixed case without folding a new String
+    private static final String[] LOWER = {CHANNEL, "m1", "m2", "m250", "m499", "nobody"};
+    private static final String[] MIXED = {"#Bench", "M1", "M2", "M250", "M499", "Nobody"};
+
+    private ConnectionManager parent;
+    private Session session;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        session = newSession(parent);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(20)
+    public int lookup() {
+        int n = 0;
+        for (String name : NAMES) {
+            if (Misc.isChannel(session, name))
+                n++;
+            if (Misc.getNode(session, name).getType() != Node.Type.MISC)
+                n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public int findLowerCase() {
+        return find(LOWER);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public int findMixedCase() {
+        return find(MIXED);
+    }
+
+    private int find(String[] names) {
+        int n = 0;
+        if (session.getChannel(names[0]) != null)
+            n++;
+        for (int i = 1; i < names.length; i++)
+            if (session.findUser(names[i]) != null)
+                n++;
+        return n;
+    }
+}
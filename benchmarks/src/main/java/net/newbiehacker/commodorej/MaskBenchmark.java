@@ -0,0 +1,165 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures matching users against a long ban list, through the indexes MaskList keeps and by matching every mask in turn as was
+ * done before it kept them<br />
+ * The ban list holds a mix of exact hosts, domains, address prefixes, nicks and masks only a full scan can match, and a short
+ * except list lets a few of the banned users in. Each user checked is an operation
+ *
+ * @author newbiehacker
+ * @see MaskList
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskBenchmark {
+    private static final int USERS = 16;
+
+    @Param("10000")
+    public int masks;
+
+    private ConnectionManager parent;
+    private Channel channel;
+    private User[] users;
+    private String[] hostmasks;
+    private String[] bans, excepts;
+    private CaseMapping mapping;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        Session session = newSession(parent);
+        mapping = session.getCaseMapping();
+        channel = session.getChannel(CHANNEL);
+        List<String> b = new ArrayList<String>(masks);
+        for (int i = 0; i < masks; i++) {
+            switch (i % 10) {
+                case 0:
+                case 1:
+                case 2:
+                case 3:
+                    b.add("*!*@Host" + i + ".Example.com");
+                    break;
+                case 4:
+                case 5:
+                    b.add("*!*@*.isp" + i + ".example.net");
+                    break;
+                case 6:
+                case 7:
+                    b.add("*!*@10." + i / 256 % 256 + "." + i % 256 + ".*");
+                    break;
+                case 8:
+                    b.add("Nick" + i + "!*@*");
+                    break;
+                default:
+                    // The few that have to be matched against every hostmask
+                    b.add(i % 100 == 9 ? "*spam" + i + "*!*@*" : "*!ident" + i + "@*");
+            }
+        }
+        List<String> e = new ArrayList<String>();
+        for (int i = 0; i < 100; i++)
+            e.add("*!*@host" + i * 10 + ".example.com");
+        StringBuilder sb = new StringBuilder();
+        for (String mask : b)
+            sb.append(":bench.test 367 bot " + CHANNEL + " ").append(mask).append(" op 1300000000\r\n");
+        for (String mask : e)
+            sb.append(":bench.test 348 bot " + CHANNEL + " ").append(mask).append(" op 1300000000\r\n");
+        // Users caught by each kind of mask, one let in by an except, and ones no mask matches
+        String[] prefixes = {
+                ":a!a@host40.example.com", ":b!b@host10.example.com", ":c!c@dsl.isp14.example.net", ":d!d@10.0.16.5",
+                ":nick18!n@somewhere.example.org", ":e!ident19@x.example.org", ":xspam109y!s@x.example.org", ":f!f@host4.example.com",
+                ":g!g@nowhere.example.org", ":h!h@10.200.1.1", ":i!i@dsl.isp3.example.net", ":j!j@user/j",
+                ":k!k@2001:db8::1", ":l!l@host1.example.com.evil", ":nick!n@example.com", ":m!m@h1.bench"};
+        users = new User[USERS];
+        hostmasks = new String[USERS];
+        for (String p : prefixes)
+            sb.append(p).append(" PRIVMSG " + CHANNEL + " :hi\r\n");
+        feed(session, sb.toString());
+        for (int i = 0; i < USERS; i++) {
+            String nick = prefixes[i].substring(1, prefixes[i].indexOf('!'));
+            users[i] = session.getUser(nick);
+            hostmasks[i] = prefixes[i].substring(1);
+        }
+        if (channel.getChannelList('b').size() != masks)
+            throw new IllegalStateException(channel.getChannelList('b').size() + " bans, not " + masks);
+        bans = fold(b);
+        excepts = fold(e);
+        // The indexes are only worth measuring if they find what the scan does
+        if (isBanned() != isBannedLinear() || getMatchingEntries() != getMatchingEntriesLinear())
+            throw new IllegalStateException("The indexed and linear matches differ");
+    }
+
+    private String[] fold(List<String> masks) {
+        String[] a = new String[masks.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = mapping.fold(masks.get(i));
+        return a;
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public int isBanned() {
+        int n = 0;
+        for (User u : users)
+            if (channel.isBanned(u))
+                n++;
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public int getMatchingEntries() {
+        int n = 0;
+        for (String h : hostmasks)
+            n += channel.getMatchingEntries('b', h).size();
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public int isBannedLinear() {
+        int n = 0;
+        for (String h : hostmasks) {
+            String s = mapping.fold(h);
+            if (first(bans, s) != null && first(excepts, s) == null)
+                n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public int getMatchingEntriesLinear() {
+        int n = 0;
+        for (String h : hostmasks) {
+            String s = mapping.fold(h);
+            for (String mask : bans)
+                if (MaskList.matches(mask, s))
+                    n++;
+        }
+        return n;
+    }
+
+    private static String first(String[] masks, String s) {
+        for (String mask : masks)
+            if (MaskList.matches(mask, s))
+                return mask;
+        return null;
+    }
+}
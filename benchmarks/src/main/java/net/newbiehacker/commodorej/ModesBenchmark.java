@@ -0,0 +1,75 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures how long a long mode string takes to apply to a channel<br />
+ * Each invocation applies the modes and then takes them away again, which are an operation each
+ *
+ * @author newbiehacker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModesBenchmark {
+    /**
+     * The modes in the string, which is made long enough to hold about 30 of them
+     */
+    @Param({"ov", "b", "ovbk"})
+    public String modes;
+
+    private ConnectionManager parent;
+    private Session session;
+    private Channel channel;
+    private Node sender;
+    private String[] add, remove;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        session = newSession(parent);
+        channel = session.getChannel(CHANNEL);
+        sender = session.findUser("m0");
+        StringBuilder flags = new StringBuilder();
+        List<String> params = new ArrayList<String>();
+        for (int i = 0; i < 30 / modes.length(); i++) {
+            for (char c : modes.toCharArray()) {
+                flags.append(c);
+                if (c == 'b')
+                    params.add("*!*@banned" + i + ".example.com");
+                else if (c == 'k')
+                    params.add("key" + i);
+                else
+                    params.add("m" + (i * 7 % MEMBERS));
+            }
+        }
+        add = new String[params.size() + 1];
+        remove = new String[params.size() + 1];
+        add[0] = "+" + flags;
+        remove[0] = "-" + flags;
+        for (int i = 0; i < params.size(); i++)
+            add[i + 1] = remove[i + 1] = params.get(i);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public Channel modes() {
+        Misc.handleModes(session, channel, sender, add);
+        Misc.handleModes(session, channel, sender, remove);
+        return channel;
+    }
+}
@@ -0,0 +1,70 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures how long a recording made by a TrafficRecorder takes to play back into a new session<br />
+ * A recording of real traffic can be given with -p recording=file; otherwise a recording of the lines of the other benchmarks is
+ * made to play back. Each invocation plays back the whole recording
+ *
+ * @author newbiehacker
+ * @see TrafficRecorder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+    @Param("")
+    public String recording;
+
+    private ConnectionManager parent;
+    private File file;
+    private boolean made;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        if (recording.length() > 0) {
+            file = new File(recording);
+            return;
+        }
+        file = File.createTempFile("commodorej", ".rec");
+        made = true;
+        Session s = new Session(parent, "bench.test", 6667, "bot", "bot", "Benchmark");
+        s.setFloodLimits(0, 1, 0, 0);
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        s.setRecorder(recorder);
+        s.openReplay();
+        StringBuilder sb = new StringBuilder(welcome());
+        for (int i = 0; i < 10000; i++) {
+            if (i % 10 == 0)
+                sb.append(":x").append(i).append("!u@guest.bench JOIN " + CHANNEL + "\r\n:x").append(i).append("!u@guest.bench PART " + CHANNEL + "\r\n");
+            else
+                sb.append(member(i)).append(" PRIVMSG " + CHANNEL + " :hello there, this is message number ").append(i).append("\r\n");
+        }
+        feed(s, sb.toString());
+        recorder.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+        if (made)
+            file.delete();
+    }
+
+    @Benchmark
+    public Session replay() throws Exception {
+        TrafficReplay replay = new TrafficReplay(parent, file);
+        replay.run();
+        return replay.getSession();
+    }
+}
@@ -0,0 +1,51 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures how long a message takes to be split into lines and queued, with nowhere to write them to
+ *
+ * @author newbiehacker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+    @Param({"short", "split", "split-multibyte"})
+    public String kind;
+
+    private ConnectionManager parent;
+    private Session session;
+    private String message;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        session = newSession(parent);
+        if (kind.equals("short"))
+            message = repeat("hello there ", 4);
+        else if (kind.equals("split"))
+            message = repeat("all work and no play makes jack a dull boy ", 50);
+        else if (kind.equals("split-multibyte"))
+            message = repeat("héllo wörld 日本語 ", 100);
+        else
+            throw new IllegalArgumentException("Unknown kind of message " + kind);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+    }
+
+    @Benchmark
+    public void send() {
+        session.sendMessage(CHANNEL, message);
+    }
+}
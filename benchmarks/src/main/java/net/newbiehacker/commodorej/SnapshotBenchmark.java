@@ -0,0 +1,89 @@
+package net.newbiehacker.commodorej;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static net.newbiehacker.commodorej.BenchmarkSessions.*;
+
+/**
+ * Measures writing a session's state to a snapshot, reading it back, and rejoining its channels from it<br />
+ * The session knows of USERS users, spread over CHANNELS channels with a host for every hundred of them
+ *
+ * @author newbiehacker
+ * @see SessionSnapshot
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+    static final int USERS = 100000;
+    static final int CHANNELS = 20;
+
+    private ConnectionManager parent;
+    private Session session;
+    private File file;
+    private String rejoin;
+
+    @Setup
+    public void setUp() throws Exception {
+        parent = newManager();
+        session = newSession(parent);
+        int perChannel = USERS / CHANNELS;
+        StringBuilder sb = new StringBuilder(), joins = new StringBuilder();
+        for (int c = 0; c < CHANNELS; c++) {
+            String chan = "#snap" + c;
+            sb.append(":bot!bot@bench.test JOIN ").append(chan).append("\r\n");
+            joins.append(":bot!bot@bench.test JOIN ").append(chan).append("\r\n");
+            // Bans and topics are part of the snapshot too
+            sb.append(":bench.test 332 bot ").append(chan).append(" :Welcome to channel ").append(c).append("\r\n");
+            sb.append(":bench.test 333 bot ").append(chan).append(" op 1300000000\r\n");
+            for (int b = 0; b < 50; b++)
+                sb.append(":bench.test 367 bot ").append(chan).append(" *!*@ban").append(b).append(".bench op 1300000000\r\n");
+            // A few hundred names to a reply keeps each line within LineFramer.MAX_LINE
+            for (int i = c * perChannel; i < (c + 1) * perChannel; i += 200) {
+                sb.append(":bench.test 353 bot = ").append(chan).append(" :");
+                for (int j = i; j < i + 200; j++)
+                    sb.append(j % 20 == 0 ? "@" : "").append("s").append(j).append("!u").append(j).append("@h").append(j / 100).append(".bench ");
+                sb.append("\r\n");
+            }
+            sb.append(":bench.test 366 bot ").append(chan).append(" :End of /NAMES list.\r\n");
+        }
+        feed(session, sb.toString());
+        rejoin = joins.toString();
+        file = File.createTempFile("commodorej", ".state");
+        session.saveState(file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parent.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public File save() throws Exception {
+        session.saveState(file);
+        return file;
+    }
+
+    @Benchmark
+    public SessionSnapshot read() throws Exception {
+        return SessionSnapshot.read(file);
+    }
+
+    @Benchmark
+    public Session restore() throws Exception {
+        Session s = new Session(parent, "bench.test", 6667, "bot", "bot", "Benchmark");
+        s.setFloodLimits(0, 1, 0, 0);
+        s.restoreState(SessionSnapshot.read(file));
+        s.openReplay();
+        feed(s, welcome());
+        feed(s, rejoin);
+        return s;
+    }
+}
@@ -0,0 +1,146 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * The ways in which a server can compare nicks and channel names without regard to case, as advertised with the CASEMAPPING parameter
+ *
+ * @author newbiehacker
+ */
+public enum CaseMapping {
+    /**
+     * Only the letters A to Z are folded to a to z
+     */
+    ASCII("ascii", 'Z'),
+    /**
+     * The letters A to Z and the characters []\~ are folded to a to z and {}|^ (the default on most servers)
+     */
+    RFC1459("rfc1459", '~'),
+    /**
+     * The letters A to Z and the characters []\ are folded to a to z and {}|
+     */
+    STRICT_RFC1459("strict-rfc1459", ']');
+
+    private final String name;
+    private final char[] table;
+
+    private CaseMapping(String name, char last) {
+        this.name = name;
+        table = new char[128];
+        for (char c = 0; c < 128; c++)
+            table[c] = c;
+        for (char c = 'A'; c <= 'Z'; c++)
+            table[c] = (char) (c + 32);
+        // In rfc1459 []\~ are the upper case forms of {}|^, which sit 32 characters further along
+        if (last >= ']') {
+            table['['] = '{';
+            table['\\'] = '|';
+            table[']'] = '}';
+        }
+        if (last == '~')
+            table['~'] = '^';
+    }
+
+    /**
+     * Returns the case mapping with the specified name, as sent in the CASEMAPPING parameter
+     *
+     * @param name the name of the case mapping (e.g. "rfc1459")
+     * @return the case mapping with the specified name, or RFC1459 if the name is null or not recognised
+     */
+    public static CaseMapping forName(String name) {
+        if (name != null)
+            for (CaseMapping cm : values())
+                if (cm.name.equalsIgnoreCase(name))
+                    return cm;
+        return RFC1459;
+    }
+
+    /**
+     * Returns the name of this case mapping as sent in the CASEMAPPING parameter
+     *
+     * @return the name of this case mapping
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the lower case form of the specified character
+     *
+     * @param c the character we wish to fold
+     * @return the lower case form of the specified character
+     */
+    public char fold(char c) {
+        return c < 128 ? table[c] : c;
+    }
+
+    /**
+     * Returns the lower case form of the specified String<br />
+     * If the String is already in lower case, it is returned as it is without creating a new one
+     *
+     * @param s the String we wish to fold
+     * @return the lower case form of the specified String
+     */
+    public String fold(String s) {
+        final int len = s.length();
+        int i = folded(s);
+        if (i == len)
+            return s;
+        char[] c = new char[len];
+        s.getChars(0, len, c, 0);
+        for (; i < len; i++)
+            c[i] = fold(c[i]);
+        return new String(c);
+    }
+
+    /**
+     * Returns whether the specified String is already in lower case, so that folding it would return it as it is
+     *
+     * @param s the String we wish to check
+     * @return whether the specified String is already in lower case
+     */
+    public boolean isFolded(String s) {
+        return folded(s) == s.length();
+    }
+
+    private int folded(String s) {
+        final int len = s.length();
+        int i = 0;
+        while (i < len && fold(s.charAt(i)) == s.charAt(i))
+            i++;
+        return i;
+    }
+
+    /**
+     * Returns the hash code the lower case form of the specified String would have, without creating it
+     *
+     * @param s the String we wish to hash
+     * @return the hash code of the lower case form of the specified String
+     */
+    public int hashCode(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++)
+            h = 31 * h + fold(s.charAt(i));
+        return h;
+    }
+
+    /**
+     * Returns whether the specified Strings are the same when folded, without creating any Strings
+     *
+     * @param a the first String
+     * @param b the second String
+     * @return whether the specified Strings are the same when folded
+     */
+    public boolean equals(String a, String b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null || a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); i++)
+            if (fold(a.charAt(i)) != fold(b.charAt(i)))
+                return false;
+        return true;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -7,32 +7,44 @@ import java.util.*;
  * @author newbiehacker
  */
 public final class Channel extends Node {
+    final Session session;
     final String name;
-    final List<User> users;
-    final Map<User, Character> userModes;
-    final Map<Character, List<ChannelListEntry>> lists;
+    final Map<User, Integer> users;
+    final Map<Character, MaskList> lists;
     final Map<Character, String> modes;
     String topic, topicSetter;
     Date topicTime;
+    Set<User> named;
 
     Channel(Session t, String name) {
+        this(t, name, null);
+    }
+
+    /**
+     * Creates a channel we have just joined, asking the server for its modes and for any of its lists we weren't given
+     * @param t the session which joined the channel
+     * @param name the name of the channel
+     * @param known the entries of the lists we already know, by mode character, or null if we know none of them
+     */
+    Channel(Session t, String name, Map<Character, List<ChannelListEntry>> known) {
         super(Type.CHANNEL);
+        this.session = t;
         this.name = name;
-        users = new ArrayList<User>();
-        userModes = new HashMap<User, Character>();
-        lists = new HashMap<Character, List<ChannelListEntry>>();
+        users = Collections.synchronizedMap(new LinkedHashMap<User, Integer>());
+        lists = new HashMap<Character, MaskList>();
         modes = new HashMap<Character, String>();
 
-        // Get chanmodes setting as sent from the server
-        String modes = t.getParameter("CHANMODES");
-        if(modes == null)
-            throw new RuntimeException("Server does not support CHANMODES!!");
-        char[] listTypes = modes.split(",")[0].toCharArray();
-
         // Set up our channel lists
-        for(char c: listTypes) {
-            lists.put(c, new ArrayList<ChannelListEntry>());
-            t.sendLine("MODE " + name + " +" + c);
+        for(char c: t.getServerSupport().getListModes()) {
+            MaskList l = new MaskList(t);
+            lists.put(c, l);
+            List<ChannelListEntry> entries = known == null ? null : known.get(c);
+            if (entries == null) {
+                t.sendLine("MODE " + name + " +" + c);
+            } else {
+                for (ChannelListEntry e : entries)
+                    l.add(e);
+            }
         }
         // Request all other modes for this channel
         t.sendLine("MODE " + name);
@@ -52,36 +64,176 @@ public final class Channel extends Node {
      * @return whether the specified user is on this channel
      */
     public boolean hasUser(User user) {
-        return users.contains(user);
+        return users.containsKey(user);
     }
 
     /**
-     * Returns all the users currently on this channel
+     * Returns all the users currently on this channel, in the order they were seen
      * @return all the users currently on this channel
      */
     public List<User> getUsers() {
-        return Collections.unmodifiableList(users);
+        synchronized (users) {
+            return Collections.unmodifiableList(new ArrayList<User>(users.keySet()));
+        }
     }
 
     /**
-     * Returns the usermode of the specified user (e.g. '@' for op) or '\u0000' for a normal user
+     * Returns how many users are currently on this channel
+     * @return how many users are currently on this channel
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Returns the usermode of the specified user (e.g. '@' for op) or '\u0000' for a normal user<br />
+     * If the user has more than one, the highest ranking one is returned
      * @param u the user we wish to get the user mode of
      * @return the usermode of the specified user (e.g. '@' for op) or '\u0000' for a normal user
      */
     public char getUserMode(User u) {
-        Character c = userModes.get(u);
-        if(c == null)
-            return '\u0000';
-        return c;
+        Integer mask = users.get(u);
+        return mask == null ? '\u0000' : session.support.getPrefixes().highest(mask);
+    }
+
+    /**
+     * Returns all the usermodes of the specified user, highest ranking first (e.g. "@+" for an op who also has voice)
+     * @param u the user we wish to get the user modes of
+     * @return all the usermodes of the specified user, or an empty String for a normal user
+     */
+    public String getUserModes(User u) {
+        Integer mask = users.get(u);
+        return mask == null ? "" : session.support.getPrefixes().toPrefixes(mask);
+    }
+
+    /**
+     * Returns whether the specified user has the specified usermode on this channel
+     * @param u the user we wish to check
+     * @param mode the usermode, either as a prefix (e.g. '@') or as a mode (e.g. 'o')
+     * @return whether the specified user has the specified usermode on this channel
+     */
+    public boolean hasUserMode(User u, char mode) {
+        Integer mask = users.get(u);
+        PrefixTable pt = session.support.getPrefixes();
+        return mask != null && (mask & (pt.modeBit(mode) | pt.prefixBit(mode))) != 0;
+    }
+
+    void addUser(User u) {
+        synchronized (users) {
+            if (!users.containsKey(u))
+                users.put(u, 0);
+        }
+        u.channels.add(this);
+    }
+
+    void removeUser(User u) {
+        users.remove(u);
+        u.channels.remove(this);
+    }
+
+    /**
+     * Sets the usermodes of the specified user if they are on this channel, as bits of the session's PrefixTable
+     */
+    void setPrefixes(User u, int mask) {
+        synchronized (users) {
+            if (users.containsKey(u))
+                users.put(u, mask);
+        }
+    }
+
+    /**
+     * Sets the usermodes of the specified user from a WHO or NAMES reply<br />
+     * Unless the reply was complete (multi-prefix), it only holds the user's highest usermode, so the lower ones we knew of are kept
+     */
+    void updatePrefixes(User u, int mask, boolean complete) {
+        synchronized (users) {
+            Integer old = users.get(u);
+            if (old == null)
+                return;
+            if (!complete && mask != 0)
+                mask |= old & ~(((mask & -mask) << 1) - 1);
+            users.put(u, mask);
+        }
+    }
+
+    void addPrefixes(User u, int bits) {
+        synchronized (users) {
+            Integer mask = users.get(u);
+            if (mask != null)
+                users.put(u, mask | bits);
+        }
+    }
+
+    void removePrefixes(User u, int bits) {
+        synchronized (users) {
+            Integer mask = users.get(u);
+            if (mask != null)
+                users.put(u, mask & ~bits);
+        }
+    }
+
+    /**
+     * Forgets everyone on this channel, for when we leave it
+     */
+    void clearUsers() {
+        synchronized (users) {
+            for (User u : users.keySet())
+                u.channels.remove(this);
+            users.clear();
+        }
     }
 
     /**
      * Returns a list of entries for the specified channel list
      * @param list the mode character representing the list (e.g. 'b' for the ban list, 'I' for the invite list, 'e' for the excepts list, etc.)
-     * @return a list of entries for the specified channel list
+     * @return a list of entries for the specified channel list, or null if the server has no such list
      */
     public List<ChannelListEntry> getChannelList(char list) {
-        return lists.get(list);
+        MaskList l = lists.get(list);
+        return l == null ? null : l.getEntries();
+    }
+
+    /**
+     * Asks the server for every list of this channel again (e.g. when they were restored from a snapshot which may be out of date)
+     */
+    public void refreshLists() {
+        for (Map.Entry<Character, MaskList> e : lists.entrySet()) {
+            e.getValue().clear();
+            session.sendLine("MODE " + name + " +" + e.getKey(), SendPriority.BULK);
+        }
+    }
+
+    /**
+     * Returns the entries of the specified channel list which match the specified hostmask
+     * @param list the mode character representing the list (e.g. 'b' for the ban list)
+     * @param hostmask the hostmask we wish to match (e.g. nick!login@host)
+     * @return the entries of the specified channel list which match the specified hostmask, in the order they were added
+     */
+    public List<ChannelListEntry> getMatchingEntries(char list, String hostmask) {
+        MaskList l = lists.get(list);
+        return l == null ? Collections.<ChannelListEntry>emptyList() : l.getMatching(hostmask);
+    }
+
+    /**
+     * Returns whether the specified user is banned from this channel, which they are if they match an entry in the ban list and
+     * no entry in the except list<br />
+     * Only the parts of the user's hostmask we know of can be matched, so entries which need their login or host won't match
+     * until we have seen them
+     * @param u the user we wish to check
+     * @return whether the specified user is banned from this channel
+     */
+    public boolean isBanned(User u) {
+        MaskList bans = lists.get('b');
+        String hostmask = u.nick + '!' + (u.name == null ? "" : u.name) + '@' + (u.host == null ? "" : u.host);
+        if (bans == null || !bans.matches(hostmask))
+            return false;
+        MaskList excepts = lists.get(getExceptsMode());
+        return excepts == null || !excepts.matches(hostmask);
+    }
+
+    private char getExceptsMode() {
+        String e = session.getParameter("EXCEPTS");
+        return e == null || e.length() == 0 ? 'e' : e.charAt(0);
     }
 
     /**
@@ -3,36 +3,245 @@ package net.newbiehacker.commodorej;
 import net.newbiehacker.commodorej.event.ErrorHandler;
 import net.newbiehacker.commodorej.event.IRCEvent;
 import net.newbiehacker.commodorej.event.IRCEventListener;
+import org.apache.mina.common.ThreadModel;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * The ConnectionManager allows creations of sessions to a server and ways to manipulate them.
+ * The ConnectionManager allows creations of sessions to a server and ways to manipulate them.<br />
+ * <br />
+ * All of the sessions of a ConnectionManager share its threads, so the number of threads doesn't grow with the number of sessions:
+ * <ul>
+ * <li>A fixed number of I/O processor threads (see setIoProcessors) read from and write to the sockets. Each session is tied to
+ * one of them, which also reads and handles its lines unless there is a line executor</li>
+ * <li>If a line executor has been set (see setLineExecutor), the I/O processors only split what they read into lines, and the
+ * lines are handled on the line executor instead. A session's lines are still handled one at a time and in order</li>
+ * <li>One timer thread sends the lines held back by the sessions' flood controls and fires netsplits once they are over</li>
+ * <li>The event workers deliver events to our listeners, so a slow listener holds up nothing but its own mailbox. A listener
+ * registered with OverflowPolicy.BLOCK is the exception: when its mailbox is full, the thread handling lines waits for it, which
+ * without a line executor holds up every session on the same I/O processor</li>
+ * </ul>
  *
  * @author newbiehacker
  */
 public final class ConnectionManager {
     final List<ErrorHandler> errHandlers;
     private final List<Session> sessions;
-    private final EventQueue eventQueue;
-    private Thread qThread;
+    private final EventDispatcher eventQueue;
+    private final ScheduledExecutorService timer;
+    private SocketConnector connector;
+    private SocketConnectorConfig connectorConfig;
+    private ExecutorService ioExecutor;
+    private int ioProcessors;
+    private volatile Executor lineExecutor;
 
     /**
-     * Constructs a new ConnectionManager which will have its own event queue and sessions
+     * Constructs a new ConnectionManager which will have its own event queue and sessions<br />
+     * Events are delivered by a worker thread for each processor. The workers are daemon threads, so they don't keep the JVM
+     * running by themselves, but stop() should still be called to close our sessions
      */
     public ConnectionManager() {
+        this(4096, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new ConnectionManager which will have its own event queue and sessions<br />
+     * Each listener has a mailbox of events waiting to be delivered to it, which are drained by a pool of worker threads.
+     * A listener only ever uses one worker at a time, so it always sees events in the order they were fired. The workers are
+     * daemon threads, and are shut down when this ConnectionManager is stopped
+     *
+     * @param mailboxCapacity the number of events which can be waiting for a listener registered without a capacity of its own
+     * @param workerThreads   the number of threads delivering events to our listeners, or 0 to start a thread for each busy listener
+     *                        as needed, with no limit on how many there may be
+     */
+    public ConnectionManager(int mailboxCapacity, int workerThreads) {
+        errHandlers = new ArrayList<ErrorHandler>();
+        sessions = new ArrayList<Session>();
+        eventQueue = new EventDispatcher(this, mailboxCapacity, workerThreads);
+        timer = createTimer();
+        ioProcessors = Runtime.getRuntime().availableProcessors() + 1;
+    }
+
+    /**
+     * Constructs a new ConnectionManager which delivers events to its listeners using the specified executor<br />
+     * Listeners which spend most of their time waiting on I/O can be run on virtual threads by passing the executor returned
+     * from newVirtualThreadExecutor(), along with PER_CHANNEL ordering so that busy channels don't hold each other up.
+     * The executor is not shut down when this ConnectionManager is stopped
+     *
+     * @param mailboxCapacity the number of events which can be waiting for a listener registered without a capacity of its own
+     * @param executor        the executor that will deliver events to our listeners
+     * @param order           which events each listener is guaranteed to see in order
+     * @see #newVirtualThreadExecutor()
+     */
+    public ConnectionManager(int mailboxCapacity, ExecutorService executor, DeliveryOrder order) {
         errHandlers = new ArrayList<ErrorHandler>();
         sessions = new ArrayList<Session>();
-        eventQueue = new EventQueue(this);
+        eventQueue = new EventDispatcher(this, mailboxCapacity, executor, false, order);
+        timer = createTimer();
+        ioProcessors = Runtime.getRuntime().availableProcessors() + 1;
+    }
+
+    private static ScheduledExecutorService createTimer() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CommodoreJ-Timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns the timer our sessions use to send lines held back by their flood controls
+     *
+     * @return the timer shared by our sessions
+     */
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * Returns the connector shared by our sessions, creating it when the first session connects
+     *
+     * @return the connector shared by our sessions
+     */
+    synchronized SocketConnector getConnector() {
+        if (connector == null) {
+            ioExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CommodoreJ-IO-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            connector = new SocketConnector(ioProcessors, ioExecutor);
+            connectorConfig = new SocketConnectorConfig();
+            connectorConfig.setConnectTimeout(5);
+            // MINA would otherwise hand our lines to a thread pool of its own, on top of the I/O processors and our line executor
+            connectorConfig.setThreadModel(ThreadModel.MANUAL);
+        }
+        return connector;
+    }
+
+    synchronized SocketConnectorConfig getConnectorConfig() {
+        return connectorConfig;
+    }
+
+    /**
+     * Returns the number of I/O processor threads our sessions share
+     *
+     * @return the number of I/O processor threads our sessions share
+     */
+    public synchronized int getIoProcessors() {
+        return ioProcessors;
+    }
+
+    /**
+     * Sets the number of I/O processor threads our sessions share (by default one more than the number of processors)<br />
+     * This can only be changed before the first session connects
+     *
+     * @param ioProcessors the number of I/O processor threads we want
+     * @throws IllegalStateException if a session has already connected
+     */
+    public synchronized void setIoProcessors(int ioProcessors) {
+        if (ioProcessors < 1)
+            throw new IllegalArgumentException("There must be at least one I/O processor");
+        if (connector != null)
+            throw new IllegalStateException("The I/O processors have already been started");
+        this.ioProcessors = ioProcessors;
+    }
+
+    /**
+     * Returns the executor our sessions handle their lines on
+     *
+     * @return the executor our sessions handle their lines on, or null if they are handled on the I/O processors
+     */
+    public Executor getLineExecutor() {
+        return lineExecutor;
+    }
+
+    /**
+     * Sets the executor our sessions handle their lines on, so that handling lines can't hold up reading from the sockets<br />
+     * Each session still handles its lines one at a time and in order. Only sessions created after this is set use the executor,
+     * and it is not shut down when this ConnectionManager is stopped
+     *
+     * @param lineExecutor the executor we want our sessions to handle their lines on, or null to handle them on the I/O processors
+     */
+    public void setLineExecutor(Executor lineExecutor) {
+        this.lineExecutor = lineExecutor;
+    }
+
+    /**
+     * Returns an executor which runs each task on a new virtual thread<br />
+     * Virtual threads are only available on Java 21 and later
+     *
+     * @return an executor which runs each task on a new virtual thread
+     * @throws UnsupportedOperationException if this JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not create a virtual thread executor: " + e);
+        }
     }
 
     void fireEvent(IRCEvent e) {
         eventQueue.push(e);
-        if (!eventQueue.running) {
-            qThread = new Thread(eventQueue);
-            qThread.setPriority(1);
-            qThread.start();
-        }
+    }
+
+    /**
+     * Fires an event kept for a batch to the listeners which want it but not the IRCBatchEvent it will be fired in
+     *
+     * @param e the event
+     */
+    void fireEventOutsideBatch(IRCEvent e) {
+        eventQueue.pushOutsideBatch(e);
+    }
+
+    /**
+     * Fires an event without waiting for room in the mailboxes of listeners registered with OverflowPolicy.BLOCK, which get it
+     * over their capacity instead<br />
+     * This is for events fired on the timer, which would otherwise hold up every session's outbound lines behind a slow listener
+     *
+     * @param e the event
+     */
+    void fireEventNow(IRCEvent e) {
+        eventQueue.push(e, false);
+    }
+
+    /**
+     * Lets go of the mailboxes events of the specified session were delivered through in PER_CHANNEL order, once they are empty
+     *
+     * @param s       the session
+     * @param channel the channel we have left, or null if the session has disconnected
+     */
+    void retireLanes(Session s, String channel) {
+        eventQueue.retireLanes(s, channel);
+    }
+
+    /**
+     * Returns whether any of our listeners may want events of the specified type, so that sessions don't have to create events that nobody wants
+     *
+     * @param type the type of event
+     * @return whether any of our listeners may want events of the specified type
+     */
+    boolean isWanted(IRCEvent.Type type) {
+        return eventQueue.isWanted(type);
     }
 
     void fireError(Throwable t) {
@@ -81,6 +290,37 @@ public final class ConnectionManager {
         return s;
     }
 
+    /**
+     * Attempts to connect to the specified server and login with the specified details, starting from the state saved by
+     * Session.saveState so that the channels we rejoin don't have to be asked about all over again<br />
+     * If the file doesn't exist the session starts from nothing, as it would with connect(String, int, String, String, String), and if
+     * it can't be read the error is passed to our error handlers before doing the same
+     *
+     * @param host  the host we wish to connect to
+     * @param port  the port that the irc server is bound to on the host
+     * @param nick  the nickname we want to use
+     * @param login the login we want to use
+     * @param name  the full name we want to use
+     * @param state the file a previous session's state was saved to
+     * @return the newly created Session if we connect successfully
+     * @see Session#saveState(java.io.File)
+     */
+    public Session connect(String host, int port, String nick, String login, String name, File state) {
+        Session s = new Session(this, host.toLowerCase(), port, nick, login, name);
+        if (state != null && state.exists()) {
+            try {
+                s.restoreState(SessionSnapshot.read(state));
+            } catch (IOException e) {
+                fireError(e);
+            }
+        }
+        s.connect();
+        synchronized (sessions) {
+            sessions.add(s);
+        }
+        return s;
+    }
+
     /**
      * Returns the session corresponding to the specified host (if any)
      *
@@ -98,7 +338,8 @@ public final class ConnectionManager {
     }
 
     /**
-     * Registers the specified IRCEventListener to be notified of new events
+     * Registers the specified IRCEventListener to be notified of new events<br />
+     * When the listener falls behind by more events than its mailbox can hold, sessions will wait for it to catch up
      *
      * @param iel the IRCEventListener we wish to be notified of new events
      */
@@ -107,7 +348,79 @@ public final class ConnectionManager {
     }
 
     /**
-     * Unregisters the specified IRCEventListener so it will not be notified of new events
+     * Registers the specified IRCEventListener to be notified of new events, with a mailbox of its own size and overflow policy<br />
+     * This allows a listener which may be slow to fall behind or lose events without holding up the sessions and other listeners
+     *
+     * @param iel      the IRCEventListener we wish to be notified of new events
+     * @param capacity the number of events which can be waiting to be delivered to this listener
+     * @param policy   what to do with new events when the listener's mailbox is full
+     */
+    public void registerListener(IRCEventListener iel, int capacity, OverflowPolicy policy) {
+        eventQueue.addEventListener(iel, capacity, policy);
+    }
+
+    /**
+     * Subscribes the specified IRCEventListener to be notified of new events of the specified types only
+     *
+     * @param iel   the IRCEventListener we wish to be notified of new events
+     * @param types the types of event we wish to be notified of
+     */
+    public void subscribe(IRCEventListener iel, Set<IRCEvent.Type> types) {
+        subscribe(iel, types, null, null);
+    }
+
+    /**
+     * Subscribes the specified IRCEventListener to be notified of new events which happen on the specified channel only
+     *
+     * @param iel     the IRCEventListener we wish to be notified of new events
+     * @param channel the name of the channel we wish to be notified of events on
+     * @see net.newbiehacker.commodorej.event.IRCEvent#getEventChannel()
+     */
+    public void subscribe(IRCEventListener iel, String channel) {
+        subscribe(iel, null, channel, null);
+    }
+
+    /**
+     * Subscribes the specified IRCEventListener to be notified of new events whose sender is accepted by the specified filter only
+     *
+     * @param iel    the IRCEventListener we wish to be notified of new events
+     * @param filter the filter which decides which senders we wish to be notified of events from
+     * @see net.newbiehacker.commodorej.event.IRCEvent#getEventSender()
+     */
+    public void subscribe(IRCEventListener iel, SenderFilter filter) {
+        subscribe(iel, null, null, filter);
+    }
+
+    /**
+     * Subscribes the specified IRCEventListener to be notified of new events which match all of the specified criteria<br />
+     * Listeners are never called for events they have not subscribed to. Subscribing the same listener more than once will
+     * notify it once for each subscription that an event matches
+     *
+     * @param iel     the IRCEventListener we wish to be notified of new events
+     * @param types   the types of event we wish to be notified of, or null for all types
+     * @param channel the name of the channel we wish to be notified of events on, or null for all events
+     * @param filter  the filter which decides which senders we wish to be notified of events from, or null for all events
+     */
+    public void subscribe(IRCEventListener iel, Set<IRCEvent.Type> types, String channel, SenderFilter filter) {
+        eventQueue.addEventListener(iel, types, channel, filter, eventQueue.getDefaultCapacity(), OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Subscribes the specified IRCEventListener to be notified of new events which match all of the specified criteria, with a mailbox of its own size and overflow policy
+     *
+     * @param iel      the IRCEventListener we wish to be notified of new events
+     * @param types    the types of event we wish to be notified of, or null for all types
+     * @param channel  the name of the channel we wish to be notified of events on, or null for all events
+     * @param filter   the filter which decides which senders we wish to be notified of events from, or null for all events
+     * @param capacity the number of events which can be waiting to be delivered to this listener
+     * @param policy   what to do with new events when the listener's mailbox is full
+     */
+    public void subscribe(IRCEventListener iel, Set<IRCEvent.Type> types, String channel, SenderFilter filter, int capacity, OverflowPolicy policy) {
+        eventQueue.addEventListener(iel, types, channel, filter, capacity, policy);
+    }
+
+    /**
+     * Unregisters the specified IRCEventListener so it will not be notified of new events, removing all of its subscriptions
      *
      * @param iel the IRCEventListener we do not wish to be notified of events any more
      */
@@ -138,78 +451,76 @@ public final class ConnectionManager {
     }
 
     /**
-     * Attempts to close down our event queue and close all open sessions
+     * Returns the number of events waiting to be delivered to our listeners
+     *
+     * @return the number of events waiting to be delivered to our listeners
      */
-    public void stop() {
-        synchronized (qThread) {
-            eventQueue.running = false;
-            try {
-                qThread.join();
-            } catch (InterruptedException e) {
-                fireError(e);
-            }
-            for (Session s : sessions) {
-                s.close();
-            }
-            sessions.clear();
-        }
+    public int getPendingEvents() {
+        return eventQueue.getPending();
     }
 
-    private static final class EventQueue implements Runnable {
-        private final ConnectionManager parent;
-        private final Object lock;
-        private final Queue<IRCEvent> queue;
-        private final List<IRCEventListener> listeners;
-        boolean running;
+    /**
+     * Returns the number of events that have been dropped because a listener's mailbox was full
+     *
+     * @return the number of events that have been dropped because a listener's mailbox was full
+     */
+    public long getDroppedEvents() {
+        return eventQueue.getDropped();
+    }
 
-        EventQueue(ConnectionManager parent) {
-            this.parent = parent;
-            queue = new LinkedList<IRCEvent>();
-            listeners = new ArrayList<IRCEventListener>();
-            lock = new Object();
-        }
+    /**
+     * Returns the number of events that have been dropped because the specified listener's mailbox was full
+     *
+     * @param iel the listener we wish to get the number of dropped events for
+     * @return the number of events that have been dropped for the specified listener
+     */
+    public long getDroppedEvents(IRCEventListener iel) {
+        return eventQueue.getDropped(iel);
+    }
 
-        void push(IRCEvent e) {
-            if(e == null)
-                return;
-            synchronized (lock) {
-                queue.add(e);
-                lock.notifyAll();
-            }
-        }
+    /**
+     * Returns the largest number of events that have been waiting for a single listener at once
+     *
+     * @return the largest number of events that have been waiting for a single listener at once
+     */
+    public int getPeakPendingEvents() {
+        return eventQueue.getPeakPending();
+    }
 
-        void addEventListener(IRCEventListener iel) {
-            synchronized (lock) {
-                listeners.add(iel);
-            }
-        }
+    /**
+     * Returns the number of events that have been fired by our sessions
+     *
+     * @return the number of events that have been fired by our sessions
+     */
+    public long getFiredEvents() {
+        return eventQueue.getFired();
+    }
 
-        void removeListener(IRCEventListener iel) {
-            synchronized (lock) {
-                listeners.remove(iel);
-            }
-        }
+    /**
+     * Returns the number of times an event has been delivered to one of our listeners
+     *
+     * @return the number of times an event has been delivered to one of our listeners
+     */
+    public long getDeliveredEvents() {
+        return eventQueue.getDelivered();
+    }
 
-        public void run() {
-            running = true;
-            try {
-                while (running) {
-                    synchronized (lock) {
-                        while (queue.size() > 0) {
-                            for (IRCEventListener iel : listeners)
-                                try {
-                                    iel.onIRCEvent(queue.poll());
-                                } catch (Throwable t) {
-                                    parent.fireError(t);
-                                }
-                        }
-                    }
-                    Thread.sleep(1);
-                }
-            } catch (Throwable t) {
-                parent.fireError(t);
-                run();
+    /**
+     * Attempts to close down our event queue and close all open sessions
+     */
+    public void stop() {
+        eventQueue.stop();
+        synchronized (sessions) {
+            for (Session s : sessions) {
+                s.close();
             }
+            sessions.clear();
+        }
+        timer.shutdown();
+        synchronized (this) {
+            // The I/O processors finish by themselves once their sessions have closed
+            if (ioExecutor != null)
+                ioExecutor.shutdown();
         }
     }
 }
\ No newline at end of file
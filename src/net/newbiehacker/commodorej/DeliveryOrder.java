@@ -0,0 +1,19 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * Specifies which events a listener is guaranteed to see in the order they were fired
+ *
+ * @author newbiehacker
+ * @see net.newbiehacker.commodorej.ConnectionManager#ConnectionManager(int, java.util.concurrent.ExecutorService, DeliveryOrder)
+ */
+public enum DeliveryOrder {
+    /**
+     * Each listener sees every event in the order it was fired, and is only ever called from one thread at a time
+     */
+    PER_LISTENER,
+    /**
+     * Each listener sees the events of each channel in the order they were fired, but events on different channels may be
+     * delivered concurrently, so the listener must be thread safe. Events which did not happen on a channel are ordered per session
+     */
+    PER_CHANNEL
+}
@@ -0,0 +1,447 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCEventListener;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands events fired by sessions over to our listeners<br />
+ * Every listener has its own bounded Mailbox (or, when delivering in PER_CHANNEL order, one per channel) which is drained on the
+ * dispatcher's executor, so a slow listener only holds up its own events. What happens when a mailbox is full depends on
+ * the OverflowPolicy its listener was registered with.<br />
+ * Listeners may subscribe to only some types of event, the events of one channel or the events of certain senders. A routing
+ * table built whenever the subscriptions change says which listeners want each type of event, so an event is only ever looked at
+ * by the listeners which may want it, and sessions can skip creating events that nobody wants.<br />
+ * The per channel mailboxes of a session are retired once it disconnects, and those of a channel once we have left it, so that
+ * they don't pile up over the life of a long running client.
+ *
+ * @author newbiehacker
+ */
+final class EventDispatcher {
+    private final ConnectionManager parent;
+    private final int defaultCapacity;
+    private final DeliveryOrder order;
+    private final List<Subscriber> subscribers;
+    private volatile Route[] routes;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private volatile boolean running;
+    private final AtomicLong fired, delivered, removedDrops;
+
+    EventDispatcher(ConnectionManager parent, int defaultCapacity, int workerCount) {
+        this(parent, defaultCapacity, createExecutor(workerCount), true, DeliveryOrder.PER_LISTENER);
+    }
+
+    EventDispatcher(ConnectionManager parent, int defaultCapacity, ExecutorService executor, boolean ownExecutor, DeliveryOrder order) {
+        if (defaultCapacity < 1)
+            throw new IllegalArgumentException("A mailbox must be able to hold at least one event");
+        if (executor == null || order == null)
+            throw new IllegalArgumentException("An executor and a delivery order are required");
+        this.parent = parent;
+        this.defaultCapacity = defaultCapacity;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.order = order;
+        subscribers = new CopyOnWriteArrayList<Subscriber>();
+        routes = new Route[IRCEvent.Type.values().length];
+        running = true;
+        fired = new AtomicLong();
+        delivered = new AtomicLong();
+        removedDrops = new AtomicLong();
+    }
+
+    private static ExecutorService createExecutor(int workerCount) {
+        ThreadFactory tf = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CommodoreJ-Events-" + count.getAndIncrement());
+                t.setPriority(1);
+                // Like the timer, the workers shouldn't keep the JVM running after everything else has finished
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // With no limit on the number of workers, each busy listener gets a thread of its own
+        if (workerCount <= 0)
+            return Executors.newCachedThreadPool(tf);
+        return Executors.newFixedThreadPool(workerCount, tf);
+    }
+
+    void push(IRCEvent e) {
+        push(e, true);
+    }
+
+    void push(IRCEvent e, boolean mayWait) {
+        push(e, mayWait, false);
+    }
+
+    /**
+     * Delivers an event kept for a batch to the listeners which want its type but not batches, as they won't see it in the
+     * IRCBatchEvent fired when the batch ends
+     *
+     * @param e the event
+     */
+    void pushOutsideBatch(IRCEvent e) {
+        push(e, true, true);
+    }
+
+    private void push(IRCEvent e, boolean mayWait, boolean outsideBatch) {
+        if (e == null || !running)
+            return;
+        Route r = routes[e.getType().ordinal()];
+        if (outsideBatch && (r == null || !r.outsideBatch))
+            return;
+        fired.incrementAndGet();
+        if (r == null)
+            return;
+        for (Subscriber s : r.all)
+            if (!outsideBatch || !s.takes(IRCEvent.Type.BATCH))
+                s.offer(e, mayWait);
+        if (r.channels.isEmpty())
+            return;
+        Channel c = e.getEventChannel();
+        if (c == null)
+            return;
+        Subscriber[] subs = r.channels.get(FoldedMap.lookupKey(CaseMapping.RFC1459, c.getName()));
+        if (subs != null)
+            for (Subscriber s : subs)
+                if (!outsideBatch || !s.takes(IRCEvent.Type.BATCH))
+                    s.offer(e, mayWait);
+    }
+
+    /**
+     * Retires the per channel mailboxes of the specified session once they have delivered the events waiting in them
+     *
+     * @param s       the session
+     * @param channel the channel whose mailboxes we want to retire, or null to retire all of the session's mailboxes
+     */
+    void retireLanes(Session s, String channel) {
+        if (order != DeliveryOrder.PER_CHANNEL)
+            return;
+        for (Subscriber sub : subscribers)
+            sub.retireLanes(s, channel);
+    }
+
+    /**
+     * Returns whether any listener may want events of the specified type
+     *
+     * @param type the type of event
+     * @return whether any listener may want events of the specified type
+     */
+    boolean isWanted(IRCEvent.Type type) {
+        return routes[type.ordinal()] != null;
+    }
+
+    void addEventListener(IRCEventListener iel) {
+        addEventListener(iel, null, null, null, defaultCapacity, OverflowPolicy.BLOCK);
+    }
+
+    void addEventListener(IRCEventListener iel, int capacity, OverflowPolicy policy) {
+        addEventListener(iel, null, null, null, capacity, policy);
+    }
+
+    synchronized void addEventListener(IRCEventListener iel, Set<IRCEvent.Type> types, String channel, SenderFilter filter, int capacity, OverflowPolicy policy) {
+        if (iel == null)
+            throw new IllegalArgumentException("listener");
+        subscribers.add(new Subscriber(iel, types, channel, filter, capacity, policy));
+        rebuildRoutes();
+    }
+
+    synchronized void removeListener(IRCEventListener iel) {
+        for (Subscriber s : subscribers) {
+            if (s.listener == iel) {
+                subscribers.remove(s);
+                removedDrops.addAndGet(s.close());
+            }
+        }
+        rebuildRoutes();
+    }
+
+    private void rebuildRoutes() {
+        IRCEvent.Type[] types = IRCEvent.Type.values();
+        Route[] n = new Route[types.length];
+        for (IRCEvent.Type t : types) {
+            List<Subscriber> all = new ArrayList<Subscriber>();
+            Map<String, List<Subscriber>> channels = new HashMap<String, List<Subscriber>>();
+            boolean outsideBatch = false;
+            for (Subscriber s : subscribers) {
+                if (!s.takes(t))
+                    continue;
+                if (!s.takes(IRCEvent.Type.BATCH))
+                    outsideBatch = true;
+                if (s.channel == null) {
+                    all.add(s);
+                } else {
+                    List<Subscriber> l = channels.get(s.channel);
+                    if (l == null)
+                        channels.put(s.channel, l = new ArrayList<Subscriber>());
+                    l.add(s);
+                }
+            }
+            if (all.isEmpty() && channels.isEmpty())
+                continue;
+            Map<String, Subscriber[]> cm = new HashMap<String, Subscriber[]>();
+            for (Map.Entry<String, List<Subscriber>> e : channels.entrySet())
+                cm.put(e.getKey(), e.getValue().toArray(new Subscriber[e.getValue().size()]));
+            n[t.ordinal()] = new Route(all.toArray(new Subscriber[all.size()]), cm, outsideBatch);
+        }
+        routes = n;
+    }
+
+    /**
+     * Returns the key we keep channel subscriptions under<br />
+     * Subscriptions aren't tied to a session, so the widest case mapping is used, which is the same as or looser than any server's
+     */
+    private static String foldChannel(String name) {
+        return CaseMapping.RFC1459.fold(name);
+    }
+
+    /**
+     * Schedules the specified mailbox to be drained
+     *
+     * @param mb the mailbox which has events waiting
+     * @return whether the mailbox was scheduled, which it won't be once we have been stopped
+     */
+    boolean schedule(Mailbox mb) {
+        if (!running && !ownExecutor)
+            return false;
+        try {
+            executor.execute(mb);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    void deliver(IRCEventListener iel, IRCEvent e) {
+        try {
+            iel.onIRCEvent(e);
+        } catch (Throwable t) {
+            parent.fireError(t);
+        }
+        delivered.incrementAndGet();
+    }
+
+    /**
+     * Stops accepting events and waits a while for the events which are already waiting to be delivered<br />
+     * An executor which was handed to us is left running for its owner to shut down
+     */
+    void stop() {
+        running = false;
+        if (!ownExecutor)
+            return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getPending() {
+        int n = 0;
+        for (Subscriber s : subscribers)
+            for (Mailbox mb : s.mailboxes())
+                n += mb.size();
+        return n;
+    }
+
+    int getPeakPending() {
+        int n = 0;
+        for (Subscriber s : subscribers)
+            for (Mailbox mb : s.mailboxes())
+                n = Math.max(n, mb.getPeak());
+        return n;
+    }
+
+    /**
+     * Returns the number of mailboxes our listeners have, which in PER_CHANNEL order is one for each channel events came from
+     */
+    int getMailboxCount() {
+        int n = 0;
+        for (Subscriber s : subscribers)
+            for (Mailbox mb : s.mailboxes())
+                n++;
+        return n;
+    }
+
+    int getDefaultCapacity() {
+        return defaultCapacity;
+    }
+
+    long getFired() {
+        return fired.get();
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    long getDropped() {
+        long n = removedDrops.get();
+        for (Subscriber s : subscribers)
+            n += s.getDropped();
+        return n;
+    }
+
+    long getDropped(IRCEventListener iel) {
+        for (Subscriber s : subscribers)
+            if (s.listener == iel)
+                return s.getDropped();
+        return 0;
+    }
+
+    /**
+     * The listeners which want a certain type of event, whatever channel it's on and by channel
+     */
+    private static final class Route {
+        final Subscriber[] all;
+        final Map<String, Subscriber[]> channels;
+        // Whether any of the listeners don't want batches, and so must be given the events of a batch one by one
+        final boolean outsideBatch;
+
+        Route(Subscriber[] all, Map<String, Subscriber[]> channels, boolean outsideBatch) {
+            this.all = all;
+            this.channels = channels;
+            this.outsideBatch = outsideBatch;
+        }
+    }
+
+    /**
+     * A registered listener along with what it subscribed to and its mailboxes
+     */
+    private final class Subscriber {
+        final IRCEventListener listener;
+        final Set<IRCEvent.Type> types;
+        final String channel;
+        private final SenderFilter filter;
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final Mailbox mailbox;
+        private final ConcurrentMap<Session, ConcurrentMap<String, Mailbox>> lanes;
+        private final AtomicLong retiredDrops;
+
+        Subscriber(IRCEventListener listener, Set<IRCEvent.Type> types, String channel, SenderFilter filter, int capacity, OverflowPolicy policy) {
+            if (capacity < 1)
+                throw new IllegalArgumentException("A mailbox must be able to hold at least one event");
+            if (policy == null)
+                throw new IllegalArgumentException("policy");
+            this.listener = listener;
+            if (types != null) {
+                this.types = EnumSet.noneOf(IRCEvent.Type.class);
+                this.types.addAll(types);
+            } else
+                this.types = null;
+            this.channel = channel == null ? null : foldChannel(channel);
+            this.filter = filter;
+            this.capacity = capacity;
+            this.policy = policy;
+            if (order == DeliveryOrder.PER_LISTENER) {
+                mailbox = new Mailbox(EventDispatcher.this, listener, capacity, policy);
+                lanes = null;
+            } else {
+                mailbox = null;
+                lanes = new ConcurrentHashMap<Session, ConcurrentMap<String, Mailbox>>();
+            }
+            retiredDrops = new AtomicLong();
+        }
+
+        boolean takes(IRCEvent.Type type) {
+            return types == null || types.contains(type);
+        }
+
+        void offer(IRCEvent e, boolean mayWait) {
+            if (filter != null) {
+                Node sender = e.getEventSender();
+                try {
+                    if (sender == null || !filter.accept(sender))
+                        return;
+                } catch (Throwable t) {
+                    parent.fireError(t);
+                    return;
+                }
+            }
+            if (mailbox != null) {
+                mailbox.offer(e, mayWait);
+                return;
+            }
+            // Lanes are kept by name so that rejoining a channel doesn't leave an old lane behind
+            Channel c = e.getEventChannel();
+            String key = c == null ? "" : c.getName();
+            ConcurrentMap<String, Mailbox> sl = lanes.get(e.getSource());
+            Mailbox mb = sl == null ? null : sl.get(key);
+            // A lane which was retired after we looked it up refuses the event, and a new one takes its place
+            while (mb == null || !mb.offer(e, mayWait))
+                mb = lane(e.getSource(), key);
+        }
+
+        /**
+         * Returns the lane for the specified channel of a session, creating it if it doesn't exist or has been retired<br />
+         * Lanes are only created and removed while holding this lock, so that a retired session's lanes can't be added to
+         */
+        private synchronized Mailbox lane(Session s, String key) {
+            ConcurrentMap<String, Mailbox> sl = lanes.get(s);
+            if (sl == null)
+                lanes.put(s, sl = new ConcurrentHashMap<String, Mailbox>());
+            Mailbox mb = sl.get(key);
+            if (mb == null || mb.isRetired())
+                sl.put(key, mb = new Mailbox(EventDispatcher.this, listener, capacity, policy));
+            return mb;
+        }
+
+        void retireLanes(final Session s, String channel) {
+            ConcurrentMap<String, Mailbox> sl = lanes.get(s);
+            if (sl == null)
+                return;
+            for (final Map.Entry<String, Mailbox> e : sl.entrySet()) {
+                if (channel != null && !channel.equals(e.getKey()))
+                    continue;
+                e.getValue().retire(new Runnable() {
+                    public void run() {
+                        removeLane(s, e.getKey(), e.getValue());
+                    }
+                });
+            }
+        }
+
+        private synchronized void removeLane(Session s, String key, Mailbox mb) {
+            retiredDrops.addAndGet(mb.getDropped());
+            ConcurrentMap<String, Mailbox> sl = lanes.get(s);
+            if (sl == null || !sl.remove(key, mb))
+                return;
+            if (sl.isEmpty())
+                lanes.remove(s);
+        }
+
+        Iterable<Mailbox> mailboxes() {
+            if (mailbox != null)
+                return Collections.singletonList(mailbox);
+            List<Mailbox> l = new ArrayList<Mailbox>();
+            for (ConcurrentMap<String, Mailbox> sl : lanes.values())
+                l.addAll(sl.values());
+            return l;
+        }
+
+        long getDropped() {
+            long n = retiredDrops.get();
+            for (Mailbox mb : mailboxes())
+                n += mb.getDropped();
+            return n;
+        }
+
+        long close() {
+            long n = 0;
+            for (Mailbox mb : mailboxes()) {
+                mb.close();
+                n += mb.getDropped();
+            }
+            return n;
+        }
+    }
+}
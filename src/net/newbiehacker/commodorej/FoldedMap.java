@@ -0,0 +1,140 @@
+package net.newbiehacker.commodorej;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A map of nicks or channel names to the objects representing them, which ignores case according to the server's case mapping<br />
+ * Reads never lock, so listeners can look things up while the session is updating the map. Only the session's reading thread
+ * may change the map.<br />
+ * Names are stored folded, but are looked up without folding them into a new String: a name in mixed case is looked up with a
+ * probe which hashes and compares the way its folded form would.
+ *
+ * @author newbiehacker
+ */
+final class FoldedMap<V> {
+    private static final ThreadLocal<Probe> PROBE = new ThreadLocal<Probe>() {
+        protected Probe initialValue() {
+            return new Probe();
+        }
+    };
+    private volatile CaseMapping mapping;
+    private volatile ConcurrentHashMap<String, V> map;
+
+    FoldedMap(CaseMapping mapping) {
+        this.mapping = mapping;
+        this.map = new ConcurrentHashMap<String, V>();
+    }
+
+    CaseMapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * Returns the key that the specified name is stored under
+     *
+     * @param name the nick or channel name
+     * @return the key that the specified name is stored under
+     */
+    String fold(String name) {
+        return mapping.fold(name);
+    }
+
+    /**
+     * Returns a key the specified name can be looked up with in a map whose keys have been folded, without creating a String<br />
+     * A name which is already in lower case is its own key. Otherwise the calling thread's probe is returned, which is reused by
+     * the next lookup, so it must never be stored in a map or kept
+     *
+     * @param mapping the case mapping the map's keys were folded with
+     * @param name    the nick or channel name
+     * @return a key the specified name can be looked up with
+     */
+    static Object lookupKey(CaseMapping mapping, String name) {
+        if (mapping.isFolded(name))
+            return name;
+        Probe p = PROBE.get();
+        p.mapping = mapping;
+        p.name = name;
+        return p;
+    }
+
+    V get(String name) {
+        return name == null ? null : map.get(lookupKey(mapping, name));
+    }
+
+    V getFolded(String key) {
+        return map.get(key);
+    }
+
+    boolean containsKey(String name) {
+        return name != null && map.containsKey(lookupKey(mapping, name));
+    }
+
+    /**
+     * Adds the specified value under the specified name
+     *
+     * @param name the nick or channel name
+     * @param v    the value
+     * @return the key that the value was stored under
+     */
+    String put(String name, V v) {
+        String key = mapping.fold(name);
+        map.put(key, v);
+        return key;
+    }
+
+    V remove(String name) {
+        return name == null ? null : map.remove(lookupKey(mapping, name));
+    }
+
+    V removeFolded(String key) {
+        return map.remove(key);
+    }
+
+    boolean removeFolded(String key, V v) {
+        return map.remove(key, v);
+    }
+
+    Collection<V> values() {
+        return map.values();
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    void clear() {
+        map.clear();
+    }
+
+    /**
+     * Switches to a new case mapping, replacing the contents of this map with the specified values all at once
+     *
+     * @param mapping the new case mapping
+     * @param byName  the values we wish to keep, by their names
+     */
+    void reset(CaseMapping mapping, Map<String, V> byName) {
+        ConcurrentHashMap<String, V> n = new ConcurrentHashMap<String, V>(Math.max(16, byName.size() * 2));
+        for (Map.Entry<String, V> e : byName.entrySet())
+            n.put(mapping.fold(e.getKey()), e.getValue());
+        this.map = n;
+        this.mapping = mapping;
+    }
+
+    /**
+     * A name in mixed case, which hashes and compares like the folded key it would be stored under
+     */
+    private static final class Probe {
+        CaseMapping mapping;
+        String name;
+
+        public int hashCode() {
+            return mapping.hashCode(name);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof String && mapping.equals(name, (String) o);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.newbiehacker.commodorej;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class holds the MessageHandlers which are called for each line a Session receives<br />
+ * Numerics are looked up in a table indexed by the numeric and commands in a hash table which is probed with the characters
+ * of the received command, so dispatching a line does not depend on how many handlers are registered.
+ * Handlers for the same command or numeric are called in the order they were registered, the library's own handlers being registered first.
+ *
+ * @author newbiehacker
+ * @see net.newbiehacker.commodorej.Session#getHandlers()
+ */
+public final class HandlerRegistry {
+    private static final MessageHandler[] NONE = new MessageHandler[0];
+
+    private final AtomicReferenceArray<MessageHandler[]> numerics;
+    private volatile Entry[] commands;
+    private int commandCount;
+
+    HandlerRegistry() {
+        numerics = new AtomicReferenceArray<MessageHandler[]>(1000);
+        commands = new Entry[16];
+    }
+
+    /**
+     * Registers the specified handler to be called whenever a line with the specified numeric is received
+     *
+     * @param numeric the numeric we wish to handle (0 - 999)
+     * @param h       the handler we wish to be called
+     */
+    public synchronized void register(int numeric, MessageHandler h) {
+        checkNumeric(numeric);
+        numerics.set(numeric, add(numerics.get(numeric), h));
+    }
+
+    /**
+     * Unregisters the specified handler so it will no longer be called for the specified numeric
+     *
+     * @param numeric the numeric that the handler was registered for
+     * @param h       the handler we no longer wish to be called
+     */
+    public synchronized void unregister(int numeric, MessageHandler h) {
+        checkNumeric(numeric);
+        numerics.set(numeric, remove(numerics.get(numeric), h));
+    }
+
+    /**
+     * Registers the specified handler to be called whenever a line with the specified command (e.g. "PRIVMSG") is received
+     *
+     * @param command the command we wish to handle
+     * @param h       the handler we wish to be called
+     */
+    public synchronized void register(String command, MessageHandler h) {
+        command = command.toUpperCase();
+        Entry e = find(commands, command);
+        if (e == null)
+            putCommand(command, add(null, h));
+        else
+            e.handlers = add(e.handlers, h);
+    }
+
+    /**
+     * Unregisters the specified handler so it will no longer be called for the specified command
+     *
+     * @param command the command that the handler was registered for
+     * @param h       the handler we no longer wish to be called
+     */
+    public synchronized void unregister(String command, MessageHandler h) {
+        Entry e = find(commands, command.toUpperCase());
+        if (e != null)
+            e.handlers = remove(e.handlers, h);
+    }
+
+    /**
+     * Returns whether any handlers are registered for the specified numeric
+     *
+     * @param numeric the numeric we wish to check
+     * @return whether any handlers are registered for the specified numeric
+     */
+    public boolean isHandled(int numeric) {
+        checkNumeric(numeric);
+        MessageHandler[] h = numerics.get(numeric);
+        return h != null && h.length > 0;
+    }
+
+    /**
+     * Returns whether any handlers are registered for the specified command
+     *
+     * @param command the command we wish to check
+     * @return whether any handlers are registered for the specified command
+     */
+    public boolean isHandled(String command) {
+        Entry e = find(commands, command.toUpperCase());
+        return e != null && e.handlers.length > 0;
+    }
+
+    void dispatch(Session source, IrcMessage m) {
+        MessageHandler[] handlers;
+        if (m.isNumeric()) {
+            handlers = numerics.get(m.getNumeric());
+        } else {
+            Entry[] table = commands;
+            int mask = table.length - 1;
+            handlers = null;
+            for (int i = m.commandHash() & mask; table[i] != null; i = (i + 1) & mask) {
+                if (m.isCommand(table[i].command)) {
+                    handlers = table[i].handlers;
+                    break;
+                }
+            }
+        }
+        if (handlers == null)
+            return;
+        for (MessageHandler h : handlers) {
+            try {
+                h.handle(source, m);
+            } catch (Throwable t) {
+                source.parent.fireError(t);
+            }
+        }
+    }
+
+    private static void checkNumeric(int numeric) {
+        if (numeric < 0 || numeric > 999)
+            throw new IllegalArgumentException("Numerics must be between 0 and 999");
+    }
+
+    private static MessageHandler[] add(MessageHandler[] handlers, MessageHandler h) {
+        if (h == null)
+            throw new IllegalArgumentException("handler");
+        if (handlers == null)
+            return new MessageHandler[]{h};
+        MessageHandler[] n = new MessageHandler[handlers.length + 1];
+        System.arraycopy(handlers, 0, n, 0, handlers.length);
+        n[handlers.length] = h;
+        return n;
+    }
+
+    private static MessageHandler[] remove(MessageHandler[] handlers, MessageHandler h) {
+        if (handlers == null)
+            return null;
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == h) {
+                if (handlers.length == 1)
+                    return NONE;
+                MessageHandler[] n = new MessageHandler[handlers.length - 1];
+                System.arraycopy(handlers, 0, n, 0, i);
+                System.arraycopy(handlers, i + 1, n, i, n.length - i);
+                return n;
+            }
+        }
+        return handlers;
+    }
+
+    private static Entry find(Entry[] table, String command) {
+        int mask = table.length - 1;
+        for (int i = command.hashCode() & mask; table[i] != null; i = (i + 1) & mask)
+            if (table[i].command.equals(command))
+                return table[i];
+        return null;
+    }
+
+    private void putCommand(String command, MessageHandler[] handlers) {
+        Entry[] table = commands;
+        int size = table.length;
+        // Keep the table at most half full so probes stay short
+        if ((commandCount + 1) * 2 > size)
+            size <<= 1;
+        Entry[] n = new Entry[size];
+        for (Entry e : table)
+            if (e != null)
+                insert(n, e);
+        insert(n, new Entry(command, handlers));
+        commandCount++;
+        commands = n;
+    }
+
+    private static void insert(Entry[] table, Entry e) {
+        int mask = table.length - 1;
+        int i = e.command.hashCode() & mask;
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = e;
+    }
+
+    private static final class Entry {
+        final String command;
+        volatile MessageHandler[] handlers;
+
+        Entry(String command, MessageHandler[] handlers) {
+            this.command = command;
+            this.handlers = handlers;
+        }
+    }
+}
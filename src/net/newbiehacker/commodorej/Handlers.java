@@ -0,0 +1,505 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.*;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * This class contains the MessageHandlers which the library uses to keep track of the state of a Session
+ *
+ * @author newbiehacker
+ */
+final class Handlers {
+    private Handlers() {}
+
+    /**
+     * Registers the library's handlers with the specified registry
+     *
+     * @param r the registry we wish to register the handlers with
+     */
+    static void install(HandlerRegistry r) {
+        r.register(1, WELCOME);
+        r.register(5, ISUPPORT);
+        r.register(376, END_OF_MOTD);
+        r.register(422, END_OF_MOTD);
+        r.register(421, UNKNOWN_COMMAND);
+        r.register(352, WHO_REPLY);
+        r.register(354, WHOX_REPLY);
+        r.register(315, END_OF_WHO);
+        r.register(353, NAMES_REPLY);
+        r.register(366, END_OF_NAMES);
+        r.register(367, new ListEntryHandler('b'));
+        r.register(348, new ListEntryHandler('e'));
+        r.register(346, new ListEntryHandler('I'));
+        r.register(324, CHANNEL_MODES);
+        r.register(332, TOPIC_REPLY);
+        r.register(333, TOPIC_INFO);
+        r.register("PING", PING);
+        r.register("CAP", CAP);
+        r.register("BATCH", BATCH);
+        r.register("AWAY", AWAY);
+        r.register("MODE", MODE);
+        r.register("NOTICE", NOTICE);
+        r.register("PRIVMSG", PRIVMSG);
+        r.register("JOIN", JOIN);
+        r.register("PART", PART);
+        r.register("QUIT", QUIT);
+        r.register("NICK", NICK);
+        r.register("TOPIC", TOPIC);
+        r.register("KICK", KICK);
+        r.register("INVITE", INVITE);
+    }
+
+    /**
+     * Returns the node that sent the specified message, updating our information on the sender if it's a user
+     *
+     * @param s      the session that received the message
+     * @param m      the message
+     * @param target the first parameter of the message
+     * @return the node that sent the specified message
+     */
+    private static Node sender(Session s, IrcMessage m, String target) {
+        if (!m.isUserPrefix())
+            return s.getServerNode(m);
+        User u = s.getUser(m.getPrefixNick(), m.getPrefixLogin(), m.getPrefixHost());
+        account(u, m);
+        Channel c = s.getChannel(target);
+        if (c != null && !c.hasUser(u))
+            c.addUser(u);
+        return u;
+    }
+
+    /**
+     * Updates the account of the sender of a message from its account tag, if it has one
+     */
+    private static void account(User u, IrcMessage m) {
+        if (!m.hasTags())
+            return;
+        String account = m.getTag("account");
+        if (account != null)
+            u.account = account;
+    }
+
+    private static final MessageHandler WELCOME = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            // The server may have changed our nick on the way in
+            if (m.getParameter(0) != null)
+                s.nick = m.getParameter(0);
+            s.registration.welcomed();
+        }
+    };
+
+    // We're connected once the server has sent its MOTD, or told us it doesn't have one
+    private static final MessageHandler END_OF_MOTD = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            s.connected();
+        }
+    };
+
+    private static final MessageHandler UNKNOWN_COMMAND = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            if (m.parameterEquals(1, "CAP"))
+                s.registration.unsupported();
+        }
+    };
+
+    private static final MessageHandler CAP = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            s.registration.handle(m);
+        }
+    };
+
+    private static final MessageHandler BATCH = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String ref = m.getParameter(0);
+            if (ref == null || ref.length() < 2)
+                return;
+            if (ref.charAt(0) == '+')
+                s.startBatch(ref.substring(1), m.getParameter(1), Arrays.asList(m.getParameters(2)));
+            else if (ref.charAt(0) == '-')
+                s.endBatch(ref.substring(1));
+        }
+    };
+
+    private static final MessageHandler AWAY = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            Node sender = sender(s, m, null);
+            if (sender.getType() != Node.Type.USER)
+                return;
+            User u = (User) sender;
+            u.awayMessage = m.getParameterCount() > 0 ? m.getParameter(0) : null;
+            u.away = u.awayMessage != null;
+        }
+    };
+
+    // Parameter information
+    private static final MessageHandler ISUPPORT = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            int count = m.getParameterCount() - (m.hasTrailing() ? 1 : 0);
+            for (int i = 1; i < count; i++) {
+                String p = m.getParameter(i);
+                int idx = p.indexOf('=');
+                if (p.charAt(0) == '-') {
+                    // The server no longer supports this parameter
+                    s.parameters.remove(p.substring(1));
+                } else if (idx == -1) {
+                    s.parameters.put(p, null);
+                } else {
+                    s.parameters.put(p.substring(0, idx), p.substring(idx + 1));
+                }
+            }
+            ServerSupport ss = new ServerSupport(s.parameters);
+            s.support = ss;
+            if (ss.getCaseMapping() != s.getCaseMapping())
+                s.setCaseMapping(ss.getCaseMapping());
+            // Ask for every prefix and the hosts of users in NAMES replies, so that we don't need to WHO the channels we join
+            String protoctl = "";
+            if (!s.multiPrefix && ss.hasParameter("NAMESX")) {
+                s.multiPrefix = true;
+                protoctl += " NAMESX";
+            }
+            if (!s.userhostInNames && ss.hasParameter("UHNAMES")) {
+                s.userhostInNames = true;
+                protoctl += " UHNAMES";
+            }
+            if (protoctl.length() > 0)
+                s.sendLine("PROTOCTL" + protoctl);
+        }
+    };
+
+    /**
+     * Updates what we know of a user from a WHO or WHOX reply
+     */
+    private static void who(Session s, String chan, String login, String host, String nick, String flags) {
+        User u = s.getUser(nick, login, host);
+        Channel chanl = s.getChannel(chan);
+        if (chanl != null)
+            chanl.addUser(u);
+        // The flags are H or G, * for an IRC operator and then the user's prefixes on the channel
+        final PrefixTable pt = s.support.getPrefixes();
+        int mask = 0;
+        u.modes.clear(); // Clear the users modes for a fresh start
+        for (int i = 0; i < flags.length(); i++) {
+            char c = flags.charAt(i);
+            int bit = pt.prefixBit(c);
+            if (bit != 0)
+                mask |= bit;
+            else
+                u.modes.add(c);
+        }
+        boolean away = flags.indexOf('G') != -1;
+        if (away != u.away) {
+            u.away = away;
+            u.awayMessage = null;
+        }
+        if (chanl != null)
+            chanl.updatePrefixes(u, mask, s.multiPrefix);
+    }
+
+    // WHO line
+    private static final MessageHandler WHO_REPLY = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            // String server = m.getParameter(4);
+            //String hops = m.getTrailing() up to the first space;
+            //String fullName = m.getTrailing() after the first space;
+            who(s, m.getParameter(1), m.getParameter(2), m.getParameter(3), m.getParameter(5), m.getParameter(6));
+        }
+    };
+
+    // WHOX line, with the fields asked for by the WhoScheduler: token, channel, login, host, nick and flags
+    private static final MessageHandler WHOX_REPLY = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            if (m.getParameterCount() < 7 || !m.parameterEquals(1, WhoScheduler.WHOX_TOKEN))
+                return;
+            who(s, m.getParameter(2), m.getParameter(3), m.getParameter(4), m.getParameter(5), m.getParameter(6));
+        }
+    };
+
+    private static final MessageHandler END_OF_WHO = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            s.who.done(m.getParameter(1));
+        }
+    };
+
+    // NAMES line, with a prefix before each nick and, if the server supports it, the login and host after it
+    private static final MessageHandler NAMES_REPLY = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            Channel chan = s.getChannel(m.getParameter(2));
+            String names = m.getParameter(3);
+            if (chan == null || names == null)
+                return;
+            final PrefixTable pt = s.support.getPrefixes();
+            int end, start = 0;
+            for (; start < names.length(); start = end + 1) {
+                end = names.indexOf(' ', start);
+                if (end == -1)
+                    end = names.length();
+                int mask = 0, i = start;
+                for (; i < end; i++) {
+                    int bit = pt.prefixBit(names.charAt(i));
+                    if (bit == 0)
+                        break;
+                    mask |= bit;
+                }
+                if (i == end)
+                    continue;
+                int bang = names.indexOf('!', i);
+                int at = names.indexOf('@', i);
+                User u;
+                if (bang == -1 || bang > end || at < bang || at > end)
+                    u = s.getUser(names.substring(i, end), null, null);
+                else
+                    u = s.getUser(names.substring(i, bang), names.substring(bang + 1, at), names.substring(at + 1, end));
+                chan.addUser(u);
+                chan.updatePrefixes(u, mask, s.multiPrefix);
+                if (chan.named != null)
+                    chan.named.add(u);
+            }
+        }
+    };
+
+    // End of NAMES, which is when we know whether we still need to WHO a channel we've joined
+    private static final MessageHandler END_OF_NAMES = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            Channel chan = s.getChannel(m.getParameter(1));
+            if (chan == null)
+                return;
+            // A channel restored from a snapshot may still have users who left while we were away
+            if (chan.named != null) {
+                for (User u : chan.getUsers())
+                    if (!chan.named.contains(u))
+                        chan.removeUser(u);
+                chan.named = null;
+            }
+            for (User u : chan.getUsers()) {
+                if (u.host == null) {
+                    s.who.request(chan.name);
+                    return;
+                }
+            }
+        }
+    };
+
+    // Ban, except and invite list entries
+    private static final class ListEntryHandler implements MessageHandler {
+        private final char list;
+
+        ListEntryHandler(char list) {
+            this.list = list;
+        }
+
+        public void handle(Session s, IrcMessage m) {
+            MaskList l = s.getChannel(m.getParameter(1)).lists.get(list);
+            if (l != null)
+                l.add(new ChannelListEntry(m.getParameter(2), m.getParameter(3), Long.parseLong(m.getParameter(4))));
+        }
+    }
+
+    private static final MessageHandler CHANNEL_MODES = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String chan = m.getParameter(1);
+            Misc.handleModes(s, Misc.getNode(s, chan), null, m.getParameters(2));
+            if (s.isWanted(IRCEvent.Type.MODE))
+                s.fireEvent(new IRCModeChangeEvent(s, s.getServerNode(m), Misc.getNode(s, chan), m.getRaw(2)));
+        }
+    };
+
+    // Topic server message
+    private static final MessageHandler TOPIC_REPLY = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            Channel channel = s.getChannel(m.getParameter(1));
+            channel.topic = m.getTrailing();
+        }
+    };
+
+    // Topic info message
+    private static final MessageHandler TOPIC_INFO = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            Channel channel = s.getChannel(m.getParameter(1));
+            channel.topicSetter = m.getParameter(2);
+            channel.topicTime = new Date(Long.parseLong(m.getParameter(3)) * 1000);
+        }
+    };
+
+    private static final MessageHandler PING = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            s.sendLine("PONG :" + m.getTrailing());
+        }
+    };
+
+    private static final MessageHandler MODE = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String target = m.getParameter(0);
+            Node sender = sender(s, m, target);
+            Misc.handleModes(s, Misc.getNode(s, target), sender, m.getParameters(1));
+            if (s.isWanted(IRCEvent.Type.MODE))
+                s.fireEvent(new IRCModeChangeEvent(s, sender, Misc.getNode(s, target), m.getRaw(1)));
+        }
+    };
+
+    private static final MessageHandler NOTICE = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String target = m.getParameter(0);
+            Node sender = sender(s, m, target);
+            String notice = m.getParameter(1);
+            // CTCP response
+            if (notice.length() > 1 && notice.charAt(0) == 1 && notice.charAt(notice.length() - 1) == 1) {
+                if (s.isWanted(IRCEvent.Type.CTCP_RESPONSE))
+                    s.fireEvent(new IRCCtcpResponseEvent(s, sender, Misc.getNode(s, target), notice.substring(1, notice.length() - 1)));
+            } else if (s.isWanted(IRCEvent.Type.NOTICE))
+                s.fireEvent(new IRCNoticeEvent(s, sender, Misc.getNode(s, target), notice));
+        }
+    };
+
+    private static final MessageHandler PRIVMSG = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String target = m.getParameter(0);
+            Node sender = sender(s, m, target);
+            String message = m.getParameter(1);
+            if (message.length() > 1 && message.charAt(0) == 1 && message.charAt(message.length() - 1) == 1) {
+                String ctcp = message.substring(1, message.length() - 1);
+                if (ctcp.startsWith("ACTION")) {
+                    if (s.isWanted(IRCEvent.Type.ACTION))
+                        s.fireEvent(new IRCActionEvent(s, sender, Misc.getNode(s, target), ctcp.length() > 7 ? ctcp.substring(7) : ""));
+                } else {
+                    if ("TIME".equals(ctcp.toUpperCase()))
+                        s.sendCtcpResponse(sender.toString(), "TIME " + new Date());
+                    else if ("VERSION".equals(ctcp.toUpperCase()))
+                        s.sendCtcpResponse(sender.toString(), "VERSION Commodore (Java implementation) version 0.5b, Copyright 2008 James Lawrence (http://www.newbiehacker.net)");
+                    if (s.isWanted(IRCEvent.Type.CTCP_REQUEST))
+                        s.fireEvent(new IRCCtcpRequestEvent(s, sender, Misc.getNode(s, target), ctcp));
+                }
+            } else if (s.isWanted(IRCEvent.Type.MESSAGE))
+                s.fireEvent(new IRCMessageEvent(s, sender, Misc.getNode(s, target), message));
+        }
+    };
+
+    private static final MessageHandler JOIN = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            // Only users join, part, quit and change their nicks, so anything else sending these is ignored
+            if (!m.isUserPrefix())
+                return;
+            String target = m.getParameter(0);
+            User u = s.getUser(m.getPrefixNick(), m.getPrefixLogin(), m.getPrefixHost());
+            account(u, m);
+            // With extended-join the user's account and real name follow the channel
+            if (m.getParameterCount() >= 3 && s.hasCapability("extended-join")) {
+                String account = m.getParameter(1);
+                u.account = "*".equals(account) ? null : account;
+                u.realName = m.getParameter(2);
+            }
+            boolean me = s.isMe(u.nick);
+            if (me) {
+                Channel c = s.restoreChannel(target);
+                s.channels.put(target, c != null ? c : new Channel(s, target));
+            }
+            Channel chan = s.getChannel(target);
+            chan.addUser(u);
+            boolean split = !me && s.netsplits.join(u, chan);
+            if ((!split || s.isSplitUserEvents()) && s.isWanted(IRCEvent.Type.JOIN))
+                s.fireEvent(new IRCJoinEvent(s, u, chan));
+        }
+    };
+
+    private static final MessageHandler PART = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            if (!m.isUserPrefix())
+                return;
+            String target = m.getParameter(0);
+            User u = (User) sender(s, m, target);
+            String reason = m.getParameterCount() > 1 ? m.getParameter(1) : "";
+            if (s.isMe(u.nick)) {
+                if (s.isWanted(IRCEvent.Type.PART))
+                    s.fireEvent(new IRCPartEvent(s, u, s.getChannel(target), reason));
+                Channel c = s.channels.remove(target);
+                if (c != null) {
+                    c.clearUsers();
+                    s.parent.retireLanes(s, c.name);
+                }
+            } else {
+                Channel c = s.getChannel(target);
+                c.removeUser(u);
+                if (s.isWanted(IRCEvent.Type.PART))
+                    s.fireEvent(new IRCPartEvent(s, u, c, reason));
+            }
+        }
+    };
+
+    private static final MessageHandler QUIT = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            if (!m.isUserPrefix())
+                return;
+            User u = (User) sender(s, m, null);
+            String message = m.getParameterCount() > 0 ? m.getParameter(0) : "";
+            Channel[] chans;
+            synchronized (u.channels) {
+                chans = u.channels.toArray(new Channel[u.channels.size()]);
+            }
+            boolean split = s.netsplits.quit(u, message, chans);
+            if ((!split || s.isSplitUserEvents()) && s.isWanted(IRCEvent.Type.QUIT))
+                s.fireEvent(new IRCQuitEvent(s, u, message));
+            // Remove the user from the channels they were on
+            for (Channel c : chans)
+                c.removeUser(u);
+            if (!s.isMe(u.nick))
+                s.users.removeFolded(u.key, u);
+        }
+    };
+
+    private static final MessageHandler NICK = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            if (!m.isUserPrefix())
+                return;
+            String target = m.getParameter(0);
+            User u = (User) sender(s, m, target);
+            String oldNick = u.nick;
+            if (s.isMe(oldNick))
+                s.nick = target;
+            u.nick = target;
+            s.users.removeFolded(u.key);
+            u.key = s.users.put(target, u);
+            if (s.isWanted(IRCEvent.Type.NICK))
+                s.fireEvent(new IRCNickChangeEvent(s, u, oldNick));
+        }
+    };
+
+    private static final MessageHandler TOPIC = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String target = m.getParameter(0);
+            Node sender = sender(s, m, target);
+            Channel channel = s.getChannel(target);
+            channel.topicSetter = sender.toString();
+            channel.topicTime = new Date();
+            channel.topic = m.getParameter(1);
+            if (s.isWanted(IRCEvent.Type.TOPIC))
+                s.fireEvent(new IRCTopicChangeEvent(s, channel));
+        }
+    };
+
+    private static final MessageHandler KICK = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String target = m.getParameter(0);
+            Node sender = sender(s, m, target);
+            User u = s.getUser(m.getParameter(1), null, null);
+            Channel channel = s.getChannel(target);
+            channel.removeUser(u);
+            if (s.isWanted(IRCEvent.Type.KICK))
+                s.fireEvent(new IRCKickEvent(s, sender, u, channel, m.getParameterCount() > 2 ? m.getParameter(2) : ""));
+            if (s.isMe(u.nick)) {
+                s.channels.remove(target);
+                channel.clearUsers();
+                s.parent.retireLanes(s, channel.name);
+            }
+        }
+    };
+
+    private static final MessageHandler INVITE = new MessageHandler() {
+        public void handle(Session s, IrcMessage m) {
+            String target = m.getParameter(0);
+            Node sender = sender(s, m, target);
+            if (s.isWanted(IRCEvent.Type.INVITE))
+                s.fireEvent(new IRCInviteEvent(s, sender, s.findUser(target), m.getParameter(1)));
+        }
+    };
+}
@@ -0,0 +1,423 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * This class represents a single line received from the server, split up into its tags, prefix, command and parameters<br />
+ * Parsing only records where each part of the line starts and ends, Strings are only created when a part is asked for.
+ * An instance is reused for every line that a Session receives, so it must not be kept hold of once the line has been handled.
+ *
+ * @author newbiehacker
+ */
+public final class IrcMessage {
+    private String line;
+    private char[] chars;
+    private int length;
+    private int tagsStart, tagsEnd;
+    private int prefixStart, prefixEnd, prefixBang, prefixAt;
+    private int commandStart, commandEnd, commandHash;
+    private int numeric;
+    private int[] paramStart, paramEnd;
+    private int paramCount;
+    private boolean trailing;
+
+    IrcMessage() {
+        chars = new char[512];
+        paramStart = new int[16];
+        paramEnd = new int[16];
+    }
+
+    /**
+     * Parses the specified line into this message, discarding whatever it held before
+     *
+     * @param line the line we wish to parse (without its line terminator)
+     * @return whether the line contained a command
+     */
+    boolean parse(String line) {
+        this.line = line;
+        length = line.length();
+        if (chars.length < length)
+            chars = new char[Math.max(length, chars.length << 1)];
+        line.getChars(0, length, chars, 0);
+        tagsStart = tagsEnd = prefixStart = prefixEnd = prefixBang = prefixAt = -1;
+        paramCount = 0;
+        trailing = false;
+        numeric = -1;
+        final char[] c = chars;
+        int i = 0;
+        if (i < length && c[i] == '@') {
+            tagsStart = ++i;
+            while (i < length && c[i] != ' ')
+                i++;
+            tagsEnd = i;
+            i = skipSpaces(i);
+        }
+        if (i < length && c[i] == ':') {
+            prefixStart = ++i;
+            while (i < length && c[i] != ' ') {
+                if (c[i] == '!' && prefixBang == -1)
+                    prefixBang = i;
+                else if (c[i] == '@' && prefixAt == -1)
+                    prefixAt = i;
+                i++;
+            }
+            prefixEnd = i;
+            i = skipSpaces(i);
+        }
+        commandStart = i;
+        while (i < length && c[i] != ' ')
+            i++;
+        commandEnd = i;
+        if (commandEnd == commandStart)
+            return false;
+        int h = 0;
+        for (int j = commandStart; j < commandEnd; j++)
+            h = 31 * h + c[j];
+        commandHash = h;
+        if (commandEnd - commandStart == 3 && isDigit(c[commandStart]) && isDigit(c[commandStart + 1]) && isDigit(c[commandStart + 2]))
+            numeric = (c[commandStart] - '0') * 100 + (c[commandStart + 1] - '0') * 10 + (c[commandStart + 2] - '0');
+        while (true) {
+            i = skipSpaces(i);
+            if (i >= length)
+                break;
+            if (paramCount == paramStart.length) {
+                int[] s = new int[paramCount << 1], e = new int[paramCount << 1];
+                System.arraycopy(paramStart, 0, s, 0, paramCount);
+                System.arraycopy(paramEnd, 0, e, 0, paramCount);
+                paramStart = s;
+                paramEnd = e;
+            }
+            if (c[i] == ':') {
+                paramStart[paramCount] = i + 1;
+                paramEnd[paramCount++] = length;
+                trailing = true;
+                break;
+            }
+            paramStart[paramCount] = i;
+            while (i < length && c[i] != ' ')
+                i++;
+            paramEnd[paramCount++] = i;
+        }
+        return true;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < length && chars[i] == ' ')
+            i++;
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Returns the line that this message was parsed from
+     *
+     * @return the line that this message was parsed from
+     */
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * Returns whether this message carries IRCv3 message tags
+     *
+     * @return whether this message carries IRCv3 message tags
+     */
+    public boolean hasTags() {
+        return tagsStart != -1;
+    }
+
+    /**
+     * Returns whether this message carries the specified tag
+     *
+     * @param key the name of the tag (e.g. "time" or "account")
+     * @return whether this message carries the specified tag
+     */
+    public boolean hasTag(String key) {
+        return findTag(key) != -1;
+    }
+
+    /**
+     * Returns the unescaped value of the specified tag
+     *
+     * @param key the name of the tag (e.g. "time" or "account")
+     * @return the value of the tag, an empty String if the tag has no value or null if this message does not carry it
+     */
+    public String getTag(String key) {
+        int i = findTag(key);
+        if (i == -1)
+            return null;
+        int end = i;
+        while (end < tagsEnd && chars[end] != ';')
+            end++;
+        if (i == end || chars[i] != '=')
+            return "";
+        i++;
+        StringBuilder sb = null;
+        for (int j = i; j < end; j++) {
+            if (chars[j] != '\\')
+                continue;
+            if (sb == null)
+                sb = new StringBuilder(end - i);
+            sb.append(chars, i, j - i);
+            if (++j < end) {
+                char e = chars[j];
+                sb.append(e == ':' ? ';' : e == 's' ? ' ' : e == 'r' ? '\r' : e == 'n' ? '\n' : e);
+            }
+            i = j + 1;
+        }
+        if (sb == null)
+            return new String(chars, i, end - i);
+        if (i < end)
+            sb.append(chars, i, end - i);
+        return sb.toString();
+    }
+
+    private int findTag(String key) {
+        if (tagsStart == -1)
+            return -1;
+        final int kl = key.length();
+        int i = tagsStart;
+        while (i < tagsEnd) {
+            int j = i;
+            while (j < tagsEnd && chars[j] != ';' && chars[j] != '=')
+                j++;
+            if (j - i == kl && regionMatches(i, key))
+                return j;
+            while (j < tagsEnd && chars[j] != ';')
+                j++;
+            i = j + 1;
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(int off, String s) {
+        for (int i = 0; i < s.length(); i++)
+            if (chars[off + i] != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns whether this message has a prefix (the source of the message)
+     *
+     * @return whether this message has a prefix
+     */
+    public boolean hasPrefix() {
+        return prefixStart != -1;
+    }
+
+    /**
+     * Returns the prefix of this message (e.g. "nick!login@host" or "irc.example.net")
+     *
+     * @return the prefix of this message, or null if it has none
+     */
+    public String getPrefix() {
+        return prefixStart == -1 ? null : new String(chars, prefixStart, prefixEnd - prefixStart);
+    }
+
+    /**
+     * Returns whether the prefix of this message is the specified String, without creating any Strings
+     *
+     * @param s the String we wish to compare the prefix with
+     * @return whether the prefix of this message is the specified String
+     */
+    public boolean prefixEquals(String s) {
+        return prefixStart != -1 && prefixEnd - prefixStart == s.length() && regionMatches(prefixStart, s);
+    }
+
+    /**
+     * Returns whether the prefix of this message is a user mask (nick!login@host)
+     *
+     * @return whether the prefix of this message is a user mask
+     */
+    public boolean isUserPrefix() {
+        return prefixBang != -1;
+    }
+
+    /**
+     * Returns the nick part of the prefix, or the whole prefix if it is not a user mask
+     *
+     * @return the nick part of the prefix
+     */
+    public String getPrefixNick() {
+        if (prefixStart == -1)
+            return null;
+        int end = prefixBang != -1 ? prefixBang : prefixAt != -1 ? prefixAt : prefixEnd;
+        return new String(chars, prefixStart, end - prefixStart);
+    }
+
+    /**
+     * Returns the login part of the prefix
+     *
+     * @return the login part of the prefix, or null if the prefix does not have one
+     */
+    public String getPrefixLogin() {
+        if (prefixBang == -1)
+            return null;
+        int end = prefixAt > prefixBang ? prefixAt : prefixEnd;
+        return new String(chars, prefixBang + 1, end - prefixBang - 1);
+    }
+
+    /**
+     * Returns the host part of the prefix
+     *
+     * @return the host part of the prefix, or null if the prefix does not have one
+     */
+    public String getPrefixHost() {
+        if (prefixAt == -1)
+            return null;
+        return new String(chars, prefixAt + 1, prefixEnd - prefixAt - 1);
+    }
+
+    /**
+     * Returns the command of this message (e.g. "PRIVMSG" or "005")
+     *
+     * @return the command of this message
+     */
+    public String getCommand() {
+        return new String(chars, commandStart, commandEnd - commandStart);
+    }
+
+    /**
+     * Returns whether the command of this message is the specified command, without creating any Strings
+     *
+     * @param command the command we wish to check for (e.g. "PRIVMSG")
+     * @return whether the command of this message is the specified command
+     */
+    public boolean isCommand(String command) {
+        return commandEnd - commandStart == command.length() && regionMatches(commandStart, command);
+    }
+
+    /**
+     * Returns the hash code of the command, which is the same as the hash code of the String returned by getCommand()
+     *
+     * @return the hash code of the command
+     */
+    int commandHash() {
+        return commandHash;
+    }
+
+    /**
+     * Returns whether the command of this message is a three digit numeric
+     *
+     * @return whether the command of this message is a numeric
+     */
+    public boolean isNumeric() {
+        return numeric != -1;
+    }
+
+    /**
+     * Returns the numeric of this message
+     *
+     * @return the numeric of this message, or -1 if the command is not a numeric
+     */
+    public int getNumeric() {
+        return numeric;
+    }
+
+    /**
+     * Returns the number of parameters in this message (including the trailing parameter)
+     *
+     * @return the number of parameters in this message
+     */
+    public int getParameterCount() {
+        return paramCount;
+    }
+
+    /**
+     * Returns the parameter at the specified index
+     *
+     * @param index the index of the parameter
+     * @return the parameter at the specified index, or null if there aren't that many parameters
+     */
+    public String getParameter(int index) {
+        if (index < 0 || index >= paramCount)
+            return null;
+        return new String(chars, paramStart[index], paramEnd[index] - paramStart[index]);
+    }
+
+    /**
+     * Returns the length of the parameter at the specified index
+     *
+     * @param index the index of the parameter
+     * @return the length of the parameter, or -1 if there aren't that many parameters
+     */
+    public int getParameterLength(int index) {
+        if (index < 0 || index >= paramCount)
+            return -1;
+        return paramEnd[index] - paramStart[index];
+    }
+
+    /**
+     * Returns the first character of the parameter at the specified index
+     *
+     * @param index the index of the parameter
+     * @return the first character of the parameter, or '\u0000' if it is empty or there aren't that many parameters
+     */
+    public char getParameterChar(int index) {
+        if (index < 0 || index >= paramCount || paramEnd[index] == paramStart[index])
+            return '\u0000';
+        return chars[paramStart[index]];
+    }
+
+    /**
+     * Returns whether the parameter at the specified index is the specified String, without creating any Strings
+     *
+     * @param index the index of the parameter
+     * @param s     the String we wish to compare the parameter with
+     * @return whether the parameter at the specified index is the specified String
+     */
+    public boolean parameterEquals(int index, String s) {
+        return index >= 0 && index < paramCount && paramEnd[index] - paramStart[index] == s.length() && regionMatches(paramStart[index], s);
+    }
+
+    /**
+     * Returns whether the last parameter was a trailing parameter (prefixed with a ':')
+     *
+     * @return whether the last parameter was a trailing parameter
+     */
+    public boolean hasTrailing() {
+        return trailing;
+    }
+
+    /**
+     * Returns the last parameter of this message
+     *
+     * @return the last parameter of this message, or null if there are no parameters
+     */
+    public String getTrailing() {
+        return getParameter(paramCount - 1);
+    }
+
+    /**
+     * Returns the parameters from the specified index onwards exactly as they were sent, minus the ':' if the first of them is the trailing parameter
+     *
+     * @param from the index of the first parameter
+     * @return the parameters from the specified index onwards, or an empty String if there aren't that many parameters
+     */
+    public String getRaw(int from) {
+        if (from < 0 || from >= paramCount)
+            return "";
+        return new String(chars, paramStart[from], length - paramStart[from]);
+    }
+
+    /**
+     * Returns the parameters from the specified index onwards
+     *
+     * @param from the index of the first parameter
+     * @return the parameters from the specified index onwards
+     */
+    public String[] getParameters(int from) {
+        if (from < 0 || from >= paramCount)
+            return new String[0];
+        String[] s = new String[paramCount - from];
+        for (int i = 0; i < s.length; i++)
+            s[i] = getParameter(from + i);
+        return s;
+    }
+
+    public String toString() {
+        return line;
+    }
+}
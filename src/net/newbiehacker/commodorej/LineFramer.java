@@ -0,0 +1,141 @@
+package net.newbiehacker.commodorej;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the raw byte stream received from the server into lines.<br />
+ * Input is scanned for line terminators in bulk and bytes are only decoded once a whole line is available, so
+ * multi-byte characters which are split across reads are decoded correctly. Partial lines are kept in a buffer
+ * which is reused for the lifetime of the framer.
+ *
+ * @author newbiehacker
+ */
+final class LineFramer {
+    /**
+     * The longest line we are willing to buffer (512 bytes for the message plus 8191 bytes of IRCv3 tags)
+     */
+    static final int MAX_LINE = 8703;
+
+    private Charset charset;
+    private byte[] partial;
+    private int length;
+    private boolean discarding;
+
+    LineFramer(Charset charset) {
+        this.charset = charset;
+        this.partial = new byte[512];
+    }
+
+    /**
+     * Returns the charset that lines are decoded with
+     *
+     * @return the charset that lines are decoded with
+     */
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset that lines are decoded with
+     *
+     * @param charset the charset that lines will be decoded with
+     */
+    void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Returns the next complete line in the specified buffer, without its line terminator<br />
+     * If the buffer does not contain a complete line, the remaining bytes are kept until the next call and null is returned
+     *
+     * @param in the buffer containing the data we have received
+     * @return the next complete line, or null if the buffer has been exhausted
+     */
+    String next(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int end = indexOf(in, start, in.limit());
+            if (end == -1) {
+                append(in, start, in.limit());
+                in.position(in.limit());
+                return null;
+            }
+            in.position(end + 1);
+            if (discarding) {
+                // The tail of a line that was too long to keep, drop it and carry on
+                discarding = false;
+                continue;
+            }
+            if (length == 0 && in.hasArray()) {
+                // The whole line is in this buffer so it can be decoded in place, unless it's too long to keep
+                if (end - start > MAX_LINE)
+                    continue;
+                int off = in.arrayOffset();
+                return decode(in.array(), off + start, off + end);
+            }
+            append(in, start, end);
+            if (discarding) {
+                discarding = false;
+                continue;
+            }
+            String line = decode(partial, 0, length);
+            length = 0;
+            return line;
+        }
+        return null;
+    }
+
+    /**
+     * Drops any partial line that we are holding on to
+     */
+    void reset() {
+        length = 0;
+        discarding = false;
+    }
+
+    private static int indexOf(ByteBuffer in, int from, int to) {
+        if (in.hasArray()) {
+            byte[] a = in.array();
+            int off = in.arrayOffset();
+            for (int i = from + off, e = to + off; i < e; i++)
+                if (a[i] == '\n')
+                    return i - off;
+            return -1;
+        }
+        for (int i = from; i < to; i++)
+            if (in.get(i) == '\n')
+                return i;
+        return -1;
+    }
+
+    private void append(ByteBuffer in, int from, int to) {
+        if (discarding)
+            return;
+        int len = to - from;
+        if (length + len > MAX_LINE) {
+            length = 0;
+            discarding = true;
+            return;
+        }
+        if (length + len > partial.length) {
+            byte[] b = new byte[Math.min(MAX_LINE, Math.max(partial.length << 1, length + len))];
+            System.arraycopy(partial, 0, b, 0, length);
+            partial = b;
+        }
+        if (in.hasArray()) {
+            System.arraycopy(in.array(), in.arrayOffset() + from, partial, length, len);
+        } else {
+            ByteBuffer dup = in.duplicate();
+            dup.limit(to).position(from);
+            dup.get(partial, length, len);
+        }
+        length += len;
+    }
+
+    private String decode(byte[] b, int from, int to) {
+        if (to > from && b[to - 1] == '\r')
+            to--;
+        return new String(b, from, to - from, charset);
+    }
+}
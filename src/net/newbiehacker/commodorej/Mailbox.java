@@ -0,0 +1,190 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCEventListener;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Holds the events waiting to be delivered to a single listener<br />
+ * At most one thread drains a mailbox at a time, so its listener sees events in the order they were fired.
+ * A mailbox gives up its thread after a batch of events so that a busy listener can't hog the dispatcher's threads.
+ * A mailbox which is no longer needed can be retired, after which it takes no more events once it has delivered those waiting.
+ *
+ * @author newbiehacker
+ */
+final class Mailbox implements Runnable {
+    private static final int BATCH = 64;
+
+    final IRCEventListener listener;
+    private final EventDispatcher parent;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<IRCEvent> queue;
+    private boolean scheduled, closed, retired;
+    private Runnable retiring;
+    private int peak;
+    private long dropped;
+
+    Mailbox(EventDispatcher parent, IRCEventListener listener, int capacity, OverflowPolicy policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("A mailbox must be able to hold at least one event");
+        if (policy == null)
+            throw new IllegalArgumentException("policy");
+        this.parent = parent;
+        this.listener = listener;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.queue = new ArrayDeque<IRCEvent>(Math.min(capacity, 256));
+    }
+
+    void offer(IRCEvent e) {
+        offer(e, true);
+    }
+
+    /**
+     * Adds an event to this mailbox, handling a full mailbox as its policy says<br />
+     * If we may not wait, a mailbox which would block lets the event in over its capacity instead
+     *
+     * @return false if this mailbox has been retired, in which case the event should be offered to a new one
+     */
+    boolean offer(IRCEvent e, boolean mayWait) {
+        synchronized (this) {
+            if (retired)
+                return false;
+            if (closed)
+                return true;
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        if (!mayWait)
+                            break;
+                        try {
+                            while (queue.size() >= capacity && !closed)
+                                wait();
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            dropped++;
+                            return true;
+                        }
+                        if (retired)
+                            return false;
+                        if (closed)
+                            return true;
+                        break;
+                    case DROP_OLDEST:
+                        queue.poll();
+                        dropped++;
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return true;
+                    case COALESCE:
+                        removeOldest(e.getType());
+                        dropped++;
+                        break;
+                }
+            }
+            queue.add(e);
+            if (queue.size() > peak)
+                peak = queue.size();
+            if (scheduled)
+                return true;
+            scheduled = true;
+        }
+        if (!parent.schedule(this)) {
+            synchronized (this) {
+                scheduled = false;
+            }
+        }
+        return true;
+    }
+
+    private void removeOldest(IRCEvent.Type type) {
+        for (Iterator<IRCEvent> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().getType() == type) {
+                it.remove();
+                return;
+            }
+        }
+        queue.poll();
+    }
+
+    public void run() {
+        while (true) {
+            for (int i = 0; i < BATCH; i++) {
+                IRCEvent e;
+                Runnable done = null;
+                synchronized (this) {
+                    e = queue.poll();
+                    if (e == null) {
+                        scheduled = false;
+                        // Everything has been delivered, so a mailbox waiting to be retired can go now
+                        done = retiring;
+                        if (done != null) {
+                            retired = true;
+                            retiring = null;
+                        }
+                    } else if (policy == OverflowPolicy.BLOCK) {
+                        notifyAll();
+                    }
+                }
+                if (e == null) {
+                    if (done != null)
+                        done.run();
+                    return;
+                }
+                parent.deliver(listener, e);
+            }
+            // Let other mailboxes have a go, unless we're shutting down in which case we finish off here
+            if (parent.schedule(this))
+                return;
+        }
+    }
+
+    /**
+     * Retires this mailbox once it has delivered the events waiting in it, or straight away if there are none<br />
+     * It then refuses any more events, and the specified task is run so that whoever made it can forget it
+     *
+     * @param done run once this mailbox has been retired
+     */
+    void retire(Runnable done) {
+        synchronized (this) {
+            if (retired || retiring != null)
+                return;
+            if (scheduled || !queue.isEmpty()) {
+                retiring = done;
+                return;
+            }
+            retired = true;
+        }
+        done.run();
+    }
+
+    synchronized boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Drops every waiting event and stops this mailbox from accepting new ones
+     */
+    synchronized void close() {
+        closed = true;
+        dropped += queue.size();
+        queue.clear();
+        notifyAll();
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    synchronized int getPeak() {
+        return peak;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
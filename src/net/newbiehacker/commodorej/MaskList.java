@@ -0,0 +1,282 @@
+package net.newbiehacker.commodorej;
+
+import java.util.*;
+
+/**
+ * A channel list (such as the ban list or the except list) indexed so that the entries matching a hostmask can be found without
+ * matching it against every entry<br />
+ * Entries are kept by their folded mask, so one can be removed without searching for it. For matching, entries are sorted by the
+ * host part of their mask:
+ * <ul>
+ * <li>a host without wildcards (e.g. *!*@host.example.com) is looked up directly</li>
+ * <li>a host which is a wildcard followed by a domain (e.g. *!*@*.example.com) is looked up by each of the domains of the hostmask</li>
+ * <li>a host which is an address or cloak followed by a wildcard (e.g. *!*@192.168.* or *!*@user/*) is looked up by each of the
+ * prefixes of the hostmask that end in a '.', ':' or '/'</li>
+ * <li>a mask with a host of * and a nick without wildcards (e.g. nick!*@*) is looked up by the nick of the hostmask</li>
+ * <li>anything else is matched against every hostmask, as before</li>
+ * </ul>
+ * The entries found are then matched against the whole hostmask. Masks and hostmasks are compared using the server's case mapping.
+ * Extended bans (e.g. $a:account) are kept in the list but never match a hostmask.
+ *
+ * @author newbiehacker
+ */
+final class MaskList {
+    private final Session session;
+    private final Map<String, Mask> byMask;
+    private final Map<String, Set<Mask>> exact, suffixes, prefixes, nicks;
+    private final Set<Mask> globs;
+    private CaseMapping mapping;
+    private long seq;
+
+    MaskList(Session session) {
+        this.session = session;
+        this.byMask = new LinkedHashMap<String, Mask>();
+        this.exact = new HashMap<String, Set<Mask>>();
+        this.suffixes = new HashMap<String, Set<Mask>>();
+        this.prefixes = new HashMap<String, Set<Mask>>();
+        this.nicks = new HashMap<String, Set<Mask>>();
+        this.globs = new LinkedHashSet<Mask>();
+        this.mapping = session.getCaseMapping();
+    }
+
+    /**
+     * Adds the specified entry, replacing any entry with the same mask
+     *
+     * @param e the entry
+     */
+    synchronized void add(ChannelListEntry e) {
+        checkMapping();
+        Mask m = new Mask(e, mapping.fold(e.getMask()), seq++);
+        removeFolded(m.pattern);
+        byMask.put(m.pattern, m);
+        index(m);
+    }
+
+    /**
+     * Removes the entry with the specified mask
+     *
+     * @param mask the mask of the entry
+     * @return the entry which was removed, or null if there wasn't one
+     */
+    synchronized ChannelListEntry remove(String mask) {
+        checkMapping();
+        return removeFolded(mapping.fold(mask));
+    }
+
+    private ChannelListEntry removeFolded(String pattern) {
+        Mask m = byMask.remove(pattern);
+        if (m == null)
+            return null;
+        if (m.bucket == null) {
+            globs.remove(m);
+        } else {
+            Set<Mask> b = m.index.get(m.bucket);
+            b.remove(m);
+            if (b.isEmpty())
+                m.index.remove(m.bucket);
+        }
+        return m.entry;
+    }
+
+    synchronized void clear() {
+        byMask.clear();
+        exact.clear();
+        suffixes.clear();
+        prefixes.clear();
+        nicks.clear();
+        globs.clear();
+    }
+
+    synchronized int size() {
+        return byMask.size();
+    }
+
+    /**
+     * Returns the entries in this list, in the order they were added
+     *
+     * @return the entries in this list
+     */
+    synchronized List<ChannelListEntry> getEntries() {
+        List<ChannelListEntry> l = new ArrayList<ChannelListEntry>(byMask.size());
+        for (Mask m : byMask.values())
+            l.add(m.entry);
+        return l;
+    }
+
+    /**
+     * Returns whether any entry in this list matches the specified hostmask
+     *
+     * @param hostmask the hostmask (e.g. nick!login@host)
+     * @return whether any entry in this list matches the specified hostmask
+     */
+    synchronized boolean matches(String hostmask) {
+        return find(hostmask, true) != null;
+    }
+
+    /**
+     * Returns the entries in this list which match the specified hostmask, in the order they were added
+     *
+     * @param hostmask the hostmask (e.g. nick!login@host)
+     * @return the entries in this list which match the specified hostmask
+     */
+    synchronized List<ChannelListEntry> getMatching(String hostmask) {
+        List<Mask> found = find(hostmask, false);
+        if (found == null)
+            return Collections.emptyList();
+        Collections.sort(found);
+        List<ChannelListEntry> l = new ArrayList<ChannelListEntry>(found.size());
+        for (Mask m : found)
+            l.add(m.entry);
+        return l;
+    }
+
+    /**
+     * Returns the entries which match the specified hostmask, or just the first one we find if that's all we want to know
+     *
+     * @return the entries which match, or null if none do
+     */
+    private List<Mask> find(String hostmask, boolean first) {
+        checkMapping();
+        String s = mapping.fold(hostmask);
+        String host = s.substring(s.lastIndexOf('@') + 1);
+        int bang = s.indexOf('!');
+        List<Mask> found = collect(nicks.get(bang == -1 ? s : s.substring(0, bang)), s, first, null);
+        if (found == null || !first)
+            found = collect(exact.get(host), s, first, found);
+        for (int i = 0; i < host.length() && (found == null || !first); i++) {
+            char c = host.charAt(i);
+            if (c == '.')
+                found = collect(suffixes.get(host.substring(i)), s, first, found);
+            if (c == '.' || c == ':' || c == '/')
+                found = collect(prefixes.get(host.substring(0, i + 1)), s, first, found);
+        }
+        if (found == null || !first)
+            found = collect(globs, s, first, found);
+        return found;
+    }
+
+    private static List<Mask> collect(Collection<Mask> masks, String s, boolean first, List<Mask> found) {
+        if (masks == null)
+            return found;
+        for (Mask m : masks) {
+            if (m.extended || !matches(m.pattern, s))
+                continue;
+            if (found == null)
+                found = new ArrayList<Mask>();
+            found.add(m);
+            if (first)
+                break;
+        }
+        return found;
+    }
+
+    /**
+     * Returns whether the specified String matches the specified pattern, where '*' matches any number of characters and '?' matches
+     * any one character
+     *
+     * @param pattern the pattern
+     * @param s       the String
+     * @return whether the specified String matches the specified pattern
+     */
+    static boolean matches(String pattern, String s) {
+        int p = 0, i = 0, star = -1, mark = 0;
+        final int plen = pattern.length(), len = s.length();
+        while (i < len) {
+            if (p < plen && (pattern.charAt(p) == '?' || pattern.charAt(p) == s.charAt(i))) {
+                p++;
+                i++;
+            } else if (p < plen && pattern.charAt(p) == '*') {
+                // Remember where the star was, so that we can let it swallow one more character if what follows doesn't match
+                star = p++;
+                mark = i;
+            } else if (star != -1) {
+                p = star + 1;
+                i = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < plen && pattern.charAt(p) == '*')
+            p++;
+        return p == plen;
+    }
+
+    private void index(Mask m) {
+        String host = m.pattern.substring(m.pattern.lastIndexOf('@') + 1);
+        int wild = wildcards(host), bang = m.pattern.indexOf('!');
+        if (m.extended || m.pattern.indexOf('@') == -1) {
+            globs.add(m);
+        } else if (host.equals("*") && bang > 0 && wildcards(m.pattern.substring(0, bang)) == 0) {
+            add(nicks, m.pattern.substring(0, bang), m);
+        } else if (wild == 0) {
+            add(exact, host, m);
+        } else if (wild == 1 && host.length() > 1 && host.charAt(0) == '*' && host.charAt(1) == '.') {
+            add(suffixes, host.substring(1), m);
+        } else if (wild == 1 && host.length() > 1 && host.charAt(host.length() - 1) == '*' && isBoundary(host.charAt(host.length() - 2))) {
+            add(prefixes, host.substring(0, host.length() - 1), m);
+        } else {
+            globs.add(m);
+        }
+    }
+
+    private static void add(Map<String, Set<Mask>> index, String key, Mask m) {
+        Set<Mask> b = index.get(key);
+        if (b == null)
+            index.put(key, b = new LinkedHashSet<Mask>());
+        b.add(m);
+        m.index = index;
+        m.bucket = key;
+    }
+
+    private static int wildcards(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++)
+            if (s.charAt(i) == '*' || s.charAt(i) == '?')
+                n++;
+        return n;
+    }
+
+    private static boolean isBoundary(char c) {
+        return c == '.' || c == ':' || c == '/';
+    }
+
+    /**
+     * Folds and indexes everything again if the server's case mapping has changed since we did
+     */
+    private void checkMapping() {
+        CaseMapping cm = session.getCaseMapping();
+        if (cm == mapping)
+            return;
+        mapping = cm;
+        List<Mask> all = new ArrayList<Mask>(byMask.values());
+        clear();
+        for (Mask m : all) {
+            Mask n = new Mask(m.entry, cm.fold(m.entry.getMask()), m.seq);
+            byMask.put(n.pattern, n);
+            index(n);
+        }
+    }
+
+    /**
+     * An entry along with its folded mask and where it is indexed
+     */
+    private static final class Mask implements Comparable<Mask> {
+        final ChannelListEntry entry;
+        final String pattern;
+        final long seq;
+        final boolean extended;
+        Map<String, Set<Mask>> index;
+        String bucket;
+
+        Mask(ChannelListEntry entry, String pattern, long seq) {
+            this.entry = entry;
+            this.pattern = pattern;
+            this.seq = seq;
+            this.extended = pattern.length() > 0 && (pattern.charAt(0) == '$' || pattern.charAt(0) == '~');
+        }
+
+        public int compareTo(Mask o) {
+            return seq < o.seq ? -1 : seq == o.seq ? 0 : 1;
+        }
+    }
+}
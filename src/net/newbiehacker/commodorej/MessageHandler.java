@@ -0,0 +1,19 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * A class implementing this can be registered with a Session's HandlerRegistry so that it is called whenever a line with a certain command or numeric is received<br />
+ * Handlers are called on the thread that reads from the server, so they should return quickly and must not keep hold of the IrcMessage they are passed.
+ * Lines without a prefix, which come from the server we are connected to, are passed to handlers too
+ *
+ * @author newbiehacker
+ * @see net.newbiehacker.commodorej.HandlerRegistry
+ */
+public interface MessageHandler {
+    /**
+     * Called whenever a line that this handler is registered for is received
+     *
+     * @param source  the session that received the line
+     * @param message the parsed line
+     */
+    void handle(Session source, IrcMessage message);
+}
@@ -1,7 +1,5 @@
 package net.newbiehacker.commodorej;
 
-import java.util.Date;
-
 /**
  * This class contains miscellaneous methods which were designed for use by the library
  * @author newbiehacker
@@ -12,23 +10,14 @@ public final class Misc {
     static boolean isChannel(Session source, String s) {
         if (s == null || s.isEmpty())
             return false;
-        char c = s.charAt(0);
-        char[] chanprefixes = new char[]{'#'}; // Default
-        if (source.hasParameter("CHANTYPES"))
-            chanprefixes = source.getParameter("CHANTYPES").toCharArray();
-        for (char c1 : chanprefixes)
-            if (c == c1)
-                return true;
-        return false;
+        return source.getServerSupport().isChannelType(s.charAt(0));
     }
 
     static Node getNode(Session source, String s) {
         if (isChannel(source, s) && source.onChannel(s))
             return source.getChannel(s);
-        else if (source.containsUser(s))
-            return source.getUser(s);
-        else
-            return new MiscNode(s);
+        User u = source.findUser(s);
+        return u != null ? u : new MiscNode(s);
     }
 
     /**
@@ -55,7 +44,7 @@ public final class Misc {
         char[] chars = arr.toCharArray();
         int mode = 0;
         final int ADD = 0, DEL = 1;
-        main_loop:
+        final ServerSupport ss = owner.getServerSupport();
         for (char c : chars) {
             if (c == '+')
                 mode = ADD;
@@ -64,90 +53,54 @@ public final class Misc {
             else {
                 if (target.getType() == Node.Type.CHANNEL) {
                     Channel chan = (Channel) target;
-                    String chanmodes = owner.getParameter("CHANMODES");
-                    if (chanmodes == null)
-                        throw new RuntimeException("Server doesn't support CHANMODES");
-                    String[] types = chanmodes.split(",");
-                    if (types.length != 4)
-                        throw new RuntimeException("This library does not understand the CHANMODES parameter from this server");
-                    // Parse A-Modes (Modes which modify lists such as b, I & e)
-                    char[] modes = types[0].toCharArray();
-                    for (char m : modes) {
-                        if (c == m) {
+                    ServerSupport.ModeType type = ss.getModeType(c);
+                    if (type == null)
+                        continue;
+                    switch (type) {
+                        case LIST:
+                            // Modes which modify lists such as b, I & e
+                            MaskList list = chan.lists.get(c);
+                            String mask = modedata[i++];
+                            if (list == null)
+                                break;
                             if (mode == ADD)
-                                chan.lists.get(c).add(new ChannelListEntry(modedata[i++], sender.toString(), (int) new Date().getTime()));
-                            else if (mode == DEL) {
-                                for (ChannelListEntry cle : chan.lists.get(c))
-                                    if (cle.getMask().toLowerCase().equals(modedata[i].toLowerCase())) {
-                                        chan.lists.get(c).remove(cle);
-                                        continue main_loop;
-                                    }
-                            }
-                            continue main_loop;
-                        }
-                    }
-                    // Parse B-Modes (Modes which change channel settings and take a parameter when set and unset)
-                    modes = types[1].toCharArray();
-                    for (char m : modes) {
-                        if (c == m) {
+                                list.add(new ChannelListEntry(mask, sender.toString(), owner.getMessageTime() / 1000));
+                            else if (mode == DEL)
+                                list.remove(mask);
+                            break;
+                        case ALWAYS_PARAMETER:
+                            // Modes which change channel settings and take a parameter when set and unset
+                            String param = modedata[i++];
                             if (mode == ADD)
-                                chan.modes.put(c, modedata[i++]);
+                                chan.modes.put(c, param);
                             else if (mode == DEL)
                                 chan.modes.remove(c);
-                            continue main_loop;
-                        }
-                    }
-                    // Parse C-Modes (Modes which change channel settings and take a parameter when set, but not when unset)
-                    modes = types[2].toCharArray();
-                    for (int idx1 = 0; idx1 < modes.length; idx1++) {
-                        char m = modes[idx1];
-                        if (c == m) {
+                            break;
+                        case SET_PARAMETER:
+                            // Modes which change channel settings and take a parameter when set, but not when unset
                             if (mode == ADD)
                                 chan.modes.put(c, modedata[i++]);
                             else if (mode == DEL)
                                 chan.modes.remove(c);
-                            continue main_loop;
-                        }
-                    }
-                    // Parse D-Modes (Modes which change channels settings and take no parameters)
-                    modes = types[3].toCharArray();
-                    for (int idx1 = 0; idx1 < modes.length; idx1++) {
-                        char m = modes[idx1];
-                        if (c == m) {
-                            if (mode == ADD) {
+                            break;
+                        case NO_PARAMETER:
+                            // Modes which change channels settings and take no parameters
+                            if (mode == ADD)
                                 chan.modes.put(c, null);
-                            } else if (mode == DEL)
+                            else if (mode == DEL)
                                 chan.modes.remove(c);
-                            continue main_loop;
-                        }
-                    }
-                    // See if it's an access change on a user
-                    String prefix = owner.getParameter("PREFIX");
-                    int sIdx = prefix.indexOf('(');
-                    int eIdx = prefix.indexOf(')');
-                    String pModes = prefix.substring(sIdx + 1, eIdx);
-                    char[] pc = pModes.toCharArray();
-                    for (int idx1 = 0; idx1 < modes.length; idx1++) {
-                        char m = pc[idx1];
-                        if (c == m) {
-                            User u = owner.getUser(modedata[i++]);
-                            if (mode == ADD) {
-                                char oldMode = (char) 255;
-                                if (chan.userModes.containsKey(u))
-                                    oldMode = chan.userModes.get(u);
-                                int oidx = -1;
-                                if (oldMode != 255)
-                                    for (int idx2 = 0; idx2 < pc.length; idx2++)
-                                        if (pc[idx2] == oldMode) {
-                                            oidx = idx2;
-                                            break;
-                                        }
-                                if (oldMode == 255 || idx1 > oidx)
-                                    chan.userModes.put(u, c);
-                            } else
-                                chan.userModes.remove(u);
-                            continue main_loop;
-                        }
+                            break;
+                        case PREFIX:
+                            // An access change on a user
+                            User u = owner.findUser(modedata[i++]);
+                            if (u != null) {
+                                int bit = ss.getPrefixes().modeBit(c);
+                                if (mode == ADD)
+                                    chan.addPrefixes(u, bit);
+                                else
+                                    chan.removePrefixes(u, bit);
+                            }
+                            break;
                     }
                 } else if (target.getType() == Node.Type.USER) {
                     User u = (User) target;
@@ -0,0 +1,330 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCNetjoinEvent;
+import net.newbiehacker.commodorej.event.IRCNetsplitEvent;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices when the link between two servers breaks or is made again, and gathers the quits and joins of the users on the far side
+ * of it into one IRCNetsplitEvent or IRCNetjoinEvent<br />
+ * A netsplit is recognised either by the server putting its quits in a "netsplit" batch, or by the quit messages being the names of
+ * the two servers (e.g. "*.net *.split"). The quits of a split are gathered until the server ends the batch, or until none have come
+ * for a couple of seconds. Users who quit in a split are remembered for a while, so that their joins when the servers link again
+ * can be gathered into a netjoin in the same way.<br />
+ * The session's reading thread records the quits and joins while the shared timer fires the events, so this class is synchronized.
+ * The events are gathered up under the lock and fired once it has been released, and those fired on the timer don't wait for
+ * room in full mailboxes, so that a slow listener can't hold up the timer or the reading thread behind it
+ *
+ * @author newbiehacker
+ */
+final class Netsplits implements Runnable {
+    private static final long QUIET = 2000;
+    private static final long REMEMBER = 30 * 60 * 1000;
+    private static final int MAX_SPLITS = 16;
+    private final Session session;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Split> splits;
+    private final Map<String, Split> remembered;
+    private final List<IRCEvent> ready;
+    private boolean scheduled;
+    private long due;
+
+    Netsplits(Session session, ScheduledExecutorService timer) {
+        this.session = session;
+        this.timer = timer;
+        this.splits = new LinkedHashMap<String, Split>();
+        this.remembered = new HashMap<String, Split>();
+        this.ready = new ArrayList<IRCEvent>();
+    }
+
+    /**
+     * Returns whether the specified quit message is the names of two servers, as is sent for the users lost in a netsplit
+     *
+     * @param message the quit message
+     * @return whether the specified quit message is the names of two servers
+     */
+    static boolean isSplitMessage(String message) {
+        int sp = message.indexOf(' ');
+        return sp > 0 && sp == message.lastIndexOf(' ') && isServerName(message, 0, sp) && isServerName(message, sp + 1, message.length());
+    }
+
+    private static boolean isServerName(String s, int start, int end) {
+        if (end - start < 3 || s.charAt(start) == '.' || s.charAt(end - 1) == '.')
+            return false;
+        boolean dot = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if (s.charAt(i - 1) == '.')
+                    return false;
+                dot = true;
+            } else if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '*')) {
+                return false;
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * Records the quit of a user if it was part of a netsplit
+     *
+     * @param u        the user which quit
+     * @param message  the quit message
+     * @param channels the channels the user was on
+     * @return whether the quit was part of a netsplit
+     */
+    boolean quit(User u, String message, Channel[] channels) {
+        boolean split = recordQuit(u, message, channels);
+        fireReady(true);
+        return split;
+    }
+
+    private synchronized boolean recordQuit(User u, String message, Channel[] channels) {
+        Split split;
+        List<String> params = session.getBatchParameters("netsplit");
+        if (params != null) {
+            split = split(params);
+        } else if (isSplitMessage(message)) {
+            int sp = message.indexOf(' ');
+            split = split(message.substring(0, sp), message.substring(sp + 1));
+        } else {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        split.quits.users.add(u);
+        split.quits.channels.addAll(Arrays.asList(channels));
+        split.quits.last = split.last = now;
+        remembered.put(key(u), split);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Records the join of a user if it was part of a netjoin, which it is if the user quit in a netsplit not long ago
+     *
+     * @param u       the user which joined
+     * @param channel the channel the user joined
+     * @return whether the join was part of a netjoin
+     */
+    boolean join(User u, Channel channel) {
+        boolean netjoin = recordJoin(u, channel);
+        fireReady(true);
+        return netjoin;
+    }
+
+    private synchronized boolean recordJoin(User u, Channel channel) {
+        Split split;
+        List<String> params = session.getBatchParameters("netjoin");
+        if (params != null)
+            split = split(params);
+        else if ((split = remembered.get(key(u))) == null)
+            return false;
+        long now = System.currentTimeMillis();
+        split.joins.users.add(u);
+        split.joins.channels.add(channel);
+        split.joins.last = split.last = now;
+        schedule();
+        return true;
+    }
+
+    /**
+     * Called when the server ends a batch, so that the netsplit or netjoin it held can be fired straight away
+     *
+     * @param type   the type of the batch
+     * @param params the parameters of the batch
+     * @return whether the batch was a netsplit or a netjoin
+     */
+    boolean end(String type, List<String> params) {
+        boolean quits = "netsplit".equalsIgnoreCase(type);
+        if (!quits && !"netjoin".equalsIgnoreCase(type))
+            return false;
+        synchronized (this) {
+            Split split = splits.get(name(params));
+            if (split != null) {
+                if (quits)
+                    fireSplit(split);
+                else
+                    fireJoin(split);
+            }
+        }
+        fireReady(true);
+        return true;
+    }
+
+    /**
+     * Fires whatever has been gathered and forgets every split, as when the session is closed
+     */
+    void reset() {
+        synchronized (this) {
+            for (Split split : splits.values()) {
+                fireSplit(split);
+                fireJoin(split);
+            }
+            splits.clear();
+            remembered.clear();
+        }
+        fireReady(true);
+    }
+
+    public void run() {
+        synchronized (this) {
+            scheduled = false;
+            long now = System.currentTimeMillis();
+            boolean waiting = false;
+            for (Iterator<Split> it = splits.values().iterator(); it.hasNext(); ) {
+                Split split = it.next();
+                if (!split.quits.isEmpty() && now - split.quits.last >= QUIET)
+                    fireSplit(split);
+                if (!split.joins.isEmpty() && now - split.joins.last >= QUIET)
+                    fireJoin(split);
+                if (!split.quits.isEmpty() || !split.joins.isEmpty()) {
+                    waiting = true;
+                } else if (now - split.last >= REMEMBER) {
+                    remembered.values().removeAll(Collections.singleton(split));
+                    it.remove();
+                }
+            }
+            if (waiting)
+                schedule();
+            else if (!splits.isEmpty())
+                schedule(REMEMBER);
+        }
+        fireReady(false);
+    }
+
+    /**
+     * Fires the events gathered so far, which must be done without holding our lock
+     *
+     * @param mayWait whether we may wait for room in full mailboxes, which we mustn't on the timer
+     */
+    private void fireReady(boolean mayWait) {
+        IRCEvent[] events;
+        synchronized (this) {
+            if (ready.isEmpty())
+                return;
+            events = ready.toArray(new IRCEvent[ready.size()]);
+            ready.clear();
+        }
+        for (IRCEvent e : events) {
+            if (mayWait)
+                session.parent.fireEvent(e);
+            else
+                session.parent.fireEventNow(e);
+        }
+    }
+
+    private void schedule() {
+        schedule(QUIET);
+    }
+
+    private void schedule(long delay) {
+        long at = System.currentTimeMillis() + delay;
+        if (scheduled && due <= at)
+            return;
+        scheduled = true;
+        due = at;
+        try {
+            timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // We have been stopped
+            scheduled = false;
+        }
+    }
+
+    private Split split(List<String> params) {
+        return split(params.size() > 0 ? params.get(0) : "*", params.size() > 1 ? params.get(1) : "*");
+    }
+
+    private Split split(String server, String remoteServer) {
+        String name = server + ' ' + remoteServer;
+        Split split = splits.get(name);
+        if (split == null) {
+            // Splits are forgotten once nobody has quit or joined in them for a while, but a flapping link could make many before then
+            if (splits.size() >= MAX_SPLITS) {
+                Split oldest = splits.values().iterator().next();
+                fireSplit(oldest);
+                fireJoin(oldest);
+                remembered.values().removeAll(Collections.singleton(oldest));
+                splits.remove(oldest.server + ' ' + oldest.remoteServer);
+            }
+            splits.put(name, split = new Split(server, remoteServer));
+        }
+        return split;
+    }
+
+    private static String name(List<String> params) {
+        return (params.size() > 0 ? params.get(0) : "*") + ' ' + (params.size() > 1 ? params.get(1) : "*");
+    }
+
+    /**
+     * Returns the key we remember a user who quit in a split under<br />
+     * Their login and host are part of it, so that somebody else taking their nick isn't mistaken for them rejoining
+     */
+    private String key(User u) {
+        return session.users.fold(u.nick) + '!' + u.name + '@' + u.host;
+    }
+
+    private void fireSplit(Split split) {
+        Gathered g = split.quits;
+        if (g.isEmpty())
+            return;
+        if (session.parent.isWanted(IRCEvent.Type.NETSPLIT))
+            ready.add(new IRCNetsplitEvent(session, split.server, split.remoteServer, new ArrayList<User>(g.users), new ArrayList<Channel>(g.channels)));
+        g.clear();
+    }
+
+    private void fireJoin(Split split) {
+        Gathered g = split.joins;
+        if (g.isEmpty())
+            return;
+        if (session.parent.isWanted(IRCEvent.Type.NETJOIN))
+            ready.add(new IRCNetjoinEvent(session, split.server, split.remoteServer, new ArrayList<User>(g.users), new ArrayList<Channel>(g.channels)));
+        // Those who have rejoined are back, so another join of theirs is only a join
+        for (User u : g.users)
+            remembered.remove(key(u));
+        g.clear();
+    }
+
+    /**
+     * A pair of servers which split, with the quits and joins we have yet to fire for it
+     */
+    private static final class Split {
+        final String server, remoteServer;
+        final Gathered quits, joins;
+        long last;
+
+        Split(String server, String remoteServer) {
+            this.server = server;
+            this.remoteServer = remoteServer;
+            this.quits = new Gathered();
+            this.joins = new Gathered();
+        }
+    }
+
+    /**
+     * The users and channels of a netsplit or netjoin, in the order we saw them
+     */
+    private static final class Gathered {
+        final Set<User> users;
+        final Set<Channel> channels;
+        long last;
+
+        Gathered() {
+            this.users = new LinkedHashSet<User>();
+            this.channels = new LinkedHashSet<Channel>();
+        }
+
+        boolean isEmpty() {
+            return users.isEmpty();
+        }
+
+        void clear() {
+            users.clear();
+            channels.clear();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package net.newbiehacker.commodorej;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the lines a Session sends until the flood controls allow them to be written, so that a burst of output doesn't get us
+ * disconnected for flooding<br />
+ * Lines wait in a lane for their SendPriority, and within a lane the targets of the lines take turns, so one busy channel can't
+ * hold up the rest. A line which is the same as one already waiting in the URGENT, CONTROL or BULK lanes is dropped, as sending it
+ * twice would do nothing more; messages are never dropped.<br />
+ * Two token buckets limit how many lines and how many bytes we send per second, after an initial burst.<br />
+ * The lines which can be sent together are gathered into one buffer and written at once. Lines may also be held back for up to
+ * the latency to gather more of them, except URGENT ones which are always flushed straight away.
+ *
+ * @author newbiehacker
+ */
+final class OutboundQueue implements Runnable {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int MIN_PIECE = 16;
+    private static final int MAX_WRITE = 16384;
+    private final Session session;
+    private final ScheduledExecutorService timer;
+    private final Lane[] lanes;
+    private final TokenBucket lines, bytes;
+    private IoSession io;
+    private final List<Line> batch;
+    private boolean scheduled, detached;
+    private int size, queuedBytes;
+    private long latency;
+    private long sent, writes, dropped, totalWait, maxWait;
+
+    OutboundQueue(Session session, ScheduledExecutorService timer) {
+        this.session = session;
+        this.timer = timer;
+        SendPriority[] p = SendPriority.values();
+        lanes = new Lane[p.length];
+        for (int i = 0; i < p.length; i++)
+            lanes[i] = new Lane(p[i] != SendPriority.MESSAGE);
+        lines = new TokenBucket(2, 5);
+        bytes = new TokenBucket(0, 0);
+        batch = new ArrayList<Line>();
+    }
+
+    /**
+     * Adds a line to be sent
+     *
+     * @param text     the line, without its line ending
+     * @param priority the priority of the line
+     */
+    synchronized void add(String text, SendPriority priority) {
+        queue(new Line(text, target(text), text.getBytes(session.getCharset()), null, 0, 0), priority);
+        added(priority);
+    }
+
+    /**
+     * Adds a message to be sent, split into as many lines as it takes to fit each within the specified number of bytes<br />
+     * The body is encoded once and each line refers to its part of it. Lines are split at line breaks in the body and otherwise at
+     * the last space that fits, or failing that between two characters, so that no character is cut in half
+     *
+     * @param head     the start of each line (e.g. "PRIVMSG #channel :")
+     * @param body     the message which is split over the lines
+     * @param priority the priority of the lines
+     * @param budget   the most bytes each line may have, not counting its line ending
+     */
+    synchronized void add(String head, String body, SendPriority priority, int budget) {
+        final Charset cs = session.getCharset();
+        final byte[] h = head.getBytes(cs);
+        final byte[] b = body.getBytes(cs);
+        final String target = target(head);
+        final int max = budget - h.length;
+        if (max < MIN_PIECE) {
+            // There's no sensible room left for the body, so let the server cut it short
+            queue(new Line(null, target, h, b, 0, b.length), priority);
+            added(priority);
+            return;
+        }
+        // In UTF-8 a character continues for as long as the bytes look like 10xxxxxx, in single byte charsets every byte is a character
+        final boolean utf8 = cs.name().equals("UTF-8");
+        int start = 0;
+        while (start < b.length) {
+            int limit = Math.min(b.length, start + max);
+            int end = start;
+            while (end < limit && b[end] != '\r' && b[end] != '\n')
+                end++;
+            int next;
+            if (end < limit) {
+                next = end + (b[end] == '\r' && end + 1 < b.length && b[end + 1] == '\n' ? 2 : 1);
+            } else if (end == b.length) {
+                next = end;
+            } else {
+                if (utf8)
+                    while (end > start && (b[end] & 0xC0) == 0x80)
+                        end--;
+                int sp = end;
+                while (sp > start && b[sp] != ' ')
+                    sp--;
+                if (sp > start) {
+                    end = sp;
+                    next = sp + 1;
+                } else {
+                    if (end == start)
+                        end = limit;
+                    next = end;
+                }
+            }
+            if (end > start)
+                queue(new Line(null, target, h, b, start, end - start), priority);
+            start = next;
+        }
+        added(priority);
+    }
+
+    private void queue(Line l, SendPriority priority) {
+        if (!lanes[priority.ordinal()].add(l)) {
+            dropped++;
+            return;
+        }
+        size++;
+        queuedBytes += l.length();
+    }
+
+    private String target(String text) {
+        int s = text.indexOf(' ');
+        if (s == -1)
+            return "";
+        int e = text.indexOf(' ', s + 1);
+        return session.getCaseMapping().fold(e == -1 ? text.substring(s + 1) : text.substring(s + 1, e));
+    }
+
+    /**
+     * Starts writing lines to the specified connection, including any which were added before it was opened
+     */
+    synchronized void open(IoSession io) {
+        this.io = io;
+        flush();
+    }
+
+    /**
+     * Starts sending lines without a connection, as when a TrafficReplay plays a session back<br />
+     * The lines go through the flood controls and to the session's recorder as usual, but are then thrown away
+     */
+    synchronized void openDetached() {
+        this.io = null;
+        this.detached = true;
+        flush();
+    }
+
+    /**
+     * Stops writing lines and forgets those which are waiting
+     */
+    synchronized void close() {
+        io = null;
+        detached = false;
+        for (Lane l : lanes)
+            l.clear();
+        size = 0;
+        queuedBytes = 0;
+    }
+
+    synchronized void setLimits(double linesPerSecond, int lineBurst, double bytesPerSecond, int byteBurst) {
+        lines.set(linesPerSecond, lineBurst);
+        bytes.set(bytesPerSecond, byteBurst);
+        flush();
+    }
+
+    public void run() {
+        synchronized (this) {
+            scheduled = false;
+            flush();
+        }
+    }
+
+    /**
+     * Flushes straight away if the lines just added shouldn't wait for the next tick, and otherwise makes sure a tick is coming
+     */
+    private void added(SendPriority priority) {
+        if (latency == 0 || priority == SendPriority.URGENT || queuedBytes >= MAX_WRITE)
+            flush();
+        else
+            schedule(latency);
+    }
+
+    private void schedule(long delay) {
+        if (scheduled)
+            return;
+        scheduled = true;
+        try {
+            timer.schedule(this, delay, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            // We have been stopped
+            scheduled = false;
+        }
+    }
+
+    /**
+     * Writes as many of the waiting lines as the flood controls allow, gathered into as few buffers as we can
+     */
+    private void flush() {
+        if (io == null && !detached)
+            return;
+        final List<Line> batch = this.batch;
+        int batchBytes = 0;
+        while (size > 0) {
+            Lane lane = null;
+            for (Lane l : lanes)
+                if (!l.isEmpty()) {
+                    lane = l;
+                    break;
+                }
+            Line l = lane.peek();
+            long now = System.nanoTime();
+            long wait = Math.max(lines.delay(now, 1), bytes.delay(now, l.length()));
+            if (wait > 0) {
+                schedule(wait);
+                break;
+            }
+            if (batchBytes + l.length() > MAX_WRITE && !batch.isEmpty()) {
+                write(batch, batchBytes);
+                batchBytes = 0;
+            }
+            lane.poll();
+            size--;
+            queuedBytes -= l.length();
+            lines.take(1);
+            bytes.take(l.length());
+            long waited = (now - l.queued) / 1000000;
+            totalWait += waited;
+            if (waited > maxWait)
+                maxWait = waited;
+            sent++;
+            batch.add(l);
+            batchBytes += l.length();
+        }
+        if (!batch.isEmpty())
+            write(batch, batchBytes);
+    }
+
+    private void write(List<Line> batch, int length) {
+        TrafficRecorder recorder = session.recorder;
+        if (recorder != null)
+            for (Line l : batch)
+                recorder.recordOut(l.head, l.body, l.off, l.len);
+        if (io != null) {
+            // MINA hands out its buffers from a pool, so gathering the lines costs one copy and no garbage
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            for (Line l : batch)
+                l.writeTo(buf);
+            buf.flip();
+            io.write(buf);
+        }
+        writes++;
+        batch.clear();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long getWrites() {
+        return writes;
+    }
+
+    synchronized void setLatency(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("latency");
+        latency = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    synchronized long getSent() {
+        return sent;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized long getAverageWait() {
+        return sent == 0 ? 0 : totalWait / sent;
+    }
+
+    synchronized long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * A line waiting to be sent, made of its head and, for a piece of a message, a part of the encoded message
+     */
+    private static final class Line {
+        final String text, target;
+        final byte[] head, body;
+        final int off, len;
+        final long queued;
+
+        Line(String text, String target, byte[] head, byte[] body, int off, int len) {
+            this.text = text;
+            this.target = target;
+            this.head = head;
+            this.body = body;
+            this.off = off;
+            this.len = len;
+            this.queued = System.nanoTime();
+        }
+
+        int length() {
+            return head.length + len + 2;
+        }
+
+        void writeTo(ByteBuffer buf) {
+            buf.put(head);
+            if (body != null)
+                buf.put(body, off, len);
+            buf.put(CRLF);
+        }
+    }
+
+    /**
+     * The lines of one priority, by target, with the targets taking turns
+     */
+    private static final class Lane {
+        private final LinkedHashMap<String, ArrayDeque<Line>> targets;
+        private final Set<String> waiting;
+
+        Lane(boolean dedupe) {
+            targets = new LinkedHashMap<String, ArrayDeque<Line>>();
+            waiting = dedupe ? new HashSet<String>() : null;
+        }
+
+        boolean add(Line l) {
+            if (waiting != null && l.text != null && !waiting.add(l.text))
+                return false;
+            ArrayDeque<Line> q = targets.get(l.target);
+            if (q == null)
+                targets.put(l.target, q = new ArrayDeque<Line>());
+            q.add(l);
+            return true;
+        }
+
+        boolean isEmpty() {
+            return targets.isEmpty();
+        }
+
+        Line peek() {
+            return targets.values().iterator().next().peek();
+        }
+
+        void poll() {
+            Iterator<Map.Entry<String, ArrayDeque<Line>>> it = targets.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<Line>> e = it.next();
+            Line l = e.getValue().poll();
+            it.remove();
+            // Send the next target's line before this one's next
+            if (!e.getValue().isEmpty())
+                targets.put(e.getKey(), e.getValue());
+            if (waiting != null && l.text != null)
+                waiting.remove(l.text);
+        }
+
+        void clear() {
+            targets.clear();
+            if (waiting != null)
+                waiting.clear();
+        }
+    }
+
+    /**
+     * Allows a number of things per second, with an initial burst
+     */
+    private static final class TokenBucket {
+        private double rate, burst, tokens;
+        private long last;
+
+        TokenBucket(double rate, int burst) {
+            set(rate, burst);
+        }
+
+        void set(double rate, int burst) {
+            if (rate < 0 || burst < 0)
+                throw new IllegalArgumentException("Flood limits can't be negative");
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.last = System.nanoTime();
+        }
+
+        /**
+         * Returns how long to wait, in nanoseconds, before the specified number of tokens can be taken
+         */
+        long delay(long now, int cost) {
+            if (rate == 0)
+                return 0;
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+            // Something bigger than the whole burst only has to wait until the bucket is full
+            double need = Math.min(cost, burst) - tokens;
+            return need <= 0 ? 0 : (long) Math.ceil(need * 1e9 / rate);
+        }
+
+        void take(int cost) {
+            if (rate != 0)
+                tokens -= cost;
+        }
+    }
+}
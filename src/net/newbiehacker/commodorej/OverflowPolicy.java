@@ -0,0 +1,29 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * Specifies what happens when an event is fired while a listener's mailbox is already full
+ *
+ * @author newbiehacker
+ * @see net.newbiehacker.commodorej.ConnectionManager#registerListener(net.newbiehacker.commodorej.event.IRCEventListener, int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /**
+     * The session firing the event waits until the listener has made room for it.
+     * This slows down every session and every other listener to the pace of this listener. The few events fired on the
+     * connection manager's timer, such as netsplits, are let in over the mailbox's capacity rather than wait
+     */
+    BLOCK,
+    /**
+     * The oldest event waiting in the mailbox is dropped to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * The new event is dropped
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest waiting event of the same type as the new one is dropped and the new one is added to the end of the mailbox,
+     * so the listener only sees the latest of a burst of similar events. If no event of that type is waiting, the oldest event is dropped
+     */
+    COALESCE
+}
@@ -0,0 +1,115 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * The channel prefixes a server supports (e.g. @ for op and + for voice), parsed from the PREFIX parameter<br />
+ * Each prefix is given a bit, with the highest ranking prefix in the lowest bit, so that the prefixes a user has on a channel can be
+ * kept in a single int
+ *
+ * @author newbiehacker
+ */
+final class PrefixTable {
+    /**
+     * The PREFIX we assume if the server doesn't send one
+     */
+    static final PrefixTable DEFAULT = new PrefixTable("(ov)@+");
+
+    private final char[] modes, prefixes;
+    private final int[] modeBits, prefixBits;
+
+    private PrefixTable(String prefix) {
+        int sIdx = prefix.indexOf('(');
+        int eIdx = prefix.indexOf(')');
+        if (sIdx != 0 || eIdx == -1)
+            throw new IllegalArgumentException("Invalid PREFIX: " + prefix);
+        modes = prefix.substring(1, eIdx).toCharArray();
+        prefixes = prefix.substring(eIdx + 1).toCharArray();
+        if (modes.length != prefixes.length || modes.length > 32)
+            throw new IllegalArgumentException("Invalid PREFIX: " + prefix);
+        // Modes and prefixes are kept apart, as a nick may start with a mode letter (e.g. "oscar") but never with a prefix
+        modeBits = new int[128];
+        prefixBits = new int[128];
+        for (int i = 0; i < modes.length; i++) {
+            if (modes[i] < 128)
+                modeBits[modes[i]] = 1 << i;
+            if (prefixes[i] < 128)
+                prefixBits[prefixes[i]] = 1 << i;
+        }
+    }
+
+    /**
+     * Returns the prefix table for the specified PREFIX parameter
+     *
+     * @param prefix the value of the PREFIX parameter (e.g. "(ov)@+"), which may be null
+     * @return the prefix table for the parameter, or the default table if it is missing or can't be understood
+     */
+    static PrefixTable parse(String prefix) {
+        if (prefix == null || prefix.length() == 0)
+            return DEFAULT;
+        try {
+            return new PrefixTable(prefix);
+        } catch (IllegalArgumentException e) {
+            return DEFAULT;
+        }
+    }
+
+    char[] getModes() {
+        return modes;
+    }
+
+    /**
+     * Returns the bit for the specified mode (e.g. 'o')
+     *
+     * @param c the mode
+     * @return the bit for the mode, or 0 if it isn't one
+     */
+    int modeBit(char c) {
+        return c < 128 ? modeBits[c] : 0;
+    }
+
+    /**
+     * Returns the bit for the specified prefix (e.g. '@')
+     *
+     * @param c the prefix
+     * @return the bit for the prefix, or 0 if it isn't one
+     */
+    int prefixBit(char c) {
+        return c < 128 ? prefixBits[c] : 0;
+    }
+
+    /**
+     * Returns the bits for all the prefixes in the specified String, such as the flags of a WHO reply
+     *
+     * @param s the String containing prefixes
+     * @return the bits for all the prefixes in the String
+     */
+    int prefixBits(String s) {
+        int mask = 0;
+        for (int i = 0; i < s.length(); i++)
+            mask |= prefixBit(s.charAt(i));
+        return mask;
+    }
+
+    /**
+     * Returns the highest ranking prefix in the specified bits
+     *
+     * @param mask the prefix bits
+     * @return the highest ranking prefix, or '\u0000' if there are none
+     */
+    char highest(int mask) {
+        return mask == 0 ? '\u0000' : prefixes[Integer.numberOfTrailingZeros(mask)];
+    }
+
+    /**
+     * Returns all the prefixes in the specified bits, highest first
+     *
+     * @param mask the prefix bits
+     * @return all the prefixes in the bits
+     */
+    String toPrefixes(int mask) {
+        StringBuilder sb = new StringBuilder(Integer.bitCount(mask));
+        for (int i = 0; i < prefixes.length; i++)
+            if ((mask & (1 << i)) != 0)
+                sb.append(prefixes[i]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package net.newbiehacker.commodorej;
+
+import java.util.*;
+
+/**
+ * Takes a Session through registering with the server, negotiating the IRCv3 capabilities we want on the way<br />
+ * We ask for the server's capabilities with CAP LS 302 before sending NICK and USER, which makes a server that supports CAP wait for
+ * CAP END before completing our registration. Servers that don't support CAP ignore it or reply with 421 and register us as usual.<br />
+ * The session's reading thread handles the server's replies while any thread may ask for a capability, so the capabilities the
+ * server has and the requests we are waiting on are only touched while holding this object's lock
+ *
+ * @author newbiehacker
+ */
+final class Registration {
+    enum State {
+        /**
+         * We haven't connected yet
+         */
+        CONNECTING,
+        /**
+         * We are agreeing on capabilities with the server
+         */
+        NEGOTIATING,
+        /**
+         * We have sent CAP END (or the server doesn't support CAP) and are waiting for the welcome
+         */
+        REGISTERING,
+        /**
+         * The server has welcomed us
+         */
+        REGISTERED
+    }
+
+    /**
+     * The capabilities we ask for unless told otherwise<br />
+     * echo-message isn't one of them, as the library doesn't tell our own messages coming back apart from anybody else's
+     */
+    static final String[] DEFAULT_CAPABILITIES = {"multi-prefix", "userhost-in-names", "extended-join", "away-notify",
+            "account-tag", "server-time", "batch", "message-tags"};
+
+    private final Session session;
+    private final Set<String> wanted;
+    private final Map<String, String> available;
+    private volatile State state;
+    private int pending;
+
+    Registration(Session session) {
+        this.session = session;
+        this.wanted = new LinkedHashSet<String>(Arrays.asList(DEFAULT_CAPABILITIES));
+        this.available = new LinkedHashMap<String, String>();
+        this.state = State.CONNECTING;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    synchronized Set<String> getWanted() {
+        return new LinkedHashSet<String>(wanted);
+    }
+
+    synchronized void want(String cap, boolean want) {
+        if (want)
+            wanted.add(cap);
+        else
+            wanted.remove(cap);
+    }
+
+    /**
+     * Starts registering, once we're connected
+     */
+    synchronized void start(String nick, String login, String host, String name) {
+        state = State.NEGOTIATING;
+        available.clear();
+        pending = 0;
+        session.sendLine("CAP LS 302", SendPriority.URGENT);
+        session.sendLine("NICK " + nick, SendPriority.URGENT);
+        session.sendLine("USER " + login + " " + host + " " + " *8 :" + name, SendPriority.URGENT);
+    }
+
+    /**
+     * Handles a CAP line from the server
+     */
+    synchronized void handle(IrcMessage m) {
+        String sub = m.getParameter(1);
+        if (sub == null)
+            return;
+        sub = sub.toUpperCase();
+        String list = m.getTrailing();
+        if (list == null)
+            list = "";
+        if (sub.equals("LS")) {
+            // CAP * LS * :caps means more caps are on the way
+            boolean more = m.getParameterCount() > 3 && m.parameterEquals(2, "*");
+            parse(list, available);
+            if (!more && state == State.NEGOTIATING)
+                request();
+        } else if (sub.equals("ACK")) {
+            for (String cap : list.split(" ")) {
+                if (cap.length() == 0)
+                    continue;
+                if (cap.charAt(0) == '-')
+                    session.setCapability(cap.substring(1), false);
+                else
+                    session.setCapability(cap, true);
+            }
+            replied();
+        } else if (sub.equals("NAK")) {
+            replied();
+        } else if (sub.equals("NEW")) {
+            parse(list, available);
+            request();
+        } else if (sub.equals("DEL")) {
+            for (String cap : list.split(" ")) {
+                available.remove(cap);
+                session.setCapability(cap, false);
+            }
+        }
+    }
+
+    private static void parse(String list, Map<String, String> caps) {
+        for (String cap : list.split(" ")) {
+            if (cap.length() == 0)
+                continue;
+            int idx = cap.indexOf('=');
+            if (idx == -1)
+                caps.put(cap, null);
+            else
+                caps.put(cap.substring(0, idx), cap.substring(idx + 1));
+        }
+    }
+
+    /**
+     * Asks for the capabilities we want which the server has, and haven't been given to us yet
+     */
+    synchronized void request() {
+        StringBuilder sb = new StringBuilder();
+        for (String cap : wanted) {
+            if (!available.containsKey(cap) || session.hasCapability(cap))
+                continue;
+            // Keep each request well within a line
+            if (sb.length() + cap.length() > 400) {
+                session.sendLine("CAP REQ :" + sb, SendPriority.URGENT);
+                pending++;
+                sb.setLength(0);
+            }
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(cap);
+        }
+        if (sb.length() > 0) {
+            session.sendLine("CAP REQ :" + sb, SendPriority.URGENT);
+            pending++;
+        }
+        if (pending == 0)
+            end();
+    }
+
+    private synchronized void replied() {
+        if (pending > 0)
+            pending--;
+        if (pending == 0)
+            end();
+    }
+
+    /**
+     * Stops negotiating, so that the server can complete our registration
+     */
+    synchronized void end() {
+        if (state != State.NEGOTIATING)
+            return;
+        session.sendLine("CAP END", SendPriority.URGENT);
+        state = State.REGISTERING;
+    }
+
+    /**
+     * Called when the server doesn't know the CAP command, in which case it will register us without waiting
+     */
+    synchronized void unsupported() {
+        if (state == State.NEGOTIATING)
+            state = State.REGISTERING;
+    }
+
+    void welcomed() {
+        state = State.REGISTERED;
+    }
+
+    synchronized void reset() {
+        state = State.CONNECTING;
+        available.clear();
+        pending = 0;
+    }
+
+    /**
+     * Returns the value a capability was advertised with (e.g. the list of SASL mechanisms)
+     */
+    synchronized String getValue(String cap) {
+        return available.get(cap);
+    }
+}
@@ -0,0 +1,46 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * Specifies how urgently a line we send should go out when lines are waiting for the flood controls to let them through<br />
+ * Lines of a higher priority are always sent before lines of a lower one
+ *
+ * @author newbiehacker
+ * @see net.newbiehacker.commodorej.Session#sendLine(String, SendPriority)
+ */
+public enum SendPriority {
+    /**
+     * Lines which keep the connection alive or end it, such as PONG and QUIT
+     */
+    URGENT,
+    /**
+     * Lines which control a channel, such as MODE and KICK
+     */
+    CONTROL,
+    /**
+     * Messages and notices, along with joining and parting channels, which must keep their place behind the messages before them
+     * (e.g. a goodbye before a PART, or identifying to services before a JOIN)
+     */
+    MESSAGE,
+    /**
+     * Everything else, such as WHO queries
+     */
+    BULK;
+
+    /**
+     * Returns the priority we give the specified line if it isn't sent with one
+     *
+     * @param line the line being sent
+     * @return the priority of the line
+     */
+    static SendPriority of(String line) {
+        int end = line.indexOf(' ');
+        String cmd = (end == -1 ? line : line.substring(0, end)).toUpperCase();
+        if (cmd.equals("PRIVMSG") || cmd.equals("NOTICE") || cmd.equals("JOIN") || cmd.equals("PART"))
+            return MESSAGE;
+        if (cmd.equals("PONG") || cmd.equals("PING") || cmd.equals("QUIT") || cmd.equals("NICK") || cmd.equals("USER") || cmd.equals("PASS"))
+            return URGENT;
+        if (cmd.equals("MODE") || cmd.equals("KICK") || cmd.equals("TOPIC") || cmd.equals("INVITE"))
+            return CONTROL;
+        return BULK;
+    }
+}
@@ -0,0 +1,17 @@
+package net.newbiehacker.commodorej;
+
+/**
+ * A class implementing this can be used to subscribe a listener to only the events sent by certain nodes
+ *
+ * @author newbiehacker
+ * @see net.newbiehacker.commodorej.ConnectionManager#subscribe(net.newbiehacker.commodorej.event.IRCEventListener, SenderFilter)
+ */
+public interface SenderFilter {
+    /**
+     * Called for each event which has a sender, to decide whether the listener should be notified of it
+     *
+     * @param sender the node which caused the event
+     * @return whether the listener should be notified of the event
+     */
+    boolean accept(Node sender);
+}
@@ -0,0 +1,73 @@
+package net.newbiehacker.commodorej;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the tasks given to it one at a time and in order, using the threads of another executor<br />
+ * A session hands the lines it reads to one of these when the ConnectionManager has a line executor, so that its lines are still
+ * handled in order while many sessions share a few threads. Like a Mailbox, it gives up its thread after a batch of tasks so that
+ * one busy session can't hog the executor.
+ *
+ * @author newbiehacker
+ */
+final class SerialExecutor implements Executor, Runnable {
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    private final ConnectionManager parent;
+    private final ArrayDeque<Runnable> tasks;
+    private boolean scheduled;
+
+    SerialExecutor(Executor executor, ConnectionManager parent) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor");
+        this.executor = executor;
+        this.parent = parent;
+        this.tasks = new ArrayDeque<Runnable>();
+    }
+
+    public void execute(Runnable r) {
+        synchronized (this) {
+            tasks.add(r);
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, so there's nobody left to run our tasks
+            synchronized (this) {
+                scheduled = false;
+                tasks.clear();
+            }
+            parent.fireError(e);
+        }
+    }
+
+    public void run() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable r;
+            synchronized (this) {
+                r = tasks.poll();
+                if (r == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                r.run();
+            } catch (Throwable t) {
+                parent.fireError(t);
+            }
+        }
+        // Let the other sessions have a go
+        schedule();
+    }
+}
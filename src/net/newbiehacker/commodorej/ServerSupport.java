@@ -0,0 +1,256 @@
+package net.newbiehacker.commodorej;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class represents what a server told us it supports in its 005 (ISUPPORT) lines, parsed into tables we can look things up in
+ * without any further parsing<br />
+ * A ServerSupport never changes; a session builds a new one each time it receives a 005 line and replaces the old one all at once,
+ * so it's safe to use from any thread.
+ *
+ * @author newbiehacker
+ */
+public final class ServerSupport {
+    /**
+     * The kinds of channel mode, as given by the CHANMODES and PREFIX parameters
+     */
+    public enum ModeType {
+        /**
+         * A mode which adds or removes an entry from a list (e.g. b for the ban list), always taking a parameter
+         */
+        LIST,
+        /**
+         * A mode which changes a setting and takes a parameter both when set and unset (e.g. k for the channel key)
+         */
+        ALWAYS_PARAMETER,
+        /**
+         * A mode which changes a setting and takes a parameter only when set (e.g. l for the user limit)
+         */
+        SET_PARAMETER,
+        /**
+         * A mode which changes a setting and never takes a parameter (e.g. m for moderated)
+         */
+        NO_PARAMETER,
+        /**
+         * A mode which gives or takes a prefix from a user (e.g. o for op), always taking a nick as its parameter
+         */
+        PREFIX
+    }
+
+    /**
+     * What we assume a server supports before it has told us anything
+     */
+    static final ServerSupport DEFAULT = new ServerSupport(Collections.<String, String>emptyMap());
+
+    private static final String DEFAULT_CHANTYPES = "#";
+    private static final String DEFAULT_CHANMODES = "b,k,l,imnpst";
+
+    private final Map<String, String> parameters;
+    private final ModeType[] modeTypes;
+    private final long[] chanTypes;
+    private final char[] listModes;
+    private final PrefixTable prefixes;
+    private final CaseMapping caseMapping;
+    private final int maxModes;
+    private final int[] maxList;
+    private final Map<String, Integer> targMax;
+
+    ServerSupport(Map<String, String> parameters) {
+        this.parameters = Collections.unmodifiableMap(new HashMap<String, String>(parameters));
+
+        chanTypes = new long[4];
+        String chantypes = get("CHANTYPES", DEFAULT_CHANTYPES);
+        for (int i = 0; i < chantypes.length(); i++) {
+            char c = chantypes.charAt(i);
+            if (c < 256)
+                chanTypes[c >> 6] |= 1L << c;
+        }
+
+        modeTypes = new ModeType[256];
+        prefixes = PrefixTable.parse(parameters.get("PREFIX"));
+        for (char c : prefixes.getModes())
+            if (c < 256)
+                modeTypes[c] = ModeType.PREFIX;
+        String[] groups = get("CHANMODES", DEFAULT_CHANMODES).split(",", -1);
+        if (groups.length < 4)
+            groups = DEFAULT_CHANMODES.split(",");
+        ModeType[] types = {ModeType.LIST, ModeType.ALWAYS_PARAMETER, ModeType.SET_PARAMETER, ModeType.NO_PARAMETER};
+        for (int g = 0; g < types.length; g++)
+            for (int i = 0; i < groups[g].length(); i++) {
+                char c = groups[g].charAt(i);
+                if (c < 256)
+                    modeTypes[c] = types[g];
+            }
+        listModes = groups[0].toCharArray();
+
+        caseMapping = CaseMapping.forName(parameters.get("CASEMAPPING"));
+
+        if (!parameters.containsKey("MODES"))
+            maxModes = 3;
+        else
+            maxModes = parseLimit(parameters.get("MODES"));
+
+        maxList = new int[256];
+        String maxlist = parameters.get("MAXLIST");
+        if (maxlist != null) {
+            // e.g. beI:100,q:50
+            for (String entry : maxlist.split(",")) {
+                int idx = entry.indexOf(':');
+                if (idx == -1)
+                    continue;
+                int limit = parseLimit(entry.substring(idx + 1));
+                for (int i = 0; i < idx; i++)
+                    if (entry.charAt(i) < 256)
+                        maxList[entry.charAt(i)] = limit;
+            }
+        }
+
+        targMax = new HashMap<String, Integer>();
+        String targmax = parameters.get("TARGMAX");
+        if (targmax != null) {
+            // e.g. PRIVMSG:4,NOTICE:4,JOIN:
+            for (String entry : targmax.split(",")) {
+                int idx = entry.indexOf(':');
+                if (idx > 0)
+                    targMax.put(entry.substring(0, idx).toUpperCase(), parseLimit(entry.substring(idx + 1)));
+            }
+        }
+    }
+
+    private String get(String name, String def) {
+        String value = parameters.get(name);
+        return value == null ? def : value;
+    }
+
+    private static int parseLimit(String s) {
+        if (s == null || s.length() == 0)
+            return Integer.MAX_VALUE;
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns whether the server sent the specified parameter
+     *
+     * @param name the name of the parameter
+     * @return whether the server sent the specified parameter
+     */
+    public boolean hasParameter(String name) {
+        return parameters.containsKey(name);
+    }
+
+    /**
+     * Returns the value of the specified parameter
+     *
+     * @param name the name of the parameter
+     * @return the value of the parameter, or null if it has no value or the server didn't send it
+     */
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Returns every parameter the server sent
+     *
+     * @return every parameter the server sent, by name
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Returns whether the specified character starts the names of channels
+     *
+     * @param c the character we wish to check
+     * @return whether the character is one of the server's CHANTYPES
+     */
+    public boolean isChannelType(char c) {
+        return c < 256 && (chanTypes[c >> 6] & (1L << c)) != 0;
+    }
+
+    /**
+     * Returns whether the specified name is the name of a channel
+     *
+     * @param name the name we wish to check
+     * @return whether the name starts with one of the server's CHANTYPES
+     */
+    public boolean isChannel(String name) {
+        return name != null && name.length() > 0 && isChannelType(name.charAt(0));
+    }
+
+    /**
+     * Returns what kind of channel mode the specified mode is
+     *
+     * @param mode the mode character
+     * @return the kind of channel mode, or null if the server didn't tell us about it
+     */
+    public ModeType getModeType(char mode) {
+        return mode < 256 ? modeTypes[mode] : null;
+    }
+
+    /**
+     * Returns the modes which are lists (e.g. b, e and I)
+     *
+     * @return the modes which are lists
+     */
+    public char[] getListModes() {
+        return listModes.clone();
+    }
+
+    /**
+     * Returns the case mapping the server uses to compare nicks and channel names
+     *
+     * @return the case mapping the server uses
+     */
+    public CaseMapping getCaseMapping() {
+        return caseMapping;
+    }
+
+    /**
+     * Returns the most modes with parameters that can be changed in one MODE command
+     *
+     * @return the most modes with parameters in one MODE command, or Integer.MAX_VALUE if there is no limit
+     */
+    public int getMaxModes() {
+        return maxModes;
+    }
+
+    /**
+     * Returns the most entries the specified list can hold on a channel
+     *
+     * @param mode the list mode (e.g. 'b')
+     * @return the most entries the list can hold, or Integer.MAX_VALUE if the server didn't say
+     */
+    public int getMaxList(char mode) {
+        int limit = mode < 256 ? maxList[mode] : 0;
+        return limit == 0 ? Integer.MAX_VALUE : limit;
+    }
+
+    /**
+     * Returns the most targets the specified command can be sent to at once
+     *
+     * @param command the command (e.g. "PRIVMSG")
+     * @return the most targets for the command, Integer.MAX_VALUE if there is no limit or 1 if the server didn't say
+     */
+    public int getMaxTargets(String command) {
+        Integer limit = targMax.get(command.toUpperCase());
+        if (limit != null)
+            return limit;
+        if (targMax.isEmpty() && parameters.containsKey("MAXTARGETS"))
+            return parseLimit(parameters.get("MAXTARGETS"));
+        return 1;
+    }
+
+    PrefixTable getPrefixes() {
+        return prefixes;
+    }
+
+    public String toString() {
+        return parameters.toString();
+    }
+}
@@ -6,11 +6,14 @@ import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoHandler;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.transport.socket.nio.SocketConnector;
-import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 
 /**
  * This class represents a connection to an IRC server with methods for obtaining information on the channels we're currently on and the users we've seen, etc.
@@ -18,14 +21,36 @@ import java.util.*;
  * @author newbiehacker
  */
 public final class Session implements IoHandler {
-    private final ConnectionManager parent;
+    final ConnectionManager parent;
     private final int port;
-    private String host, login, name, nick;
-    private final Map<String, User> users;
-    private final Map<String, String> parameters;
-    private final Map<String, Channel> channels;
-    private StringBuffer inputBuffer;
-    private boolean sent_connect, received_connect, verbose;
+    private String host, login, name;
+    String nick;
+    final FoldedMap<User> users;
+    final Map<String, String> parameters;
+    volatile ServerSupport support;
+    final FoldedMap<Channel> channels;
+    private final LineFramer framer;
+    private final IrcMessage message;
+    private final HandlerRegistry handlers;
+    private final UserCache userCache;
+    private final OutboundQueue out;
+    final WhoScheduler who;
+    final Netsplits netsplits;
+    private final SerialExecutor reader;
+    private SessionSnapshot warm;
+    volatile TrafficRecorder recorder;
+    boolean multiPrefix, userhostInNames;
+    private final Map<String, MiscNode> servers;
+    private MiscNode lastServer;
+    private Charset charset;
+    final Registration registration;
+    private final Set<String> capabilities;
+    private final Map<String, Batch> batches;
+    private Batch batch;
+    private volatile boolean batchEvents, splitUserEvents;
+    private final Calendar serverTime;
+    private long lineTime, messageTime;
+    private boolean sent_connect, verbose;
     private IoSession session;
 
     Session(ConnectionManager parent, String host, int port, String nick, String login, String name) {
@@ -35,19 +60,35 @@ public final class Session implements IoHandler {
         this.login = login;
         this.name = name;
         this.nick = nick;
-        this.users = new HashMap<String, User>();
+        this.users = new FoldedMap<User>(CaseMapping.RFC1459);
         this.parameters = new HashMap<String, String>();
-        this.channels = new HashMap<String, Channel>();
+        this.support = ServerSupport.DEFAULT;
+        this.channels = new FoldedMap<Channel>(CaseMapping.RFC1459);
+        this.charset = Charset.forName("UTF-8");
+        this.framer = new LineFramer(charset);
+        this.message = new IrcMessage();
+        this.handlers = new HandlerRegistry();
+        this.userCache = new UserCache(10000, 30 * 60 * 1000);
+        this.who = new WhoScheduler(this, parent.getTimer());
+        this.netsplits = new Netsplits(this, parent.getTimer());
+        Executor e = parent.getLineExecutor();
+        this.reader = e == null ? null : new SerialExecutor(e, parent);
+        this.out = new OutboundQueue(this, parent.getTimer());
+        this.servers = new HashMap<String, MiscNode>();
+        this.registration = new Registration(this);
+        this.capabilities = new CopyOnWriteArraySet<String>();
+        this.batches = new HashMap<String, Batch>();
+        this.batchEvents = true;
+        this.serverTime = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        Handlers.install(handlers);
     }
 
     void connect() {
         try {
             if (session != null)
                 throw new IOException("This connection is already connected");
-            SocketConnector sc = new SocketConnector();
-            SocketConnectorConfig conf = sc.getDefaultConfig();
-            conf.setConnectTimeout(5);
-            sc.connect(new InetSocketAddress(host, port), this);
+            SocketConnector sc = parent.getConnector();
+            sc.connect(new InetSocketAddress(host, port), this, parent.getConnectorConfig());
         } catch (Throwable t) {
             parent.fireError(t);
         }
@@ -80,58 +121,197 @@ public final class Session implements IoHandler {
         this.verbose = verbose;
     }
 
-    private void appendStuff(String pre, String line) {
-        if (line == null) {
-            session.write(ByteBuffer.wrap((pre + "\r\n").getBytes()));
-            return;
-        }
-        if (pre.length() >= 256) {
-            session.write(ByteBuffer.wrap((pre + line + "\r\n").getBytes()));
-        }
-        final int off = pre.length();
-        final int mLength = 256 - off;
-        while (line.length() > mLength) {
-            session.write(ByteBuffer.wrap((pre + line.substring(0, mLength) + "\r\n").getBytes()));
-            line = line.substring(mLength);
-        }
-        if (line.length() > 0)
-            session.write(ByteBuffer.wrap((pre + line + "\r\n").getBytes()));
+    /**
+     * Returns the recorder this session's traffic is being recorded to
+     *
+     * @return the recorder this session's traffic is being recorded to, or null if it isn't being recorded
+     */
+    public TrafficRecorder getRecorder() {
+        return recorder;
     }
 
     /**
-     * Appends a line to our output buffer which will later be sent to the server
+     * Sets the recorder we want this session's traffic recorded to, so that it can be replayed later by a TrafficReplay<br />
+     * The recorder should be set before connecting, as the replay starts the session from scratch and only what was recorded is
+     * fed to it. The recorder isn't closed when the session is
+     *
+     * @param recorder the recorder we want this session's traffic recorded to, or null to stop recording
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        if (recorder != null)
+            recorder.recordInfo(host, port, nick, login, name);
+        this.recorder = recorder;
+    }
+
+    /**
+     * Returns the charset used to encode and decode lines on this connection
+     *
+     * @return the charset used to encode and decode lines on this connection
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset used to encode and decode lines on this connection (UTF-8 by default)
+     *
+     * @param charset the charset we wish to use on this connection
+     */
+    public void setCharset(Charset charset) {
+        if (charset == null)
+            throw new IllegalArgumentException("charset");
+        this.charset = charset;
+        framer.setCharset(charset);
+    }
+
+    private void appendStuff(String pre, String line, SendPriority priority) {
+        if (line == null)
+            out.add(pre, priority);
+        else
+            out.add(pre, line, priority, getLineBudget());
+    }
+
+    /**
+     * Returns the most bytes a line we send may have (not counting its line ending) so that it still fits in the 512 bytes allowed
+     * once the server has put our ":nick!login@host " in front of it for everybody else
+     *
+     * @return the most bytes a line we send may have
+     */
+    int getLineBudget() {
+        User me = users.get(nick);
+        String host = me == null ? null : me.host;
+        // The server may put a ~ in front of our login, and hosts can be up to 63 characters
+        int mask = 1 + nick.length() + 1 + 1 + login.length() + 1 + (host == null ? 63 : host.length()) + 1;
+        return 510 - mask;
+    }
+
+    /**
+     * Appends a line to our output buffer which will later be sent to the server<br />
+     * The line is given a priority from its command: PONG, QUIT and the like are URGENT, commands which control a channel such as
+     * MODE and KICK are CONTROL, messages, notices, JOIN and PART are MESSAGE and everything else is BULK
      *
      * @param line the line to send
      */
     public void sendLine(String line) {
-        appendStuff(line, null);
+        appendStuff(line, null, SendPriority.of(line));
+    }
+
+    /**
+     * Appends a line to our output buffer which will later be sent to the server, ahead of any waiting lines of a lower priority
+     *
+     * @param line     the line to send
+     * @param priority how urgently the line should be sent
+     */
+    public void sendLine(String line, SendPriority priority) {
+        if (priority == null)
+            throw new IllegalArgumentException("priority");
+        appendStuff(line, null, priority);
+    }
+
+    /**
+     * Sets how fast we may send lines to the server<br />
+     * Lines which would go over these limits wait until they can be sent. By default we send up to 5 lines at once and then 2 lines a
+     * second, with no limit on bytes
+     *
+     * @param linesPerSecond the number of lines we may send each second once the burst is used up, or 0 for no limit
+     * @param lineBurst      the number of lines we may send at once
+     * @param bytesPerSecond the number of bytes we may send each second once the burst is used up, or 0 for no limit
+     * @param byteBurst      the number of bytes we may send at once
+     */
+    public void setFloodLimits(double linesPerSecond, int lineBurst, double bytesPerSecond, int byteBurst) {
+        out.setLimits(linesPerSecond, lineBurst, bytesPerSecond, byteBurst);
+    }
+
+    /**
+     * Sets how long, in milliseconds, lines may be held back so that they can be written to the server together (0 by default)<br />
+     * Lines are always gathered into as few writes as possible, but holding them back for a few milliseconds lets a burst of lines be
+     * written at once. URGENT lines are never held back
+     *
+     * @param latency the longest we may hold a line back, or 0 to write lines as soon as the flood controls allow
+     */
+    public void setWriteLatency(long latency) {
+        out.setLatency(latency);
+    }
+
+    /**
+     * Returns the number of writes we have made to the connection, each of which can hold many lines
+     *
+     * @return the number of writes we have made to the connection
+     */
+    public long getOutboundWrites() {
+        return out.getWrites();
+    }
+
+    /**
+     * Returns the number of lines waiting to be sent
+     *
+     * @return the number of lines waiting to be sent
+     */
+    public int getOutboundQueueSize() {
+        return out.size();
+    }
+
+    /**
+     * Returns the number of lines we have sent
+     *
+     * @return the number of lines we have sent
+     */
+    public long getOutboundLinesSent() {
+        return out.getSent();
+    }
+
+    /**
+     * Returns the number of lines we didn't send because the same line was already waiting to be sent
+     *
+     * @return the number of lines we didn't need to send
+     */
+    public long getOutboundLinesDropped() {
+        return out.getDropped();
+    }
+
+    /**
+     * Returns how long, in milliseconds, the lines we have sent waited on average before being sent
+     *
+     * @return how long the lines we have sent waited on average
+     */
+    public long getAverageOutboundWait() {
+        return out.getAverageWait();
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, that a line we have sent waited before being sent
+     *
+     * @return the longest time that a line waited before being sent
+     */
+    public long getMaxOutboundWait() {
+        return out.getMaxWait();
     }
 
     /**
      * Sends a message to the recipient
-     * Please note that messages which go over 256 bytes will be split into multiple lines
+     * Please note that long messages will be split into multiple lines, at the last space which fits where possible, and that each line of a message with line breaks is sent on its own
      *
      * @param recipient the intended recipient of the message
      * @param message   the message body
      */
     public void sendMessage(String recipient, String message) {
-        appendStuff("PRIVMSG " + recipient + " :", message);
+        appendStuff("PRIVMSG " + recipient + " :", message, SendPriority.MESSAGE);
     }
 
     /**
      * Sends a notice to the recipient
-     * Please note that notices which go over 256 bytes will be split into multiple lines
+     * Please note that long notices will be split into multiple lines, at the last space which fits where possible, and that each line of a notice with line breaks is sent on its own
      *
      * @param recipient the intended recipient of the notice
      * @param notice    the notice body
      */
     public void sendNotice(String recipient, String notice) {
-        appendStuff("NOTICE " + recipient + " :", notice);
+        appendStuff("NOTICE " + recipient + " :", notice, SendPriority.MESSAGE);
     }
 
     /**
      * Sends a CTCP request to the recipient
-     * Please note that requests which go over 256 bytes will be split into multiple lines
+     * Please note that long requests will be split into multiple lines
      *
      * @param recipient the intended recipient of the request
      * @param request   the request body
@@ -142,7 +322,7 @@ public final class Session implements IoHandler {
 
     /**
      * Sends a CTCP response to the recipient
-     * Please note that responses which go over 256 bytes will be split into multiple lines
+     * Please note that long responses will be split into multiple lines
      *
      * @param recipient the intended recipient of the response
      * @param response  the response body
@@ -153,7 +333,7 @@ public final class Session implements IoHandler {
 
     /**
      * Sends a action to the recipient
-     * Please note that actions which go over 256 bytes will be split into multiple lines
+     * Please note that long actions will be split into multiple lines
      *
      * @param recipient the intended recipient of the action
      * @param action    the action body
@@ -249,7 +429,10 @@ public final class Session implements IoHandler {
      * Attempts to stop processing on this connection and to close all sockets related with it
      */
     public void close() {
-        session.close();
+        // We may not have connected yet, or the connection may have failed
+        IoSession s = session;
+        if (s != null)
+            s.close();
     }
 
     /**
@@ -297,6 +480,15 @@ public final class Session implements IoHandler {
         return login;
     }
 
+    /**
+     * Returns what the server told us it supports in its 005 lines
+     *
+     * @return what the server told us it supports
+     */
+    public ServerSupport getServerSupport() {
+        return support;
+    }
+
     /**
      * Returns whether this connection has the specified parameter
      *
@@ -304,7 +496,7 @@ public final class Session implements IoHandler {
      * @return whether this connection has the specified parameter
      */
     public boolean hasParameter(String s) {
-        return parameters.containsKey(s);
+        return support.hasParameter(s);
     }
 
     /**
@@ -314,12 +506,133 @@ public final class Session implements IoHandler {
      * @return the value for the specified parameter, or null if it does not exist
      */
     public String getParameter(String s) {
-        return parameters.get(s);
+        return support.getParameter(s);
+    }
+
+    /**
+     * Returns the case mapping which the server uses to compare nicks and channel names, as sent in the CASEMAPPING parameter
+     *
+     * @return the case mapping used by the server
+     */
+    public CaseMapping getCaseMapping() {
+        return users.getMapping();
+    }
+
+    /**
+     * Switches the user and channel indexes over to the specified case mapping
+     *
+     * @param mapping the case mapping the server told us it uses
+     */
+    void setCaseMapping(CaseMapping mapping) {
+        Map<String, User> u = new HashMap<String, User>();
+        for (User user : users.values())
+            u.put(user.nick, user);
+        users.reset(mapping, u);
+        for (User user : u.values())
+            user.key = mapping.fold(user.nick);
+        Map<String, Channel> c = new HashMap<String, Channel>();
+        for (Channel chan : channels.values())
+            c.put(chan.name, chan);
+        channels.reset(mapping, c);
+    }
+
+    /**
+     * Returns whether the specified nick is ours
+     *
+     * @param nick the nick we wish to check
+     * @return whether the specified nick is ours
+     */
+    boolean isMe(String nick) {
+        return users.getMapping().equals(nick, this.nick);
+    }
+
+    /**
+     * Returns the most users we remember before forgetting the ones we saw least recently<br />
+     * Users who are on a channel we are on are always remembered, even if there are more of them than this
+     *
+     * @return the most users we remember
+     */
+    public int getUserCacheSize() {
+        return userCache.getMaxSize();
+    }
+
+    /**
+     * Sets the most users we remember before forgetting the ones we saw least recently (10000 by default)
+     *
+     * @param size the most users we wish to remember
+     */
+    public void setUserCacheSize(int size) {
+        userCache.setMaxSize(size);
+    }
+
+    /**
+     * Returns how long, in milliseconds, we remember a user who isn't on any of our channels after we last saw them
+     *
+     * @return how long we remember a user who isn't on any of our channels
+     */
+    public long getUserIdleTime() {
+        return userCache.getIdleTime();
+    }
+
+    /**
+     * Sets how long, in milliseconds, we remember a user who isn't on any of our channels after we last saw them (30 minutes by default)<br />
+     * An idle time of 0 means users are only forgotten when there are too many of them
+     *
+     * @param idleTime how long we wish to remember a user who isn't on any of our channels
+     */
+    public void setUserIdleTime(long idleTime) {
+        userCache.setIdleTime(idleTime);
+    }
+
+    /**
+     * Returns how many times we looked for a user and already knew of them
+     *
+     * @return how many times we looked for a user and already knew of them
+     */
+    public long getUserCacheHits() {
+        return userCache.getHits();
+    }
+
+    /**
+     * Returns how many times we looked for a user that we didn't know of
+     *
+     * @return how many times we looked for a user that we didn't know of
+     */
+    public long getUserCacheMisses() {
+        return userCache.getMisses();
+    }
+
+    /**
+     * Returns how many users we have forgotten because they weren't on any of our channels
+     *
+     * @return how many users we have forgotten
+     */
+    public long getUserCacheEvictions() {
+        return userCache.getEvictions();
+    }
+
+    /**
+     * Returns how many WHO queries we have sent to learn about the users on our channels
+     *
+     * @return how many WHO queries we have sent
+     */
+    public long getWhoQueriesSent() {
+        return who.getSent();
+    }
+
+    /**
+     * Returns how many WHO queries we didn't send because the same one was already waiting or had been answered recently
+     *
+     * @return how many WHO queries we didn't need to send
+     */
+    public long getWhoQueriesSaved() {
+        return who.getSaved();
     }
 
     /**
      * Returns whether we have user data cache'd for the specified nick<br />
-     * If this method returns true, it does not necessarily mean that the specified user is currently online, just that they have been during the runtime of the bot
+     * If this method returns true, it does not necessarily mean that the specified user is currently online, just that they have been recently.
+     * Users who quit, and users who aren't on any of our channels and haven't been seen for a while, are forgotten
      *
      * @param nick the nick we're checking for
      * @return whether we have uder data cache'd for the specified nick
@@ -335,6 +648,22 @@ public final class Session implements IoHandler {
      * @return the user with the specified nick or null if we do not have their information
      */
     public User getUser(String nick) {
+        User u = users.get(nick);
+        if (u == null)
+            userCache.miss();
+        else
+            userCache.hit();
+        return u;
+    }
+
+    /**
+     * Returns the user with the specified nick, without counting the lookup as a hit or miss of the user-cache<br />
+     * The library looks up the targets of messages and modes with this, so that the cache's statistics only count the users we see
+     *
+     * @param nick the nick of the user
+     * @return the user with the specified nick or null if we do not have their information
+     */
+    User findUser(String nick) {
         return users.get(nick);
     }
 
@@ -384,258 +713,376 @@ public final class Session implements IoHandler {
         return channels.get(channel);
     }
 
-    private boolean isNumeric(String s) {
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c < '0' || c > '9')
-                return false;
+    /**
+     * Returns whether the server has welcomed us
+     *
+     * @return whether the server has welcomed us
+     */
+    public boolean isRegistered() {
+        return registration.getState() == Registration.State.REGISTERED;
+    }
+
+    /**
+     * Returns whether the server has given us the specified IRCv3 capability (e.g. "multi-prefix")
+     *
+     * @param cap the name of the capability
+     * @return whether we have the capability
+     */
+    public boolean hasCapability(String cap) {
+        return capabilities.contains(cap);
+    }
+
+    /**
+     * Returns the IRCv3 capabilities the server has given us
+     *
+     * @return the capabilities we have
+     */
+    public Set<String> getCapabilities() {
+        return Collections.unmodifiableSet(capabilities);
+    }
+
+    /**
+     * Returns the IRCv3 capabilities we ask the server for when we connect<br />
+     * By default these are multi-prefix, userhost-in-names, extended-join, away-notify, account-tag, server-time, batch and message-tags.
+     * echo-message can be asked for, but the messages we send will then come back as events from ourselves, which listeners must ignore
+     *
+     * @return the capabilities we ask for
+     */
+    public Set<String> getRequestedCapabilities() {
+        return Collections.unmodifiableSet(registration.getWanted());
+    }
+
+    /**
+     * Sets whether we ask the server for the specified IRCv3 capability<br />
+     * If we are already connected and the server has the capability, it is asked for straight away. Capabilities the library doesn't
+     * know of can be asked for so that their messages can be handled by handlers registered with getHandlers()
+     *
+     * @param cap     the name of the capability
+     * @param request whether we want the capability
+     */
+    public void requestCapability(String cap, boolean request) {
+        registration.want(cap, request);
+        if (request && isRegistered())
+            registration.request();
+    }
+
+    void setCapability(String cap, boolean enabled) {
+        if (enabled)
+            capabilities.add(cap);
+        else
+            capabilities.remove(cap);
+        if (cap.equals("multi-prefix"))
+            multiPrefix = enabled;
+        else if (cap.equals("userhost-in-names"))
+            userhostInNames = enabled;
+    }
+
+    /**
+     * Returns whether the events for the lines of a batch are fired together as one IRCBatchEvent
+     *
+     * @return whether the events of a batch are fired together
+     */
+    public boolean isBatchEvents() {
+        return batchEvents;
+    }
+
+    /**
+     * Sets whether the events for the lines of a batch (such as the quits of a netsplit) are fired together as one IRCBatchEvent when the
+     * batch ends (the default), or one by one as each line is received
+     *
+     * @param batchEvents whether we want the events of a batch to be fired together
+     */
+    public void setBatchEvents(boolean batchEvents) {
+        this.batchEvents = batchEvents;
+    }
+
+    /**
+     * Returns the time the line being handled was sent, from its server-time tag if it has one, otherwise when we received it<br />
+     * Events are dated with this time
+     *
+     * @return the time the line being handled was sent in milliseconds since the epoch, or 0 if no line is being handled
+     */
+    public long getMessageTime() {
+        return messageTime;
+    }
+
+    /**
+     * Returns whether the quits and joins of the users in a netsplit are fired one by one, as well as together as one
+     * IRCNetsplitEvent or IRCNetjoinEvent
+     *
+     * @return whether the quits and joins of the users in a netsplit are fired one by one
+     */
+    public boolean isSplitUserEvents() {
+        return splitUserEvents;
+    }
+
+    /**
+     * Sets whether the quits and joins of the users in a netsplit are fired one by one as IRCQuitEvents and IRCJoinEvents, as well as
+     * together as one IRCNetsplitEvent or IRCNetjoinEvent<br />
+     * They aren't by default, as a split can lose us thousands of users at once
+     *
+     * @param splitUserEvents whether we want the quits and joins of a netsplit one by one
+     */
+    public void setSplitUserEvents(boolean splitUserEvents) {
+        this.splitUserEvents = splitUserEvents;
+    }
+
+    /**
+     * Fires the specified event, or keeps it for the batch the line being handled belongs to<br />
+     * Listeners which want the event's type but not batches are still given it straight away
+     */
+    void fireEvent(IRCEvent e) {
+        if (batch != null && batchEvents) {
+            if (parent.isWanted(IRCEvent.Type.BATCH))
+                batch.events.add(e);
+            parent.fireEventOutsideBatch(e);
+        } else
+            parent.fireEvent(e);
+    }
+
+    /**
+     * Returns whether any listener may want events of the specified type from the line being handled
+     */
+    boolean isWanted(IRCEvent.Type type) {
+        if (batch != null && batchEvents)
+            return parent.isWanted(type) || parent.isWanted(IRCEvent.Type.BATCH);
+        return parent.isWanted(type);
+    }
+
+    void startBatch(String ref, String type, List<String> params) {
+        // Don't let a misbehaving server fill our memory with batches it never ends
+        if (batches.size() < 64)
+            batches.put(ref, new Batch(type, params));
+    }
+
+    void endBatch(String ref) {
+        Batch b = batches.remove(ref);
+        if (b == null)
+            return;
+        // A netsplit has been fired as one event already, so there's nothing more to say unless its users were wanted one by one
+        boolean split = netsplits.end(b.type, b.params);
+        if (batchEvents && !(split && b.events.isEmpty()) && isWanted(IRCEvent.Type.BATCH))
+            fireEvent(new IRCBatchEvent(this, b.type, b.params, b.events));
+    }
+
+    /**
+     * Returns the parameters of the batch the line being handled belongs to, if it is of the specified type
+     *
+     * @param type the type of batch (e.g. "netsplit")
+     * @return the parameters of the batch, or null if the line isn't in a batch of the specified type
+     */
+    List<String> getBatchParameters(String type) {
+        Batch b = batch;
+        return b != null && b.type != null && b.type.equalsIgnoreCase(type) ? b.params : null;
+    }
+
+    /**
+     * The lines of a batch the server hasn't finished sending yet
+     */
+    private static final class Batch {
+        final String type;
+        final List<String> params;
+        final List<IRCEvent> events;
+
+        Batch(String type, List<String> params) {
+            this.type = type;
+            this.params = params;
+            this.events = new ArrayList<IRCEvent>();
+        }
+    }
+
+    void connected() {
+        if (sent_connect)
+            return;
+        sent_connect = true;
+        if (isWanted(IRCEvent.Type.CONNECT))
+            fireEvent(new IRCConnectEvent(this));
+    }
+
+    /**
+     * Parses a server-time tag (e.g. 2011-10-19T16:40:51.620Z)
+     *
+     * @return the time in milliseconds since the epoch, or 0 if it couldn't be parsed
+     */
+    private long parseServerTime(String t) {
+        if (t.length() < 20 || t.charAt(4) != '-' || t.charAt(10) != 'T' || t.charAt(t.length() - 1) != 'Z')
+            return 0;
+        try {
+            Calendar c = serverTime;
+            c.clear();
+            c.set(Integer.parseInt(t.substring(0, 4)), Integer.parseInt(t.substring(5, 7)) - 1, Integer.parseInt(t.substring(8, 10)),
+                    Integer.parseInt(t.substring(11, 13)), Integer.parseInt(t.substring(14, 16)), Integer.parseInt(t.substring(17, 19)));
+            int ms = 0;
+            if (t.charAt(19) == '.' && t.length() >= 24)
+                ms = Integer.parseInt(t.substring(20, 23));
+            return c.getTimeInMillis() + ms;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the registry of handlers which are called for each line this session receives<br />
+     * Applications can register their own handlers with it for commands and numerics which the library does not handle itself
+     *
+     * @return the registry of handlers for this session
+     */
+    public HandlerRegistry getHandlers() {
+        return handlers;
+    }
+
+    /**
+     * Returns the node for the server that sent the specified message<br />
+     * Nodes are kept for each server name we see, and as most lines come from the same server, the last one is checked first without creating any Strings.
+     * A message without a prefix came from the server we are connected to, which is taken to be the last one we saw, or our host if we haven't seen one
+     *
+     * @param m the message whose prefix is a server name, or which has no prefix
+     * @return the node for the server that sent the specified message
+     */
+    MiscNode getServerNode(IrcMessage m) {
+        MiscNode n = lastServer;
+        if (!m.hasPrefix()) {
+            if (n == null) {
+                n = servers.get(host);
+                if (n == null)
+                    servers.put(host, n = new MiscNode(host));
+                lastServer = n;
+            }
+            return n;
         }
-        return true;
+        if (n != null && m.prefixEquals(n.getName()))
+            return n;
+        String name = m.getPrefix();
+        n = servers.get(name);
+        if (n == null) {
+            // Only a handful of servers should ever talk to us, but don't let a misbehaving one fill our memory
+            if (servers.size() >= 64)
+                servers.clear();
+            servers.put(name, n = new MiscNode(name));
+        }
+        lastServer = n;
+        return n;
     }
 
-    private User getUser(String nick, String name, String host) {
-        if (nick.equals(this.nick))
+    User getUser(String nick, String name, String host) {
+        if (isMe(nick))
             if (name != null)
                 this.name = name;
-        User u;
-        if (users.containsKey(nick)) {
-            u = users.get(nick);
+        User u = users.get(nick);
+        if (u != null) {
+            userCache.hit();
+            // The server may write the nick differently to how we first saw it
+            if (!u.nick.equals(nick))
+                u.nick = nick;
             if (name != null)
                 u.name = name;
             if (host != null)
                 u.host = host;
         } else {
-            u = new User(nick, name, host);
-            users.put(nick, u);
+            userCache.miss();
+            u = warm == null ? null : warm.takeUser(nick, name, host);
+            if (u == null) {
+                u = new User(nick, name, host);
+            } else {
+                if (name != null)
+                    u.name = name;
+                if (host != null)
+                    u.host = host;
+            }
+            u.key = users.put(nick, u);
+        }
+        u.seen = lineTime;
+        return u;
+    }
+
+    /**
+     * Returns the user with the specified nick, taking them from the snapshot we were restored from if we haven't seen them yet
+     *
+     * @return the user, or null if we don't know of them
+     */
+    User restoreUser(String nick) {
+        User u = users.get(nick);
+        if (u == null && warm != null && (u = warm.takeUser(nick, null, null)) != null) {
+            u.key = users.put(nick, u);
+            u.seen = lineTime;
         }
         return u;
     }
 
-    @SuppressWarnings({"SuspiciousMethodCalls"})
+    /**
+     * Returns the channel we have just joined as it was in the snapshot we were restored from
+     *
+     * @param name the name of the channel
+     * @return the channel, or null if it isn't in the snapshot
+     */
+    Channel restoreChannel(String name) {
+        if (warm == null)
+            return null;
+        Channel c = warm.takeChannel(this, name);
+        // Once every channel has been rejoined, the users that are left weren't on any of them and won't be missed
+        if (warm.isDone())
+            warm = null;
+        return c;
+    }
+
+    /**
+     * Writes what we know of the server, our channels and the users we've seen to the specified file, so that a later session can
+     * be restored from it with ConnectionManager.connect(String, int, String, String, String, File)<br />
+     * This may be called from any thread, but the state is copied while lines are being handled, so a change made while it is
+     * being written may or may not be in the snapshot
+     *
+     * @param file the file we wish to write the snapshot to
+     * @throws IOException if the snapshot could not be written
+     */
+    public void saveState(File file) throws IOException {
+        SessionSnapshot.write(this, file);
+    }
+
+    /**
+     * Starts this session from the specified snapshot, before it connects
+     */
+    void restoreState(SessionSnapshot snapshot) {
+        parameters.putAll(snapshot.parameters);
+        support = new ServerSupport(parameters);
+        if (support.getCaseMapping() != getCaseMapping())
+            setCaseMapping(support.getCaseMapping());
+        warm = snapshot;
+    }
+
     private void handleLine(String line) {
         try {
-            if (line.charAt(0) == ':')
-                line = line.substring(1);
-            String[] data = line.split(" ");
-            if (isNumeric(data[1])) {
-                // A new server message approaches!!
-                int id = Integer.parseInt(data[1]);
-                String content = Misc.join(" ", data, 3, data.length - 3);
-                if (content.charAt(0) == ':')
-                    content = content.substring(1);
-                // Parameter information
-                if (id == 5) {
-                    String mstring = Misc.join(" ", data, 3, data.length - 3);
-                    mstring = mstring.substring(0, mstring.indexOf(':') - 1);
-                    String[] params = mstring.split(" ");
-                    for (String s : params) {
-                        if (s.indexOf('=') == -1) {
-                            parameters.put(s.charAt(0) == '-' ? s.substring(1) : s, null);
-                        } else {
-                            int idx = s.indexOf('=');
-                            parameters.put(s.substring(0, idx), s.substring(idx + 1));
-                        }
-                    }
-                    received_connect = true;
-                } else if (id > 5 && received_connect && !sent_connect) {
-                    parent.fireEvent(new IRCConnectEvent(this));
-                    sent_connect = true;
-                } else if (id == 352) {
-                    // WHO line
-                    String chan = data[3];
-
-
-                    String login = data[4];
-                    String host = data[5];
-                    // String server = datat[6];
-                    String nick = data[7];
-                    String modes = data[8];
-                    //String hops = data[9].substring(1, data[9].length - 2);
-                    //String fullName = Misc.join(" ", data, 10, data.length - 10);
-                    User u = getUser(nick, login, host);
-                    if (!u.channels.contains(chan))
-                        u.channels.add(chan);
-                    String prefix = getParameter("PREFIX");
-                    int sIdx = prefix.indexOf('(');
-                    int eIdx = prefix.indexOf(')');
-                    String pModes = prefix.substring(sIdx + 1, eIdx);
-                    String pPrefixes = prefix.substring(eIdx + 1);
-                    char[] pmc = pModes.toCharArray();
-                    char[] ppc = pPrefixes.toCharArray();
-                    if (modes.charAt(0) == ':')
-                        modes = modes.substring(1);
-                    char[] mModes = modes.toCharArray();
-                    u.modes.clear(); // Clear the users modes for a fresh start
-                    char oldMode = 255;
-                    if (onChannel(chan)) {
-                        Channel chanl = getChannel(chan);
-                        if (chanl.getUserMode(u) != '\u0000')
-                            oldMode = chanl.getUserMode(u);
-                    }
-                    main_loop:
-                    for (char c : mModes) {
-                        for (int i = 0; i < ppc.length; i++) {
-                            char pp = ppc[i];
-                            if (c == pp) {
-                                // Get index of old mode
-                                int oidx = 255;
-                                if (oldMode != 255)
-                                    for (int i1 = 0; i1 < pmc.length; i1++) {
-                                        if (oldMode == pmc[i1]) {
-                                            oidx = i1;
-                                            break;
-                                        }
-                                    }
-                                if (oldMode == 255 || i < oidx) {
-                                    if (onChannel(chan))
-                                        getChannel(chan).userModes.put(u, c);
-                                    continue main_loop;
-                                }
-                            }
-                        }
-                        u.modes.add(c);
-                    }
-                    if (onChannel(chan) && getChannel(chan).users.contains(u))
-                        getChannel(chan).users.add(u);
-                } else if (id == 367) {
-                    getChannel(data[3]).lists.get('b').add(new ChannelListEntry(data[4], data[5], Long.parseLong(data[6])));
-                } else if (id == 348) {
-                    getChannel(data[3]).lists.get('e').add(new ChannelListEntry(data[4], data[5], Long.parseLong(data[6])));
-                } else if (id == 346) {
-                    getChannel(data[3]).lists.get('I').add(new ChannelListEntry(data[4], data[5], Long.parseLong(data[6])));
-                } else if (id == 324) {
-                    String mstring = Misc.join(" ", data, 4, data.length - 4);
-                    if (mstring.charAt(0) == ':')
-                        mstring = mstring.substring(1);
-                    String[] modeData = mstring.split(" ");
-                    Misc.handleModes(this, Misc.getNode(this, data[3]), null, modeData);
-                    parent.fireEvent(new IRCModeChangeEvent(this, new MiscNode(data[0]), Misc.getNode(this, data[3]), mstring));
-                } else if (id == 332) {
-                    // Topic server message
-                    Channel channel = getChannel(data[3]);
-                    channel.topic = line.substring(line.indexOf(':') + 1);
-                } else if (id == 333) {
-                    // Topic info message
-                    Channel channel = getChannel(data[3]);
-                    channel.topicSetter = data[4];
-                    channel.topicTime = new Date(Long.parseLong(data[5]) * 1000);
-                }
-                parent.fireEvent(new IRCServerMessageEvent(this, new MiscNode(data[0]), Misc.getNode(this, data[2]), id, content));
+            final IrcMessage m = message;
+            lineTime = System.currentTimeMillis();
+            if (!m.parse(line))
                 return;
+            messageTime = lineTime;
+            if (m.hasTags()) {
+                String t = m.getTag("time");
+                if (t != null) {
+                    long st = parseServerTime(t);
+                    if (st != 0)
+                        messageTime = st;
+                }
+                String ref = m.getTag("batch");
+                if (ref != null)
+                    batch = batches.get(ref);
             }
-            // PING
-            if ("PING".equals(data[0])) {
-                sendLine("PONG " + data[1]);
+            if (m.isNumeric()) {
+                // A new server message approaches!!
+                int id = m.getNumeric();
+                handlers.dispatch(this, m);
+                userCache.maintain(this, lineTime);
+                if (isWanted(IRCEvent.Type.SERVER_MESSAGE))
+                    fireEvent(new IRCServerMessageEvent(this, getServerNode(m), Misc.getNode(this, m.getParameter(0)), id, m.getRaw(1)));
                 return;
             }
-            String sender = data[0];
-            String type = data[1];
-            String target = data[2];
-            int sIdx = sender.indexOf('!');
-            Node sendObj = new MiscNode(sender);
-            String uNick = null, uName = null, uHost = null;
-            if (sIdx != -1) {
-                int eIdx = sender.indexOf('@');
-                uNick = sender.substring(0, sIdx);
-                uName = sender.substring(sIdx + 1, eIdx);
-                uHost = sender.substring(eIdx + 1);
-                sendObj = getUser(uNick, uName, uHost);
-                if (onChannel(target) && !getChannel(target).hasUser((User) sendObj))
-                    getChannel(target).users.add((User) sendObj);
-            }
-            int off = sender.length() + type.length() + 3;
-            String message = line.substring(off);
-            if ("MODE".equals(type)) {
-                String mstring = Misc.join(" ", data, 3, data.length - 3);
-                if (mstring.charAt(0) == ':')
-                    mstring = mstring.substring(1);
-                String[] nArr = mstring.split(" ");
-                Misc.handleModes(this, Misc.getNode(this, target), sendObj, nArr);
-                parent.fireEvent(new IRCModeChangeEvent(this, sendObj, Misc.getNode(this, target), mstring));
-                if (onChannel(target))
-                    sendLine("WHO " + target);
-            } else if ("NOTICE".equals(type)) {
-                String notice = message.substring(target.length() + 1);
-                // CTCP response
-                if (notice.charAt(0) == 1 && notice.charAt(notice.length()) == 1)
-                    parent.fireEvent(new IRCCtcpResponseEvent(this, sendObj, Misc.getNode(this, target), notice.substring(1, notice.length() - 2)));
-                else
-                    parent.fireEvent(new IRCNoticeEvent(this, sendObj, Misc.getNode(this, target), notice));
-            } else if ("PRIVMSG".equals(type)) {
-                message = message.substring(target.length() + 1);
-                if (message.charAt(0) == 1 && message.charAt(message.length() - 1) == 1) {
-                    String ctcp = message.substring(1, message.length() - 1);
-                    if (ctcp.startsWith("ACTION"))
-                        parent.fireEvent(new IRCActionEvent(this, sendObj, Misc.getNode(this, target), ctcp.substring(7)));
-                    else {
-                        if ("TIME".equals(ctcp.toUpperCase()))
-                            sendCtcpResponse(sendObj.toString(), "TIME " + new Date());
-                        else if ("VERSION".equals(ctcp.toUpperCase()))
-                            sendCtcpResponse(sendObj.toString(), "VERSION Commodore (Java implementation) version 0.5b, Copyright 2008 James Lawrence (http://www.newbiehacker.net)");
-                        parent.fireEvent(new IRCCtcpRequestEvent(this, sendObj, Misc.getNode(this, target), ctcp));
-                    }
-                } else
-                    parent.fireEvent(new IRCMessageEvent(this, sendObj, Misc.getNode(this, target), message));
-            } else if ("JOIN".equals(type)) {
-                target = target.substring(1);
-                if (uNick.equals(nick)) {
-                    channels.put(target, new Channel(this, target));
-                    sendLine("WHO " + target);
-                }
-                Channel chan = getChannel(target);
-                ((User) sendObj).channels.add(target);
-                chan.users.add((User) sendObj);
-                parent.fireEvent(new IRCJoinEvent(this, (User) sendObj, getChannel(target)));
-            } else if ("PART".equals(type)) {
-                if (uNick.equals(nick)) {
-                    parent.fireEvent(new IRCPartEvent(this, (User) sendObj, getChannel(target), message.length() == target.length() - 1 ? "" : message.substring(target.length() + 1)));
-                    channels.remove(target);
-                } else {
-                    Channel c = getChannel(target);
-                    c.users.remove(sendObj);
-                    c.userModes.remove(sendObj);
-                    parent.fireEvent(new IRCPartEvent(this, (User) sendObj, c, message.length() == target.length() - 1 ? "" : message.substring(target.length() + 1)));
-                }
-                ((User) sendObj).channels.remove(target);
-            } else if ("QUIT".equals(type)) {
-                parent.fireEvent(new IRCQuitEvent(this, (User) sendObj, message.length() == 0 ? "" : message));
-                ((User) sendObj).channels.clear();
-                // Remove the user from all channels
-                for (Channel c : channels.values()) {
-                    c.users.remove(sendObj);
-                    c.userModes.remove(sendObj);
-                }
-            } else if ("NICK".equals(type)) {
-                target = target.substring(1);
-                if (uNick.equals(nick))
-                    nick = target;
-                User u = getUser(uNick, uName, uHost);
-                u.nick = target;
-                users.remove(uNick);
-                users.put(target, u);
-                // Re-who the nick
-                sendLine("WHO " + target);
-                parent.fireEvent(new IRCNickChangeEvent(this, (User) sendObj, uNick));
-            } else if ("TOPIC".equals(type)) {
-                Channel channel = getChannel(target);
-                channel.topicSetter = uNick;
-                channel.topicTime = new Date();
-                channel.topic = message.substring(target.length() + 1);
-                parent.fireEvent(new IRCTopicChangeEvent(this, channel));
-            } else if ("KICK".equals(type)) {
-                User u = getUser(data[3], null, null);
-                Channel channel = getChannel(target);
-                u.channels.remove(target);
-                channel.users.remove(u);
-                channel.userModes.remove(u);
-                parent.fireEvent(new IRCKickEvent(this, sendObj, u, channel, message.substring(target.length() + u.nick.length() + 2)));
-                if (u.getNick().equals(nick))
-                    channels.remove(target);
-            } else if ("INVITE".equals(type)) {
-                parent.fireEvent(new IRCInviteEvent(this, sendObj, users.get(target), data[3].substring(1)));
-            }
+            handlers.dispatch(this, m);
+            userCache.maintain(this, lineTime);
         } catch (Exception e) {
             parent.fireError(e);
+        } finally {
+            messageTime = 0;
+            batch = null;
         }
     }
 
@@ -644,13 +1091,48 @@ public final class Session implements IoHandler {
 
     public void sessionOpened(IoSession session) throws Exception {
         this.session = session;
-        sendLine("NICK " + nick);
-        sendLine("USER " + login + " " + host + " " + " *8 :" + name);
+        out.open(session);
+        registration.start(nick, login, host, name);
+    }
+
+    /**
+     * Starts this session as though it had connected, but with the lines it sends going nowhere, so that a TrafficReplay can feed it
+     * the lines of a recorded session
+     */
+    void openReplay() {
+        out.openDetached();
+        registration.start(nick, login, host, name);
+    }
+
+    public void sessionClosed(final IoSession session) throws Exception {
+        // Lines we have read but not yet handled must be handled before we forget everything
+        if (reader == null) {
+            closed(session);
+        } else {
+            reader.execute(new Runnable() {
+                public void run() {
+                    closed(session);
+                }
+            });
+        }
     }
 
-    public void sessionClosed(IoSession session) throws Exception {
-        parent.fireEvent(new IRCDisconnectEvent(this));
-        System.out.println("Session closed [in: " + session.getReadBytes() + " / out: " + session.getWrittenBytes() + "]");
+    private void closed(IoSession session) {
+        warm = null;
+        who.reset();
+        netsplits.reset();
+        out.close();
+        registration.reset();
+        batches.clear();
+        for (String cap : capabilities)
+            setCapability(cap, false);
+        multiPrefix = userhostInNames = false;
+        sent_connect = false;
+        if (isWanted(IRCEvent.Type.DISCONNECT))
+            fireEvent(new IRCDisconnectEvent(this));
+        parent.retireLanes(this, null);
+        if (verbose && session != null)
+            System.out.println("Session closed [in: " + session.getReadBytes() + " / out: " + session.getWrittenBytes() + "]");
     }
 
     public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
@@ -661,29 +1143,46 @@ public final class Session implements IoHandler {
     }
 
     public void messageReceived(IoSession session, Object message) throws Exception {
-        ByteBuffer buf = (ByteBuffer) message;
-        if (inputBuffer == null)
-            inputBuffer = new StringBuffer();
-        while (buf.hasRemaining()) {
-            char c = (char) buf.get();
-            if (c == '\n') {
-                String line = inputBuffer.toString();
-                handleLine(line);
-                if (verbose)
-                    System.out.println("<<< " + line);
-                inputBuffer = new StringBuffer();
-            } else if (c != '\r')
-                inputBuffer.append(c);
+        java.nio.ByteBuffer buf = ((ByteBuffer) message).buf();
+        TrafficRecorder recorder = this.recorder;
+        String line;
+        if (reader == null) {
+            while ((line = framer.next(buf)) != null) {
+                if (recorder != null)
+                    recorder.recordIn(line, charset);
+                received(line);
+            }
+            return;
         }
+        // MINA reuses the buffer once we return, so the lines are taken out of it here and handled on the line executor
+        final List<String> lines = new ArrayList<String>();
+        while ((line = framer.next(buf)) != null) {
+            if (recorder != null)
+                recorder.recordIn(line, charset);
+            lines.add(line);
+        }
+        if (!lines.isEmpty()) {
+            reader.execute(new Runnable() {
+                public void run() {
+                    for (String l : lines)
+                        received(l);
+                }
+            });
+        }
+    }
+
+    private void received(String line) {
+        if (line.length() == 0)
+            return;
+        handleLine(line);
+        if (verbose)
+            System.out.println("<<< " + line);
     }
 
     public void messageSent(IoSession session, Object message) throws Exception {
         if (verbose) {
             ByteBuffer buf = (ByteBuffer) message;
-            StringBuilder temp = new StringBuilder();
-            while (buf.hasRemaining())
-                temp.append((char) buf.get());
-            System.out.print(">>> " + temp.toString());
+            System.out.print(">>> " + charset.decode(buf.buf().duplicate()));
         }
     }
 }
\ No newline at end of file
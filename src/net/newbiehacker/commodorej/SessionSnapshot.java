@@ -0,0 +1,459 @@
+package net.newbiehacker.commodorej;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * What a Session knew about its server, users and channels, written to a file so that the next run can start warm<br />
+ * A snapshot is written in a compact binary form, where each String is only written once and referred to by number after that.
+ * When a session is restored from a snapshot, nothing is sent to the server to confirm what it holds. Instead it is used as
+ * the server mentions things:
+ * <ul>
+ * <li>a user the session meets is taken from the snapshot, along with their login, host, account and real name, so that
+ * channels don't need to be WHOed for them (unless the server says their login or host is now different)</li>
+ * <li>a channel the session joins gets its ban, except and invite lists, modes, topic and users from the snapshot, so that only
+ * MODE is asked for. The NAMES reply the server sends on joining then removes the users who have left since</li>
+ * </ul>
+ * Only the session's reading thread uses a snapshot once it has been read
+ *
+ * @author newbiehacker
+ */
+final class SessionSnapshot {
+    private static final int MAGIC = 0x434A5353;
+    private static final int VERSION = 1;
+
+    final long time;
+    final CaseMapping mapping;
+    final Map<String, String> parameters;
+    private final Map<String, User> users;
+    private final Map<String, ChannelState> channels;
+
+    private SessionSnapshot(long time, CaseMapping mapping, Map<String, String> parameters, Map<String, User> users, Map<String, ChannelState> channels) {
+        this.time = time;
+        this.mapping = mapping;
+        this.parameters = parameters;
+        this.users = users;
+        this.channels = channels;
+    }
+
+    /**
+     * Writes the state of the specified session to the specified file<br />
+     * The snapshot is written to a temporary file first, so a crash while writing it leaves the last one as it was
+     *
+     * @param s the session
+     * @param f the file we wish to write the snapshot to
+     * @throws IOException if the snapshot could not be written
+     */
+    static void write(Session s, File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new Sink(new FileOutputStream(tmp)));
+        try {
+            write(s, new Writer(out));
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            // Some platforms won't rename over a file that exists
+            if (!f.delete() || !tmp.renameTo(f))
+                throw new IOException("Could not replace " + f);
+        }
+    }
+
+    private static void write(Session s, Writer w) throws IOException {
+        w.out.writeInt(MAGIC);
+        w.out.writeInt(VERSION);
+        w.out.writeLong(System.currentTimeMillis());
+        w.writeString(s.getCaseMapping().getName());
+
+        Map<String, String> params = s.support.getParameters();
+        w.writeInt(params.size());
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            w.writeString(e.getKey());
+            w.writeString(e.getValue());
+        }
+
+        // Number the users, including any on a channel that has somehow fallen out of the session's map
+        List<Channel> chans = new ArrayList<Channel>(s.channels.values());
+        List<Map<User, Integer>> members = new ArrayList<Map<User, Integer>>(chans.size());
+        for (Channel c : chans) {
+            synchronized (c.users) {
+                members.add(new LinkedHashMap<User, Integer>(c.users));
+            }
+        }
+        Map<User, Integer> index = new IdentityHashMap<User, Integer>(s.users.size() + 16);
+        List<User> all = new ArrayList<User>(s.users.size() + 16);
+        for (User u : s.users.values()) {
+            index.put(u, all.size());
+            all.add(u);
+        }
+        for (Map<User, Integer> m : members) {
+            for (User u : m.keySet()) {
+                if (!index.containsKey(u)) {
+                    index.put(u, all.size());
+                    all.add(u);
+                }
+            }
+        }
+        w.writeInt(all.size());
+        for (User u : all) {
+            w.writeString(u.nick);
+            w.writeString(u.name);
+            w.writeString(u.host);
+            w.writeString(u.account);
+            w.writeString(u.realName);
+            w.writeString(u.awayMessage);
+            w.out.writeBoolean(u.away);
+        }
+
+        final PrefixTable pt = s.support.getPrefixes();
+        w.writeInt(chans.size());
+        for (int i = 0; i < chans.size(); i++) {
+            Channel c = chans.get(i);
+            w.writeString(c.name);
+            w.writeString(c.topic);
+            w.writeString(c.topicSetter);
+            w.out.writeLong(c.topicTime == null ? 0 : c.topicTime.getTime());
+            Map<Character, String> modes = new HashMap<Character, String>(c.modes);
+            w.writeInt(modes.size());
+            for (Map.Entry<Character, String> e : modes.entrySet()) {
+                w.writeInt(e.getKey());
+                w.writeString(e.getValue());
+            }
+            w.writeInt(c.lists.size());
+            for (Map.Entry<Character, MaskList> e : c.lists.entrySet()) {
+                List<ChannelListEntry> entries = e.getValue().getEntries();
+                w.writeInt(e.getKey());
+                w.writeInt(entries.size());
+                for (ChannelListEntry cle : entries) {
+                    w.writeString(cle.getMask());
+                    w.writeString(cle.getSetter());
+                    w.out.writeLong(cle.getTime().getTime() / 1000);
+                }
+            }
+            w.writeInt(members.get(i).size());
+            for (Map.Entry<User, Integer> e : members.get(i).entrySet()) {
+                w.writeInt(index.get(e.getKey()));
+                w.writeString(pt.toPrefixes(e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot from the specified file
+     *
+     * @param f the file the snapshot was written to
+     * @return the snapshot
+     * @throws IOException if the snapshot could not be read, or the file isn't a snapshot
+     */
+    static SessionSnapshot read(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new Source(new FileInputStream(f)));
+        try {
+            return read(new Reader(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static SessionSnapshot read(Reader r) throws IOException {
+        if (r.in.readInt() != MAGIC)
+            throw new IOException("Not a session snapshot");
+        int version = r.in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported session snapshot version " + version);
+        long time = r.in.readLong();
+        CaseMapping mapping = CaseMapping.forName(r.readString());
+
+        int n = r.readInt();
+        Map<String, String> params = new HashMap<String, String>(n * 2);
+        for (int i = 0; i < n; i++)
+            params.put(r.readString(), r.readString());
+
+        n = r.readInt();
+        User[] all = new User[n];
+        Map<String, User> users = new HashMap<String, User>(n * 2);
+        for (int i = 0; i < n; i++) {
+            User u = new User(r.readString(), r.readString(), r.readString());
+            u.account = r.readString();
+            u.realName = r.readString();
+            u.awayMessage = r.readString();
+            u.away = r.in.readBoolean();
+            u.key = mapping.fold(u.nick);
+            users.put(u.key, u);
+            all[i] = u;
+        }
+
+        n = r.readInt();
+        Map<String, ChannelState> channels = new HashMap<String, ChannelState>(n * 2);
+        for (int i = 0; i < n; i++) {
+            ChannelState c = new ChannelState(r.readString());
+            c.topic = r.readString();
+            c.topicSetter = r.readString();
+            c.topicTime = r.in.readLong();
+            for (int j = r.readInt(); j > 0; j--)
+                c.modes.put((char) r.readInt(), r.readString());
+            for (int j = r.readInt(); j > 0; j--) {
+                char list = (char) r.readInt();
+                int count = r.readInt();
+                List<ChannelListEntry> entries = new ArrayList<ChannelListEntry>(count);
+                for (int k = 0; k < count; k++)
+                    entries.add(new ChannelListEntry(r.readString(), r.readString(), r.in.readLong()));
+                c.lists.put(list, entries);
+            }
+            int count = r.readInt();
+            c.members = new User[count];
+            c.prefixes = new String[count];
+            for (int j = 0; j < count; j++) {
+                int idx = r.readInt();
+                if (idx < 0 || idx >= all.length)
+                    throw new IOException("Corrupt session snapshot");
+                c.members[j] = all[idx];
+                c.prefixes[j] = r.readString();
+            }
+            channels.put(mapping.fold(c.name), c);
+        }
+        return new SessionSnapshot(time, mapping, params, users, channels);
+    }
+
+    /**
+     * Takes the user with the specified nick out of this snapshot, unless the server has told us something that shows it's
+     * somebody else using the nick now
+     *
+     * @param nick the nick of the user
+     * @param name the login of the user, or null if we don't know it
+     * @param host the host of the user, or null if we don't know it
+     * @return the user, or null if we don't have them
+     */
+    User takeUser(String nick, String name, String host) {
+        User u = users.remove(mapping.fold(nick));
+        if (u == null)
+            return null;
+        if ((name != null && u.name != null && !name.equals(u.name)) || (host != null && u.host != null && !host.equals(u.host)))
+            return null;
+        u.nick = nick;
+        return u;
+    }
+
+    /**
+     * Takes the specified channel out of this snapshot, creating it for the specified session along with the users that were on it
+     *
+     * @param s    the session which has joined the channel
+     * @param name the name of the channel
+     * @return the channel, or null if we don't have it
+     */
+    Channel takeChannel(Session s, String name) {
+        ChannelState state = channels.remove(mapping.fold(name));
+        if (state == null)
+            return null;
+        Channel c = new Channel(s, name, state.lists);
+        c.topic = state.topic;
+        c.topicSetter = state.topicSetter;
+        c.topicTime = state.topicTime == 0 ? null : new Date(state.topicTime);
+        c.modes.putAll(state.modes);
+        final PrefixTable pt = s.support.getPrefixes();
+        for (int i = 0; i < state.members.length; i++) {
+            User u = s.restoreUser(state.members[i].nick);
+            if (u == null)
+                continue;
+            c.addUser(u);
+            c.setPrefixes(u, pt.prefixBits(state.prefixes[i]));
+        }
+        // Until the server has told us who is really there now
+        c.named = new HashSet<User>();
+        return c;
+    }
+
+    /**
+     * Returns whether every channel in this snapshot has been taken, at which point there's no reason to keep the rest
+     *
+     * @return whether every channel in this snapshot has been taken
+     */
+    boolean isDone() {
+        return channels.isEmpty();
+    }
+
+    int getUserCount() {
+        return users.size();
+    }
+
+    int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * A channel as it was when the snapshot was written
+     */
+    private static final class ChannelState {
+        final String name;
+        final Map<Character, String> modes;
+        final Map<Character, List<ChannelListEntry>> lists;
+        String topic, topicSetter;
+        long topicTime;
+        User[] members;
+        String[] prefixes;
+
+        ChannelState(String name) {
+            this.name = name;
+            this.modes = new HashMap<Character, String>();
+            this.lists = new HashMap<Character, List<ChannelListEntry>>();
+        }
+    }
+
+    /**
+     * Writes numbers in as few bytes as they need, and each String only once
+     */
+    private static final class Writer {
+        final DataOutputStream out;
+        private final Map<String, Integer> strings;
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+            this.strings = new HashMap<String, Integer>();
+        }
+
+        void writeInt(int v) throws IOException {
+            while ((v & ~0x7F) != 0) {
+                out.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        /**
+         * Writes 0 for null, 1 followed by the String the first time we see it, or its number plus 2 after that
+         */
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeInt(0);
+                return;
+            }
+            Integer idx = strings.get(s);
+            if (idx != null) {
+                writeInt(idx + 2);
+                return;
+            }
+            writeInt(1);
+            out.writeUTF(s);
+            strings.put(s, strings.size());
+        }
+    }
+
+    private static final class Reader {
+        final DataInputStream in;
+        private final List<String> strings;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+            this.strings = new ArrayList<String>();
+        }
+
+        int readInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Corrupt session snapshot");
+        }
+
+        String readString() throws IOException {
+            int code = readInt();
+            if (code == 0)
+                return null;
+            if (code == 1) {
+                String s = in.readUTF();
+                strings.add(s);
+                return s;
+            }
+            if (code - 2 >= strings.size())
+                throw new IOException("Corrupt session snapshot");
+            return strings.get(code - 2);
+        }
+    }
+
+    /**
+     * A buffer in front of a file, which unlike BufferedOutputStream doesn't take a lock for every byte we write
+     */
+    private static final class Sink extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count;
+
+        Sink(OutputStream out) {
+            this.out = out;
+            this.buf = new byte[65536];
+        }
+
+        public void write(int b) throws IOException {
+            if (count == buf.length)
+                flush();
+            buf[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buf.length - count)
+                flush();
+            if (len > buf.length) {
+                out.write(b, off, len);
+            } else {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+            }
+        }
+
+        public void flush() throws IOException {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * A buffer in front of a file, which unlike BufferedInputStream doesn't take a lock for every byte we read
+     */
+    private static final class Source extends InputStream {
+        private final InputStream in;
+        private final byte[] buf;
+        private int pos, count;
+
+        Source(InputStream in) {
+            this.in = in;
+            this.buf = new byte[65536];
+        }
+
+        private boolean fill() throws IOException {
+            pos = 0;
+            count = Math.max(0, in.read(buf));
+            return count > 0;
+        }
+
+        public int read() throws IOException {
+            if (pos == count && !fill())
+                return -1;
+            return buf[pos++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (pos == count && !fill())
+                return -1;
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
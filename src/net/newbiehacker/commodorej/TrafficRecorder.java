@@ -0,0 +1,149 @@
+package net.newbiehacker.commodorej;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Records the lines a Session receives and sends to a file, so that the traffic can be replayed later without a server using
+ * TrafficReplay<br />
+ * The file is mapped into memory a segment at a time and each line is appended as a record of its length plus one, the
+ * nanoseconds since recording started, which way it went and the line itself, so recording a line costs a copy and no system
+ * calls. The file is grown a segment at a time and the unused end of the last segment is trimmed off when the recorder is closed;
+ * a recording cut short by a crash can still be replayed, as no record is empty and so it ends at the first empty record.<br />
+ * A recorder may be shared by the reading thread and the threads that send lines, so its methods are synchronized
+ *
+ * @author newbiehacker
+ * @see Session#setRecorder(TrafficRecorder)
+ * @see TrafficReplay
+ */
+public final class TrafficRecorder {
+    static final int MAGIC = 0x434A5452;
+    static final int VERSION = 2;
+    static final int HEADER = 16;
+    static final int RECORD_HEADER = 4 + 8 + 1;
+    static final byte IN = 0, OUT = 1, INFO = 2;
+    private static final int SEGMENT = 8 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long start;
+    private MappedByteBuffer map;
+    private long mapStart, position;
+    private long records;
+    private boolean closed;
+
+    /**
+     * Creates a recorder which writes to the specified file, replacing anything that was in it
+     *
+     * @param f the file we wish to record to
+     * @throws IOException if the file could not be created
+     */
+    public TrafficRecorder(File f) throws IOException {
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        start = System.nanoTime();
+        remap(0, HEADER);
+        map.putInt(MAGIC);
+        map.putInt(VERSION);
+        map.putLong(System.currentTimeMillis());
+        position = HEADER;
+    }
+
+    /**
+     * Records a line the session received
+     */
+    synchronized void recordIn(String line, Charset cs) {
+        // Empty lines are ignored by the session, so there's nothing to replay
+        if (line.length() == 0)
+            return;
+        byte[] b = line.getBytes(cs);
+        record(IN, b, null, 0, 0);
+    }
+
+    /**
+     * Records a line the session sent, made of its head and a part of an encoded message
+     */
+    synchronized void recordOut(byte[] head, byte[] body, int off, int len) {
+        record(OUT, head, body, off, len);
+    }
+
+    /**
+     * Records what a replay needs to know to create a session like the one recorded
+     */
+    synchronized void recordInfo(String host, int port, String nick, String login, String name) {
+        byte[] b = (host + ' ' + port + ' ' + nick + ' ' + login + " :" + name).getBytes(Charset.forName("UTF-8"));
+        record(INFO, b, null, 0, 0);
+    }
+
+    private void record(byte direction, byte[] head, byte[] body, int off, int len) {
+        if (closed)
+            return;
+        int length = head.length + (body == null ? 0 : len);
+        try {
+            // A record never straddles two segments, so an empty record is always the end of the recording
+            if (position + RECORD_HEADER + length + 4 > mapStart + map.capacity())
+                remap(position, RECORD_HEADER + length + 4);
+            map.position((int) (position - mapStart));
+            map.putInt(length + 1);
+            map.putLong(System.nanoTime() - start);
+            map.put(direction);
+            map.put(head);
+            if (body != null)
+                map.put(body, off, len);
+            position += RECORD_HEADER + length;
+            records++;
+        } catch (IOException e) {
+            // There's nowhere to report this from the session's threads, so give up recording rather than keep failing
+            closed = true;
+        }
+    }
+
+    private void remap(long at, int need) throws IOException {
+        mapStart = at;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, at, Math.max(SEGMENT, need));
+    }
+
+    /**
+     * Returns the number of lines that have been recorded
+     *
+     * @return the number of lines that have been recorded
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the size of the recording in bytes
+     *
+     * @return the size of the recording in bytes
+     */
+    public synchronized long getSize() {
+        return position;
+    }
+
+    /**
+     * Stops recording, trimming the file down to the lines recorded
+     *
+     * @throws IOException if the file could not be trimmed or closed
+     */
+    public synchronized void close() throws IOException {
+        if (closed && !channel.isOpen())
+            return;
+        closed = true;
+        map.force();
+        map = null;
+        try {
+            // Some platforms won't shrink a file while it is mapped, in which case the empty record at the end will have to do
+            channel.truncate(position);
+        } catch (IOException e) {
+            // Leave it as it is
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.ErrorHandler;
+import org.apache.mina.common.ByteBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the traffic recorded by a TrafficRecorder back into a new Session, without connecting to anything<br />
+ * The session is created with the details it was recorded with and started as though it had connected, and the lines it received
+ * are then fed to it as they would have been read from the server: either as fast as it can handle them, or with the gaps between
+ * them they were recorded with. The lines the session sends are put through its flood controls and then thrown away, or recorded
+ * if the session is given a recorder of its own, so that the two recordings can be compared.<br />
+ * The recording is mapped into memory a window at a time, so replaying it doesn't copy it through a stream. The lines are gathered
+ * into buffers the size of a socket read before being fed to the session, so the session frames them just as it would have.<br />
+ * The session should use the same charset as the one recorded, and its manager shouldn't have a line executor if the state of the
+ * session is to be looked at once the replay is over, as the last lines may otherwise still be waiting to be handled
+ *
+ * @author newbiehacker
+ * @see TrafficRecorder
+ */
+public final class TrafficReplay implements Runnable {
+    private static final int WINDOW = 64 * 1024 * 1024;
+    private static final int READ = 8192;
+    private final ConnectionManager parent;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length, recorded;
+    private final int window;
+    private final Session session;
+    private MappedByteBuffer map;
+    private long mapStart, position;
+    private int recordLength;
+    private boolean realTime;
+    private long lines, sent, elapsed;
+
+    /**
+     * Opens the specified recording and creates the session it will be played back into
+     *
+     * @param parent the ConnectionManager whose listeners we want the session's events to go to
+     * @param log    the file the traffic was recorded to
+     * @throws IOException if the file can't be read or isn't a recording
+     */
+    public TrafficReplay(ConnectionManager parent, File log) throws IOException {
+        this(parent, log, WINDOW);
+    }
+
+    /**
+     * Opens the specified recording, mapping it the specified number of bytes at a time
+     *
+     * @param parent the ConnectionManager whose listeners we want the session's events to go to
+     * @param log    the file the traffic was recorded to
+     * @param window the number of bytes mapped at a time, which must hold the longest record
+     * @throws IOException if the file can't be read or isn't a recording
+     */
+    TrafficReplay(ConnectionManager parent, File log, int window) throws IOException {
+        if (parent == null)
+            throw new IllegalArgumentException("parent");
+        if (window < TrafficRecorder.HEADER + TrafficRecorder.RECORD_HEADER)
+            throw new IllegalArgumentException("window");
+        this.parent = parent;
+        this.window = window;
+        this.file = new RandomAccessFile(log, "r");
+        try {
+            this.channel = file.getChannel();
+            this.length = channel.size();
+            if (length < TrafficRecorder.HEADER)
+                throw new IOException("Not a traffic recording: " + log);
+            map(0);
+            if (map.getInt() != TrafficRecorder.MAGIC)
+                throw new IOException("Not a traffic recording: " + log);
+            int version = map.getInt();
+            if (version != TrafficRecorder.VERSION)
+                throw new IOException("Unsupported traffic recording version " + version);
+            this.recorded = map.getLong();
+            this.position = TrafficRecorder.HEADER;
+            this.session = createSession();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the session from the details recorded when the recorder was given to the original session, which are always the
+     * first record
+     */
+    private Session createSession() throws IOException {
+        if (next() != TrafficRecorder.INFO)
+            throw new IOException("The traffic recording doesn't start with the session's details");
+        int len = recordLength;
+        byte[] b = new byte[len];
+        map.get(b);
+        position += TrafficRecorder.RECORD_HEADER + len;
+        String info = new String(b, "UTF-8");
+        int colon = info.indexOf(" :");
+        String[] s = info.substring(0, colon).split(" ");
+        if (s.length != 4)
+            throw new IOException("Malformed session details in the traffic recording: " + info);
+        Session session = new Session(parent, s[0], Integer.parseInt(s[1]), s[2], s[3], info.substring(colon + 2));
+        // Nothing is being sent anywhere, so there's no reason to hold the lines back
+        session.setFloodLimits(0, 1, 0, 0);
+        return session;
+    }
+
+    /**
+     * Returns the session the recording is played back into
+     *
+     * @return the session the recording is played back into
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Returns whether the lines are fed to the session with the gaps between them they were recorded with
+     *
+     * @return whether the lines are fed to the session at the speed they were recorded
+     */
+    public boolean isRealTime() {
+        return realTime;
+    }
+
+    /**
+     * Sets whether the lines are fed to the session with the gaps between them they were recorded with, rather than as fast as the
+     * session can handle them (the default)
+     *
+     * @param realTime whether we want the lines fed to the session at the speed they were recorded
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * Returns the time the recording was started, in milliseconds since the epoch
+     *
+     * @return the time the recording was started
+     */
+    public long getRecordedTime() {
+        return recorded;
+    }
+
+    /**
+     * Returns the number of lines which have been fed to the session
+     *
+     * @return the number of lines which have been fed to the session
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * Returns the number of lines the recorded session sent, which were skipped
+     *
+     * @return the number of lines the recorded session sent
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns how long the replay took, in nanoseconds
+     *
+     * @return how long the replay took, in nanoseconds
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Plays the recording back into the session, returning once every line has been fed to it<br />
+     * Any errors are passed to the ConnectionManager's error handlers
+     */
+    public void run() {
+        try {
+            replay();
+        } catch (Throwable t) {
+            parent.fireError(t);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                parent.fireError(e);
+            }
+        }
+    }
+
+    private void replay() throws Exception {
+        byte[] read = new byte[READ];
+        int n = 0;
+        long start = System.nanoTime(), first = -1;
+        session.openReplay();
+        byte direction;
+        while ((direction = next()) != -1) {
+            int len = recordLength;
+            long time = map.getLong(map.position() - TrafficRecorder.RECORD_HEADER + 4);
+            position += TrafficRecorder.RECORD_HEADER + len;
+            if (direction != TrafficRecorder.IN) {
+                if (direction == TrafficRecorder.OUT)
+                    sent++;
+                map.position(map.position() + len);
+                continue;
+            }
+            if (realTime) {
+                // The gaps are measured from the first line, as the session may have taken a while to connect when it was recorded
+                if (first == -1)
+                    first = time;
+                long wait = start + (time - first) - System.nanoTime();
+                if (wait > 0) {
+                    n = feed(read, n);
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            if (n + len + 2 > read.length) {
+                n = feed(read, n);
+                if (len + 2 > read.length)
+                    read = new byte[len + 2];
+            }
+            map.get(read, n, len);
+            n += len;
+            read[n++] = '\r';
+            read[n++] = '\n';
+            lines++;
+        }
+        feed(read, n);
+        elapsed = System.nanoTime() - start;
+    }
+
+    private int feed(byte[] read, int n) throws Exception {
+        if (n > 0)
+            session.messageReceived(null, ByteBuffer.wrap(read, 0, n));
+        return 0;
+    }
+
+    /**
+     * Moves to the next record, mapping more of the file if it isn't all in the window, and returns its direction<br />
+     * The window is left at the start of the record's line, and the length of the line is kept in recordLength
+     *
+     * @return the direction of the record, or -1 if there are no more
+     */
+    private byte next() throws IOException {
+        if (length - position < TrafficRecorder.RECORD_HEADER)
+            return -1;
+        if (position + TrafficRecorder.RECORD_HEADER > mapStart + map.capacity())
+            map(position);
+        map.position((int) (position - mapStart));
+        // Lengths are recorded plus one, so an empty record is where the recorder stopped if it couldn't trim the file
+        int len = map.getInt() - 1;
+        if (len < 0 || position + TrafficRecorder.RECORD_HEADER + len > length)
+            return -1;
+        recordLength = len;
+        if (position + TrafficRecorder.RECORD_HEADER + len > mapStart + map.capacity()) {
+            map(position);
+            map.position(4);
+        }
+        map.getLong();
+        return map.get();
+    }
+
+    private void map(long at) throws IOException {
+        mapStart = at;
+        map = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(window, length - at));
+    }
+
+    /**
+     * Replays a recording from the command line, printing how long it took<br />
+     * The arguments are the file the traffic was recorded to, and optionally "realtime" to replay it at the speed it was recorded
+     *
+     * @param args the arguments to send to this program
+     * @throws IOException if the recording can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TrafficReplay <recording> [realtime]");
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        cm.registerErrorHandler(new ErrorHandler() {
+            public void onError(Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        TrafficReplay replay = new TrafficReplay(cm, new File(args[0]));
+        replay.setRealTime(args.length > 1 && args[1].equalsIgnoreCase("realtime"));
+        replay.run();
+        Session s = replay.getSession();
+        System.out.println("Replayed " + replay.getLines() + " lines in " + replay.getElapsed() / 1000000 + "ms ("
+                + s.getChannels().size() + " channels, " + replay.getSent() + " lines sent when recorded, " + s.getOutboundLinesSent()
+                + " sent now)");
+        cm.stop();
+    }
+}
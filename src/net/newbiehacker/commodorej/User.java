@@ -8,7 +8,10 @@ import java.util.*;
  */
 public final class User extends Node {
     String nick, name, host;
-    final List<String> channels;
+    String key, account, realName, awayMessage;
+    boolean away;
+    long seen;
+    final Set<Channel> channels;
     final List<Character> modes;
 
     User(String nick, String name, String host) {
@@ -16,7 +19,7 @@ public final class User extends Node {
         this.nick = nick;
         this.name = name;
         this.host = host;
-        this.channels = new ArrayList<String>();
+        this.channels = Collections.synchronizedSet(new LinkedHashSet<Channel>());
         this.modes = new ArrayList<Character>();
     }
 
@@ -44,13 +47,50 @@ public final class User extends Node {
         return host;
     }
 
+    /**
+     * Returns the account this user is logged in to, if the server has told us
+     * @return the account this user is logged in to, or null if they aren't logged in or we don't know
+     */
+    public String getAccount() {
+        return account;
+    }
+
+    /**
+     * Returns the real name of this user, if the server has told us
+     * @return the real name of this user, or null if we don't know it
+     */
+    public String getRealName() {
+        return realName;
+    }
+
+    /**
+     * Returns whether this user is marked as away
+     * @return whether this user is marked as away
+     */
+    public boolean isAway() {
+        return away;
+    }
+
+    /**
+     * Returns the away message of this user
+     * @return the away message of this user, or null if they aren't away or we don't know their message
+     */
+    public String getAwayMessage() {
+        return awayMessage;
+    }
+
     /**
      * Returns whether the bot has seen the user on the specified channel
      * @param channel the channel we wish to check that the user is on
      * @return whether the bot has seen the user on the specified channel
      */
     public boolean onChannel(String channel) {
-        return channels.contains(channel);
+        synchronized (channels) {
+            for (Channel c : channels)
+                if (c.session.getCaseMapping().equals(c.name, channel))
+                    return true;
+        }
+        return false;
     }
 
     /**
@@ -58,7 +98,12 @@ public final class User extends Node {
      * @return a list of channels that we are sure this user is on
      */
     public List<String> getChannels() {
-        return Collections.unmodifiableList(channels);
+        List<String> l = new ArrayList<String>();
+        synchronized (channels) {
+            for (Channel c : channels)
+                l.add(c.name);
+        }
+        return Collections.unmodifiableList(l);
     }
 
     /**
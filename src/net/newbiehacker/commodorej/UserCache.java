@@ -0,0 +1,122 @@
+package net.newbiehacker.commodorej;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which users a Session forgets about, so that the users we have seen don't build up over a long time on a large network<br />
+ * Users who are on a channel we are on are never forgotten. Other users are forgotten once they have not been seen for the idle
+ * time, and the ones seen least recently are forgotten first whenever we know of more users than the maximum size.<br />
+ * Only the session's reading thread calls maintain()
+ *
+ * @author newbiehacker
+ */
+final class UserCache {
+    private static final long SWEEP_INTERVAL = 60000;
+    private static final Comparator<User> LEAST_RECENT = new Comparator<User>() {
+        public int compare(User a, User b) {
+            return a.seen < b.seen ? -1 : a.seen == b.seen ? 0 : 1;
+        }
+    };
+
+    private volatile int maxSize;
+    private volatile long idleTime;
+    private int threshold;
+    private long lastSweep;
+    private final AtomicLong hits, misses, evictions;
+
+    UserCache(int maxSize, long idleTime) {
+        setMaxSize(maxSize);
+        setIdleTime(idleTime);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxSize(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("The user cache must be able to hold at least one user");
+        this.maxSize = maxSize;
+        this.threshold = maxSize;
+    }
+
+    long getIdleTime() {
+        return idleTime;
+    }
+
+    void setIdleTime(long idleTime) {
+        if (idleTime < 0)
+            throw new IllegalArgumentException("idleTime");
+        this.idleTime = idleTime;
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Forgets the users we no longer need to know about, if it is time to look for them
+     *
+     * @param s   the session whose users we are looking after
+     * @param now the time at which the current line was received
+     */
+    void maintain(Session s, long now) {
+        final FoldedMap<User> users = s.users;
+        final long idle = idleTime;
+        boolean full = users.size() > threshold;
+        if (!full && (idle == 0 || now - lastSweep < Math.min(idle, SWEEP_INTERVAL)))
+            return;
+        lastSweep = now;
+        List<User> candidates = new ArrayList<User>();
+        for (User u : users.values()) {
+            if (isPinned(s, u))
+                continue;
+            if (idle > 0 && now - u.seen >= idle)
+                evict(users, u);
+            else
+                candidates.add(u);
+        }
+        final int max = maxSize;
+        if (users.size() > max) {
+            // Make a little room, so that we don't have to do this again for the very next user
+            int target = max - max / 10;
+            Collections.sort(candidates, LEAST_RECENT);
+            for (int i = 0; i < candidates.size() && users.size() > target; i++)
+                evict(users, candidates.get(i));
+        }
+        // If we couldn't make enough room everybody left is on our channels, so don't look again until there are a lot more of them
+        threshold = Math.max(max, users.size() + Math.max(1, Math.max(max, users.size()) / 10));
+    }
+
+    private void evict(FoldedMap<User> users, User u) {
+        if (users.removeFolded(u.key, u))
+            evictions.incrementAndGet();
+    }
+
+    private static boolean isPinned(Session s, User u) {
+        return !u.channels.isEmpty() || s.isMe(u.nick);
+    }
+}
@@ -0,0 +1,141 @@
+package net.newbiehacker.commodorej;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the WHO queries a Session needs to learn about the users on its channels, without flooding the server with them<br />
+ * Only one query is sent at a time and the rest wait their turn, a target which is already waiting isn't queued twice, and a
+ * target which was answered recently isn't asked about again. Where the server supports WHOX only the fields we keep are asked for.
+ * If the server hasn't answered a query within a minute, the shared timer gives up on it and sends the next one.<br />
+ * The session's reading thread and the timer both use this class, so it is synchronized
+ *
+ * @author newbiehacker
+ */
+final class WhoScheduler {
+    /**
+     * The token we put in our WHOX queries, so that we can tell their replies from anybody else's
+     */
+    static final String WHOX_TOKEN = "152";
+    private static final long DEBOUNCE = 30000;
+    private static final long TIMEOUT = 60000;
+
+    private final Session session;
+    private final ScheduledExecutorService timer;
+    private final Map<String, String> pending;
+    private final Map<String, Long> answered;
+    private String inFlight;
+    private ScheduledFuture<?> timeout;
+    private long sent, saved;
+
+    WhoScheduler(Session session, ScheduledExecutorService timer) {
+        this.session = session;
+        this.timer = timer;
+        this.pending = new LinkedHashMap<String, String>();
+        this.answered = new HashMap<String, Long>();
+    }
+
+    /**
+     * Asks for a WHO query on the specified target, unless one is already waiting or it was answered recently
+     *
+     * @param target the channel or nick we want to know about
+     */
+    synchronized void request(String target) {
+        String key = session.users.fold(target);
+        long now = System.currentTimeMillis();
+        Long last = answered.get(key);
+        if (key.equals(inFlight) || pending.containsKey(key) || (last != null && now - last < DEBOUNCE)) {
+            saved++;
+            return;
+        }
+        pending.put(key, target);
+        pump();
+    }
+
+    /**
+     * Called when the server has finished answering a WHO query (315)
+     *
+     * @param target the target of the query
+     */
+    synchronized void done(String target) {
+        String key = session.users.fold(target);
+        long now = System.currentTimeMillis();
+        answered.put(key, now);
+        if (key.equals(inFlight))
+            finished();
+        if (answered.size() > 256) {
+            for (Iterator<Long> it = answered.values().iterator(); it.hasNext(); )
+                if (now - it.next() >= DEBOUNCE)
+                    it.remove();
+        }
+        pump();
+    }
+
+    /**
+     * Called by the timer when the server hasn't answered the query in flight, so that a server that never answers doesn't stop
+     * us from asking about anything else
+     */
+    private synchronized void timedOut(String key) {
+        if (!key.equals(inFlight))
+            return;
+        timeout = null;
+        inFlight = null;
+        pump();
+    }
+
+    private void finished() {
+        inFlight = null;
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+    }
+
+    private void pump() {
+        if (inFlight != null)
+            return;
+        Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator();
+        if (!it.hasNext())
+            return;
+        Map.Entry<String, String> e = it.next();
+        it.remove();
+        final String key = inFlight = e.getKey();
+        try {
+            timeout = timer.schedule(new Runnable() {
+                public void run() {
+                    timedOut(key);
+                }
+            }, TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException ex) {
+            // We have been stopped
+            timeout = null;
+        }
+        sent++;
+        if (session.hasParameter("WHOX"))
+            session.sendLine("WHO " + e.getValue() + " %tcuhnf," + WHOX_TOKEN);
+        else
+            session.sendLine("WHO " + e.getValue());
+    }
+
+    /**
+     * Forgets everything, for when the connection is closed
+     */
+    synchronized void reset() {
+        pending.clear();
+        answered.clear();
+        finished();
+    }
+
+    synchronized long getSent() {
+        return sent;
+    }
+
+    synchronized long getSaved() {
+        return saved;
+    }
+}
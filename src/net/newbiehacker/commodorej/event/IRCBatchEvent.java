@@ -0,0 +1,53 @@
+package net.newbiehacker.commodorej.event;
+
+import net.newbiehacker.commodorej.Session;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents a batch event, which is fired when the server has finished sending a batch of lines (such as the quits of a
+ * netsplit or the results of a chathistory request) and holds the events for all of them
+ * @author newbiehacker
+ */
+public final class IRCBatchEvent extends IRCEvent {
+    private final String batchType;
+    private final List<String> parameters;
+    private final List<IRCEvent> events;
+
+    public IRCBatchEvent(Session source, String batchType, List<String> parameters, List<IRCEvent> events) {
+        super(source, Type.BATCH);
+        this.batchType = batchType;
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    /**
+     * Returns the type of this batch (e.g. "netsplit", "netjoin" or "chathistory")
+     * @return the type of this batch
+     */
+    public String getBatchType() {
+        return batchType;
+    }
+
+    /**
+     * Returns the parameters the server gave for this batch (e.g. the names of the two servers which split)
+     * @return the parameters of this batch
+     */
+    public List<String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Returns the events for the lines in this batch, in the order they were received<br />
+     * A batch inside this one appears as an IRCBatchEvent of its own
+     * @return the events for the lines in this batch
+     */
+    public List<IRCEvent> getEvents() {
+        return events;
+    }
+
+    public String toString() {
+        return "Batch " + batchType + " " + parameters + " of " + events.size() + " events";
+    }
+}
@@ -1,5 +1,7 @@
 package net.newbiehacker.commodorej.event;
 
+import net.newbiehacker.commodorej.Channel;
+import net.newbiehacker.commodorej.Node;
 import net.newbiehacker.commodorej.Session;
 
 import java.util.Date;
@@ -97,17 +99,34 @@ public abstract class IRCEvent {
          * Specifies that this IRCEvent is an IRCErrorEvent.
          * This event is fired when the bot is forcefully disconnected from the server
          */
-        ERROR
+        ERROR,
+        /**
+         * Specifies that this IRCEvent is an IRCBatchEvent.
+         * This event is fired when the server has finished sending a batch of lines, holding the events for all of them
+         */
+        BATCH,
+        /**
+         * Specifies that this IRCEvent is an IRCNetsplitEvent.
+         * This event is fired once the users on the far side of a broken server link have all quit
+         */
+        NETSPLIT,
+        /**
+         * Specifies that this IRCEvent is an IRCNetjoinEvent.
+         * This event is fired once the users who quit in a netsplit have rejoined their channels
+         */
+        NETJOIN
     }
 
     protected final Session source;
     protected final Type type;
-    protected final Date time;
+    protected final long time;
 
     protected IRCEvent(Session source, Type type) {
         this.source = source;
         this.type = type;
-        time = new Date();
+        // Events for a line are dated by the line, which may have been sent by the server some time ago (e.g. chat history)
+        long t = source == null ? 0 : source.getMessageTime();
+        time = t != 0 ? t : System.currentTimeMillis();
     }
 
     /**
@@ -131,6 +150,30 @@ public abstract class IRCEvent {
      * @return the time that this event was created
      */
     public Date getTime() {
+        return new Date(time);
+    }
+
+    /**
+     * Returns the time that this event was created, in milliseconds since the epoch
+     * @return the time that this event was created, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
         return time;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the channel that this event happened on
+     * @return the channel that this event happened on, or null if it did not happen on a channel that we are on
+     */
+    public Channel getEventChannel() {
+        return null;
+    }
+
+    /**
+     * Returns the node which caused this event (e.g. the sender of a message or the user who joined a channel)
+     * @return the node which caused this event, or null if it was not caused by a node
+     */
+    public Node getEventSender() {
+        return null;
+    }
+}
@@ -48,6 +48,10 @@ public final class IRCKickEvent extends MessagePrototype {
         return message;
     }
 
+    public Channel getEventChannel() {
+        return channel;
+    }
+
     public String toString() {
         return sender + " has kicked " + target + " from " + channel + " (" + message + ")";
     }
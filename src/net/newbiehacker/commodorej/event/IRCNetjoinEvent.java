@@ -0,0 +1,63 @@
+package net.newbiehacker.commodorej.event;
+
+import net.newbiehacker.commodorej.Channel;
+import net.newbiehacker.commodorej.Session;
+import net.newbiehacker.commodorej.User;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents a netjoin event, which is fired when two servers which had split are linked again and the users on the far
+ * side of the split rejoin their channels
+ * @author newbiehacker
+ */
+public final class IRCNetjoinEvent extends IRCEvent {
+    private final String server, remoteServer;
+    private final List<User> users;
+    private final List<Channel> channels;
+
+    public IRCNetjoinEvent(Session source, String server, String remoteServer, List<User> users, List<Channel> channels) {
+        super(source, Type.NETJOIN);
+        this.server = server;
+        this.remoteServer = remoteServer;
+        this.users = Collections.unmodifiableList(users);
+        this.channels = Collections.unmodifiableList(channels);
+    }
+
+    /**
+     * Returns the server on our side of the split (which may be masked, e.g. "*.net")
+     * @return the server on our side of the split
+     */
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the server which rejoined our side (which may be masked, e.g. "*.split")
+     * @return the server which rejoined our side
+     */
+    public String getRemoteServer() {
+        return remoteServer;
+    }
+
+    /**
+     * Returns the users which rejoined in this netjoin
+     * @return the users which rejoined in this netjoin
+     */
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * Returns the channels which the users rejoined
+     * @return the channels which the users rejoined
+     */
+    public List<Channel> getChannels() {
+        return channels;
+    }
+
+    public String toString() {
+        return "Netjoin " + server + " " + remoteServer + " (" + users.size() + " users on " + channels.size() + " channels)";
+    }
+}
@@ -0,0 +1,63 @@
+package net.newbiehacker.commodorej.event;
+
+import net.newbiehacker.commodorej.Channel;
+import net.newbiehacker.commodorej.Session;
+import net.newbiehacker.commodorej.User;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents a netsplit event, which is fired when the link between two servers breaks and the users on the far side of it
+ * all quit at once
+ * @author newbiehacker
+ */
+public final class IRCNetsplitEvent extends IRCEvent {
+    private final String server, remoteServer;
+    private final List<User> users;
+    private final List<Channel> channels;
+
+    public IRCNetsplitEvent(Session source, String server, String remoteServer, List<User> users, List<Channel> channels) {
+        super(source, Type.NETSPLIT);
+        this.server = server;
+        this.remoteServer = remoteServer;
+        this.users = Collections.unmodifiableList(users);
+        this.channels = Collections.unmodifiableList(channels);
+    }
+
+    /**
+     * Returns the server on our side of the split (which may be masked, e.g. "*.net")
+     * @return the server on our side of the split
+     */
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the server which split from our side (which may be masked, e.g. "*.split")
+     * @return the server which split from our side
+     */
+    public String getRemoteServer() {
+        return remoteServer;
+    }
+
+    /**
+     * Returns the users which quit in this netsplit
+     * @return the users which quit in this netsplit
+     */
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * Returns the channels which the users were on
+     * @return the channels which the users were on
+     */
+    public List<Channel> getChannels() {
+        return channels;
+    }
+
+    public String toString() {
+        return "Netsplit " + server + " " + remoteServer + " (" + users.size() + " users on " + channels.size() + " channels)";
+    }
+}
@@ -1,5 +1,6 @@
 package net.newbiehacker.commodorej.event;
 
+import net.newbiehacker.commodorej.Node;
 import net.newbiehacker.commodorej.User;
 import net.newbiehacker.commodorej.Session;
 
@@ -33,6 +34,10 @@ public final class IRCNickChangeEvent extends IRCEvent {
         return oldNick;
     }
 
+    public Node getEventSender() {
+        return user;
+    }
+
     public String toString() {
         return oldNick + " is now known as " + user;
     }
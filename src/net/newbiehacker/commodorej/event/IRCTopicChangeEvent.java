@@ -23,6 +23,10 @@ public final class IRCTopicChangeEvent extends IRCEvent {
         return channel;
     }
 
+    public Channel getEventChannel() {
+        return channel;
+    }
+
     public String toString() {
         return channel.getTopicSetter() + " changes the topic on " + channel.getName() + " to " + channel.getTopic();
     }
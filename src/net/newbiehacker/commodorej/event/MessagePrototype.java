@@ -1,5 +1,6 @@
 package net.newbiehacker.commodorej.event;
 
+import net.newbiehacker.commodorej.Channel;
 import net.newbiehacker.commodorej.Node;
 import net.newbiehacker.commodorej.Session;
 
@@ -16,4 +17,12 @@ abstract class MessagePrototype extends IRCEvent {
         this.target = target;
         this.message = message;
     }
+
+    public Channel getEventChannel() {
+        return target != null && target.getType() == Node.Type.CHANNEL ? (Channel) target : null;
+    }
+
+    public Node getEventSender() {
+        return sender;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,881 @@
+package net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A stand-in IRC server for load and soak testing CommodoreJ, which runs on one NIO thread inside the same JVM as the sessions
+ * connecting to it<br />
+ * It speaks enough of the protocol for a session to register (including CAP negotiation and 005), join channels and ask about them
+ * with NAMES, WHO and MODE, and talk to the other clients. Each channel is filled with simulated users, who have no connections of
+ * their own: the server makes them talk in their channels at the configured rate, and now and then voice one of them or make one
+ * leave and rejoin. Each of their messages starts with "t=" and the System.nanoTime() at which the server sent it, so that a
+ * listener in the same JVM can tell how long the line took to reach it; a configurable share of them start with "!echo " as well,
+ * for a bot to answer.<br />
+ * Lines from clients are subject to flood limits as on a real server: lines beyond the limits are held back and handled as the
+ * limits allow, and a client which has too many lines held back is disconnected for excess flood. A client which doesn't read the
+ * lines sent to it fast enough is disconnected once too many are waiting.
+ *
+ * @author newbiehacker
+ * @see LoadTest
+ */
+public final class FakeIrcServer implements Runnable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String NAME = "fake.irc";
+    private static final int MAX_GENERATE = 10000;
+    private final String[] simNicks, simPrefixes;
+    private final FakeChannel[] simChannels;
+    private final Map<String, FakeChannel> channels;
+    private final Map<String, Client> clients;
+    private final List<Client> dirty;
+    private final Random random;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile double messageRate = 1000, churn = 0.05, echoRatio = 0.001;
+    private volatile double floodRate = 2;
+    private volatile int floodBurst = 10, recvQ = 100, sendQ = 4 << 20, messageSize = 80;
+    private volatile long generated, linesIn, linesOut, bytesOut, throttled, excessFloods, sendQExceeded, connections;
+
+    /**
+     * Creates a server with the specified number of channels, shared out between the specified number of simulated users
+     *
+     * @param channelCount the number of channels, named #load0, #load1 and so on
+     * @param userCount    the number of simulated users
+     */
+    public FakeIrcServer(int channelCount, int userCount) {
+        if (channelCount < 1)
+            throw new IllegalArgumentException("channelCount");
+        if (userCount < channelCount)
+            throw new IllegalArgumentException("Every channel needs at least one simulated user");
+        channels = new HashMap<String, FakeChannel>();
+        clients = new HashMap<String, Client>();
+        dirty = new ArrayList<Client>();
+        random = new Random(0);
+        simChannels = new FakeChannel[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            simChannels[i] = new FakeChannel("#load" + i);
+            channels.put(simChannels[i].name, simChannels[i]);
+        }
+        simNicks = new String[userCount];
+        simPrefixes = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            simNicks[i] = "sim" + i;
+            simPrefixes[i] = ":sim" + i + "!s" + i + "@h" + (i % 256) + ".load.test";
+            simChannels[i % channelCount].sims.add(i);
+        }
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback address and handling clients on a thread of our own
+     *
+     * @return the port we are listening on
+     * @throws IOException if we couldn't start listening
+     */
+    public synchronized int start() throws IOException {
+        if (running)
+            throw new IllegalStateException("This server has already been started");
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        // Plenty of clients may connect at once, and the accept queue shouldn't turn them away
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "FakeIrcServer");
+        thread.setDaemon(true);
+        thread.start();
+        return getPort();
+    }
+
+    /**
+     * Disconnects every client and stops listening, waiting for our thread to finish
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            if (selector != null)
+                selector.wakeup();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the port we are listening on
+     *
+     * @return the port we are listening on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the names of the channels the simulated users are on
+     *
+     * @return the names of the channels the simulated users are on
+     */
+    public List<String> getChannelNames() {
+        List<String> l = new ArrayList<String>(simChannels.length);
+        for (FakeChannel c : simChannels)
+            l.add(c.name);
+        return l;
+    }
+
+    /**
+     * Sets how many lines a second the simulated users send to their channels altogether (1000 by default)
+     *
+     * @param messageRate the number of lines a second, or 0 for none
+     */
+    public void setMessageRate(double messageRate) {
+        if (messageRate < 0)
+            throw new IllegalArgumentException("messageRate");
+        this.messageRate = messageRate;
+    }
+
+    /**
+     * Sets the share of the simulated users' lines which are mode changes, parts and joins rather than messages (0.05 by default)
+     *
+     * @param churn the share of lines, from 0 to 1
+     */
+    public void setChurn(double churn) {
+        if (churn < 0 || churn > 1)
+            throw new IllegalArgumentException("churn");
+        this.churn = churn;
+    }
+
+    /**
+     * Sets the share of the simulated users' messages which start with "!echo " (0.001 by default)
+     *
+     * @param echoRatio the share of messages, from 0 to 1
+     */
+    public void setEchoRatio(double echoRatio) {
+        if (echoRatio < 0 || echoRatio > 1)
+            throw new IllegalArgumentException("echoRatio");
+        this.echoRatio = echoRatio;
+    }
+
+    /**
+     * Sets the length the simulated users' messages are padded to (80 by default)
+     *
+     * @param messageSize the length of the messages, in characters
+     */
+    public void setMessageSize(int messageSize) {
+        if (messageSize < 0 || messageSize > 400)
+            throw new IllegalArgumentException("messageSize");
+        this.messageSize = messageSize;
+    }
+
+    /**
+     * Sets how fast clients may send us lines<br />
+     * By default a client may send 10 lines at once and then 2 lines a second, and is disconnected if more than 100 lines are held
+     * back
+     *
+     * @param linesPerSecond the number of lines a client may send each second once the burst is used up, or 0 for no limit
+     * @param burst          the number of lines a client may send at once
+     * @param recvQ          the number of lines which may be held back before the client is disconnected for excess flood
+     */
+    public void setFloodLimits(double linesPerSecond, int burst, int recvQ) {
+        if (linesPerSecond < 0 || burst < 1 || recvQ < 0)
+            throw new IllegalArgumentException("Flood limits can't be negative");
+        this.floodRate = linesPerSecond;
+        this.floodBurst = burst;
+        this.recvQ = recvQ;
+    }
+
+    /**
+     * Sets how many bytes may be waiting to be sent to a client before it is disconnected (4MB by default)
+     *
+     * @param sendQ the number of bytes
+     */
+    public void setSendQ(int sendQ) {
+        if (sendQ < 1024)
+            throw new IllegalArgumentException("sendQ");
+        this.sendQ = sendQ;
+    }
+
+    /**
+     * Returns the number of lines the simulated users have sent
+     *
+     * @return the number of lines the simulated users have sent
+     */
+    public long getGenerated() {
+        return generated;
+    }
+
+    /**
+     * Returns the number of lines we have received from clients
+     *
+     * @return the number of lines we have received from clients
+     */
+    public long getLinesIn() {
+        return linesIn;
+    }
+
+    /**
+     * Returns the number of lines we have sent to clients
+     *
+     * @return the number of lines we have sent to clients
+     */
+    public long getLinesOut() {
+        return linesOut;
+    }
+
+    /**
+     * Returns the number of bytes we have sent to clients
+     *
+     * @return the number of bytes we have sent to clients
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Returns the number of lines from clients which were held back by the flood limits
+     *
+     * @return the number of lines from clients which were held back by the flood limits
+     */
+    public long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Returns the number of clients we have disconnected for excess flood
+     *
+     * @return the number of clients we have disconnected for excess flood
+     */
+    public long getExcessFloods() {
+        return excessFloods;
+    }
+
+    /**
+     * Returns the number of clients we have disconnected for not reading fast enough
+     *
+     * @return the number of clients we have disconnected for not reading fast enough
+     */
+    public long getSendQExceeded() {
+        return sendQExceeded;
+    }
+
+    /**
+     * Returns the number of connections we have accepted
+     *
+     * @return the number of connections we have accepted
+     */
+    public long getConnections() {
+        return connections;
+    }
+
+    public void run() {
+        long last = System.nanoTime();
+        double owed = 0;
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                owed += (now - last) * messageRate / 1e9;
+                last = now;
+                // If we've fallen too far behind, catching up all at once would only measure the burst
+                if (owed > MAX_GENERATE)
+                    owed = MAX_GENERATE;
+                for (; owed >= 1; owed--)
+                    generate();
+                for (Client c : new ArrayList<Client>(clients.values()))
+                    if (!c.held.isEmpty())
+                        process(c);
+                flush();
+                selector.select(1);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client c = (Client) key.attachment();
+                    if (key.isWritable())
+                        write(c);
+                    if (key.isValid() && key.isReadable())
+                        read(c);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys())
+                close(key.channel());
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing to be done
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel sc;
+        while ((sc = server.accept()) != null) {
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            Client c = new Client(sc, floodBurst);
+            c.key = sc.register(selector, SelectionKey.OP_READ, c);
+            connections++;
+        }
+    }
+
+    /**
+     * Makes a simulated user send a line to one of their channels
+     */
+    private void generate() {
+        FakeChannel ch = simChannels[random.nextInt(simChannels.length)];
+        int i = random.nextInt(ch.sims.size()), sim = ch.sims.get(i);
+        double r = random.nextDouble();
+        generated++;
+        if (r < churn / 2) {
+            boolean voiced = ch.voiced.get(i);
+            ch.voiced.set(i, !voiced);
+            broadcast(ch, ":" + NAME + " MODE " + ch.name + (voiced ? " -v " : " +v ") + simNicks[sim], null);
+        } else if (r < churn) {
+            ch.voiced.clear(i);
+            broadcast(ch, simPrefixes[sim] + " PART " + ch.name + " :Be right back", null);
+            broadcast(ch, simPrefixes[sim] + " JOIN " + ch.name, null);
+        } else {
+            StringBuilder sb = new StringBuilder(messageSize + 64);
+            sb.append(simPrefixes[sim]).append(" PRIVMSG ").append(ch.name).append(" :");
+            if (random.nextDouble() < echoRatio)
+                sb.append("!echo ");
+            sb.append("t=").append(System.nanoTime()).append(' ');
+            for (int n = sb.length(); n < messageSize + simPrefixes[sim].length() + ch.name.length() + 11; n++)
+                sb.append((char) ('a' + n % 26));
+            broadcast(ch, sb.toString(), null);
+        }
+    }
+
+    private void read(Client c) {
+        int n;
+        try {
+            n = c.channel.read(c.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n == -1) {
+            disconnect(c, "Connection reset by peer");
+            return;
+        }
+        c.in.flip();
+        int start = c.in.position();
+        for (int i = start; i < c.in.limit(); i++) {
+            if (c.in.get(i) != '\n')
+                continue;
+            int end = i > start && c.in.get(i - 1) == '\r' ? i - 1 : i;
+            byte[] b = new byte[end - start];
+            c.in.position(start);
+            c.in.get(b);
+            c.held.add(new String(b, UTF8));
+            start = i + 1;
+        }
+        c.in.position(start);
+        c.in.compact();
+        if (!c.in.hasRemaining()) {
+            disconnect(c, "Line too long");
+            return;
+        }
+        process(c);
+    }
+
+    /**
+     * Handles the lines a client has sent as the flood limits allow, and disconnects it if too many are held back
+     */
+    private void process(Client c) {
+        long now = System.nanoTime();
+        if (floodRate > 0) {
+            c.tokens = Math.min(floodBurst, c.tokens + (now - c.last) * floodRate / 1e9);
+            c.last = now;
+        }
+        while (!c.held.isEmpty() && c.key.isValid()) {
+            if (floodRate > 0) {
+                if (c.tokens < 1)
+                    break;
+                c.tokens--;
+            }
+            linesIn++;
+            handle(c, c.held.poll());
+        }
+        if (c.held.size() > c.heldBefore)
+            throttled += c.held.size() - c.heldBefore;
+        c.heldBefore = c.held.size();
+        if (c.held.size() > recvQ && c.key.isValid()) {
+            excessFloods++;
+            disconnect(c, "Excess Flood");
+        }
+    }
+
+    private void handle(Client c, String line) {
+        // Clients have no business sending a prefix, so it's ignored
+        int i = line.startsWith(":") ? line.indexOf(' ') : 0;
+        List<String> p = new ArrayList<String>();
+        while (i != -1 && i < line.length()) {
+            while (i < line.length() && line.charAt(i) == ' ')
+                i++;
+            if (i == line.length())
+                break;
+            if (line.charAt(i) == ':') {
+                p.add(line.substring(i + 1));
+                break;
+            }
+            int sp = line.indexOf(' ', i);
+            p.add(sp == -1 ? line.substring(i) : line.substring(i, sp));
+            i = sp;
+        }
+        if (p.isEmpty())
+            return;
+        String cmd = p.remove(0).toUpperCase();
+        if (cmd.equals("PING")) {
+            send(c, ":" + NAME + " PONG " + NAME + " :" + (p.isEmpty() ? NAME : p.get(0)));
+        } else if (cmd.equals("PONG")) {
+            // Nothing to do
+        } else if (cmd.equals("QUIT")) {
+            disconnect(c, "Quit: " + (p.isEmpty() ? "" : p.get(0)));
+        } else if (cmd.equals("CAP")) {
+            cap(c, p);
+        } else if (cmd.equals("NICK")) {
+            nick(c, p);
+        } else if (cmd.equals("USER")) {
+            if (c.registered || p.size() < 4) {
+                numeric(c, c.registered ? "462" : "461", "USER :" + (c.registered ? "You may not reregister" : "Not enough parameters"));
+                return;
+            }
+            c.login = p.get(0);
+            c.name = p.get(3);
+            register(c);
+        } else if (!c.registered) {
+            numeric(c, "451", ":You have not registered");
+        } else if (cmd.equals("JOIN")) {
+            if (p.isEmpty())
+                numeric(c, "461", "JOIN :Not enough parameters");
+            else
+                for (String name : p.get(0).split(","))
+                    join(c, name);
+        } else if (cmd.equals("PART")) {
+            if (p.isEmpty())
+                numeric(c, "461", "PART :Not enough parameters");
+            else
+                for (String name : p.get(0).split(","))
+                    part(c, name, p.size() > 1 ? p.get(1) : null);
+        } else if (cmd.equals("PRIVMSG") || cmd.equals("NOTICE")) {
+            if (p.size() < 2)
+                numeric(c, "461", cmd + " :Not enough parameters");
+            else
+                message(c, cmd, p.get(0), p.get(1));
+        } else if (cmd.equals("MODE")) {
+            mode(c, p);
+        } else if (cmd.equals("WHO")) {
+            who(c, p.isEmpty() ? "*" : p.get(0));
+        } else if (cmd.equals("NAMES")) {
+            FakeChannel ch = p.isEmpty() ? null : channels.get(p.get(0).toLowerCase());
+            if (ch != null)
+                names(c, ch);
+            else
+                numeric(c, "366", (p.isEmpty() ? "*" : p.get(0)) + " :End of /NAMES list.");
+        } else if (cmd.equals("TOPIC")) {
+            topic(c, p);
+        } else {
+            numeric(c, "421", cmd + " :Unknown command");
+        }
+    }
+
+    private void cap(Client c, List<String> p) {
+        String sub = p.isEmpty() ? "" : p.get(0).toUpperCase();
+        if (sub.equals("LS")) {
+            c.capping = !c.registered;
+            send(c, ":" + NAME + " CAP " + c.nickOrStar() + " LS :multi-prefix");
+        } else if (sub.equals("REQ")) {
+            String req = p.size() > 1 ? p.get(1).trim() : "";
+            boolean ok = req.length() > 0;
+            for (String cap : req.split(" +"))
+                ok &= cap.equals("multi-prefix") || cap.equals("-multi-prefix");
+            send(c, ":" + NAME + " CAP " + c.nickOrStar() + (ok ? " ACK :" : " NAK :") + req);
+        } else if (sub.equals("END")) {
+            c.capping = false;
+            register(c);
+        } else if (sub.equals("LIST")) {
+            send(c, ":" + NAME + " CAP " + c.nickOrStar() + " LIST :");
+        } else {
+            numeric(c, "410", sub + " :Invalid CAP command");
+        }
+    }
+
+    private void nick(Client c, List<String> p) {
+        if (p.isEmpty()) {
+            numeric(c, "431", ":No nickname given");
+            return;
+        }
+        String nick = p.get(0);
+        if (clients.containsKey(nick.toLowerCase()) || isSim(nick)) {
+            numeric(c, "433", nick + " :Nickname is already in use");
+            return;
+        }
+        if (!c.registered) {
+            c.nick = nick;
+            register(c);
+            return;
+        }
+        String line = c.prefix() + " NICK :" + nick;
+        Set<Client> told = new HashSet<Client>();
+        told.add(c);
+        send(c, line);
+        for (FakeChannel ch : c.channels)
+            for (Client o : ch.clients)
+                if (told.add(o))
+                    send(o, line);
+        clients.remove(c.nick.toLowerCase());
+        c.nick = nick;
+        clients.put(nick.toLowerCase(), c);
+    }
+
+    private boolean isSim(String nick) {
+        if (!nick.regionMatches(true, 0, "sim", 0, 3) || nick.length() == 3)
+            return false;
+        for (int i = 3; i < nick.length(); i++)
+            if (!Character.isDigit(nick.charAt(i)))
+                return false;
+        try {
+            return Integer.parseInt(nick.substring(3)) < simNicks.length;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void register(Client c) {
+        if (c.registered || c.capping || c.nick == null || c.login == null)
+            return;
+        if (clients.containsKey(c.nick.toLowerCase())) {
+            numeric(c, "433", c.nick + " :Nickname is already in use");
+            c.nick = null;
+            return;
+        }
+        c.registered = true;
+        c.host = "client" + connections + ".localhost";
+        clients.put(c.nick.toLowerCase(), c);
+        numeric(c, "001", ":Welcome to the FakeNet IRC Network " + c.nick + "!" + c.login + "@" + c.host);
+        numeric(c, "002", ":Your host is " + NAME + ", running version FakeIrcServer");
+        numeric(c, "003", ":This server was created for load testing");
+        numeric(c, "004", NAME + " FakeIrcServer iow beIklmnostv");
+        numeric(c, "005", "PREFIX=(ov)@+ CHANTYPES=# CHANMODES=beI,k,l,imnt CASEMAPPING=ascii NETWORK=FakeNet NICKLEN=30 EXCEPTS INVEX :are supported by this server");
+        numeric(c, "375", ":- " + NAME + " Message of the day -");
+        numeric(c, "372", ":- " + simChannels.length + " channels, " + simNicks.length + " simulated users");
+        numeric(c, "376", ":End of /MOTD command.");
+    }
+
+    private void join(Client c, String name) {
+        if (!name.startsWith("#") || name.length() < 2) {
+            numeric(c, "403", name + " :No such channel");
+            return;
+        }
+        String key = name.toLowerCase();
+        FakeChannel ch = channels.get(key);
+        if (ch == null)
+            channels.put(key, ch = new FakeChannel(name));
+        if (!ch.clients.add(c))
+            return;
+        c.channels.add(ch);
+        broadcast(ch, c.prefix() + " JOIN " + ch.name, null);
+        if (ch.topic != null)
+            numeric(c, "332", ch.name + " :" + ch.topic);
+        names(c, ch);
+    }
+
+    private void names(Client c, FakeChannel ch) {
+        String head = ":" + NAME + " 353 " + c.nick + " = " + ch.name + " :";
+        StringBuilder sb = new StringBuilder(head);
+        for (int i = 0; i < ch.sims.size(); i++) {
+            if (sb.length() > 400) {
+                send(c, sb.toString());
+                sb.setLength(head.length());
+            }
+            if (sb.length() > head.length())
+                sb.append(' ');
+            sb.append(i == 0 ? "@" : ch.voiced.get(i) ? "+" : "").append(simNicks[ch.sims.get(i)]);
+        }
+        for (Client o : ch.clients) {
+            if (sb.length() > 400) {
+                send(c, sb.toString());
+                sb.setLength(head.length());
+            }
+            if (sb.length() > head.length())
+                sb.append(' ');
+            sb.append(o.nick);
+        }
+        if (sb.length() > head.length())
+            send(c, sb.toString());
+        numeric(c, "366", ch.name + " :End of /NAMES list.");
+    }
+
+    private void part(Client c, String name, String reason) {
+        FakeChannel ch = channels.get(name.toLowerCase());
+        if (ch == null || !ch.clients.contains(c)) {
+            numeric(c, "442", name + " :You're not on that channel");
+            return;
+        }
+        broadcast(ch, c.prefix() + " PART " + ch.name + (reason == null ? "" : " :" + reason), null);
+        ch.clients.remove(c);
+        c.channels.remove(ch);
+    }
+
+    private void message(Client c, String cmd, String target, String text) {
+        String line = c.prefix() + " " + cmd + " " + target + " :" + text;
+        if (target.startsWith("#")) {
+            FakeChannel ch = channels.get(target.toLowerCase());
+            if (ch == null)
+                numeric(c, "401", target + " :No such nick/channel");
+            else
+                broadcast(ch, line, c);
+            return;
+        }
+        Client o = clients.get(target.toLowerCase());
+        if (o != null)
+            send(o, line);
+        else if (!isSim(target))
+            numeric(c, "401", target + " :No such nick/channel");
+    }
+
+    private void mode(Client c, List<String> p) {
+        if (p.isEmpty()) {
+            numeric(c, "461", "MODE :Not enough parameters");
+            return;
+        }
+        String target = p.get(0);
+        if (!target.startsWith("#")) {
+            numeric(c, "221", "+i");
+            return;
+        }
+        FakeChannel ch = channels.get(target.toLowerCase());
+        if (ch == null) {
+            numeric(c, "403", target + " :No such channel");
+        } else if (p.size() == 1) {
+            numeric(c, "324", ch.name + " +nt");
+        } else if (p.get(1).equals("b") || p.get(1).equals("+b")) {
+            numeric(c, "368", ch.name + " :End of channel ban list");
+        } else if (p.get(1).equals("e") || p.get(1).equals("+e")) {
+            numeric(c, "349", ch.name + " :End of channel exception list");
+        } else if (p.get(1).equals("I") || p.get(1).equals("+I")) {
+            numeric(c, "347", ch.name + " :End of channel invite list");
+        } else {
+            StringBuilder sb = new StringBuilder(c.prefix()).append(" MODE ").append(ch.name);
+            for (int i = 1; i < p.size(); i++)
+                sb.append(' ').append(p.get(i));
+            broadcast(ch, sb.toString(), null);
+        }
+    }
+
+    private void who(Client c, String target) {
+        FakeChannel ch = channels.get(target.toLowerCase());
+        if (ch != null) {
+            for (int i = 0; i < ch.sims.size(); i++) {
+                int sim = ch.sims.get(i);
+                numeric(c, "352", ch.name + " s" + sim + " h" + (sim % 256) + ".load.test " + NAME + " " + simNicks[sim] + " H"
+                        + (i == 0 ? "@" : ch.voiced.get(i) ? "+" : "") + " :0 Simulated user " + sim);
+            }
+            for (Client o : ch.clients)
+                numeric(c, "352", ch.name + " " + o.login + " " + o.host + " " + NAME + " " + o.nick + " H :0 " + o.name);
+        } else {
+            Client o = clients.get(target.toLowerCase());
+            if (o != null)
+                numeric(c, "352", "* " + o.login + " " + o.host + " " + NAME + " " + o.nick + " H :0 " + o.name);
+        }
+        numeric(c, "315", target + " :End of /WHO list.");
+    }
+
+    private void topic(Client c, List<String> p) {
+        FakeChannel ch = p.isEmpty() ? null : channels.get(p.get(0).toLowerCase());
+        if (ch == null) {
+            numeric(c, "403", (p.isEmpty() ? "*" : p.get(0)) + " :No such channel");
+        } else if (p.size() == 1) {
+            if (ch.topic == null)
+                numeric(c, "331", ch.name + " :No topic is set");
+            else
+                numeric(c, "332", ch.name + " :" + ch.topic);
+        } else {
+            ch.topic = p.get(1);
+            broadcast(ch, c.prefix() + " TOPIC " + ch.name + " :" + ch.topic, null);
+        }
+    }
+
+    private void numeric(Client c, String numeric, String rest) {
+        send(c, ":" + NAME + " " + numeric + " " + c.nickOrStar() + " " + rest);
+    }
+
+    /**
+     * Sends a line to every client on a channel, except the one it came from
+     */
+    private void broadcast(FakeChannel ch, String line, Client from) {
+        if (ch.clients.isEmpty())
+            return;
+        byte[] b = (line + "\r\n").getBytes(UTF8);
+        for (Client c : ch.clients.toArray(new Client[ch.clients.size()]))
+            if (c != from)
+                send(c, b);
+    }
+
+    private void send(Client c, String line) {
+        send(c, (line + "\r\n").getBytes(UTF8));
+    }
+
+    private void send(Client c, byte[] b) {
+        if (!c.key.isValid())
+            return;
+        if (c.out.remaining() < b.length) {
+            int need = c.out.position() + b.length;
+            if (need > sendQ) {
+                sendQExceeded++;
+                c.out.clear();
+                disconnect(c, "SendQ exceeded");
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(sendQ, Math.max(need, c.out.capacity() * 2)));
+            c.out.flip();
+            bigger.put(c.out);
+            c.out = bigger;
+        }
+        c.out.put(b);
+        linesOut++;
+        if (!c.dirty) {
+            c.dirty = true;
+            dirty.add(c);
+        }
+    }
+
+    /**
+     * Writes what we can of what is waiting for each client we've sent lines to since we last did
+     */
+    private void flush() {
+        for (Client c : dirty) {
+            c.dirty = false;
+            if (c.key.isValid())
+                write(c);
+        }
+        dirty.clear();
+    }
+
+    private void write(Client c) {
+        c.out.flip();
+        try {
+            bytesOut += c.channel.write(c.out);
+        } catch (IOException e) {
+            c.out.clear();
+            disconnect(c, "Write error");
+            return;
+        } finally {
+            c.out.compact();
+        }
+        if (c.key.isValid())
+            c.key.interestOps(c.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Tells a client and the others on its channels that it is leaving, and closes its connection once what is waiting for it has
+     * been written as far as the socket will take it
+     */
+    private void disconnect(Client c, String reason) {
+        if (!c.key.isValid())
+            return;
+        Set<Client> told = new HashSet<Client>();
+        told.add(c);
+        String line = c.prefix() + " QUIT :" + reason;
+        for (FakeChannel ch : c.channels) {
+            ch.clients.remove(c);
+            for (Client o : ch.clients)
+                if (told.add(o))
+                    send(o, line);
+        }
+        c.channels.clear();
+        if (c.registered && clients.get(c.nick.toLowerCase()) == c)
+            clients.remove(c.nick.toLowerCase());
+        send(c, "ERROR :Closing Link: " + c.host + " (" + reason + ")");
+        if (c.out.position() > 0) {
+            c.out.flip();
+            try {
+                c.channel.write(c.out);
+            } catch (IOException e) {
+                // It's going anyway
+            }
+        }
+        c.held.clear();
+        c.key.cancel();
+        close(c.channel);
+    }
+
+    private static void close(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing to be done
+        }
+    }
+
+    /**
+     * A channel, with the simulated users and clients on it
+     */
+    private static final class FakeChannel {
+        final String name;
+        final List<Integer> sims;
+        final BitSet voiced;
+        final Set<Client> clients;
+        String topic;
+
+        FakeChannel(String name) {
+            this.name = name;
+            this.sims = new ArrayList<Integer>();
+            this.voiced = new BitSet();
+            this.clients = new LinkedHashSet<Client>();
+        }
+    }
+
+    /**
+     * A connection from a client, with its lines held back by the flood limits and those waiting to be written to it
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer in;
+        final ArrayDeque<String> held;
+        final Set<FakeChannel> channels;
+        SelectionKey key;
+        ByteBuffer out;
+        String nick, login, name, host = "unregistered";
+        boolean registered, capping, dirty;
+        double tokens;
+        long last;
+        int heldBefore;
+
+        Client(SocketChannel channel, int burst) {
+            this.channel = channel;
+            this.in = ByteBuffer.allocate(16384);
+            this.out = ByteBuffer.allocate(65536);
+            this.held = new ArrayDeque<String>();
+            this.channels = new LinkedHashSet<FakeChannel>();
+            this.tokens = burst;
+            this.last = System.nanoTime();
+        }
+
+        String prefix() {
+            return ":" + nick + "!" + login + "@" + host;
+        }
+
+        String nickOrStar() {
+            return nick == null ? "*" : nick;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net;
+
+import net.newbiehacker.commodorej.ConnectionManager;
+import net.newbiehacker.commodorej.Session;
+import net.newbiehacker.commodorej.event.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Load and soak test for CommodoreJ, which connects a number of sessions to a FakeIrcServer in the same JVM and reports how they
+ * keep up with the traffic of its simulated users<br />
+ * Every few seconds, and again at the end, it prints how many lines the server has sent and how many messages have reached the
+ * listener, how long they took to get there from the server (by percentile), how the sessions' flood controls are holding back the
+ * answers to "!echo" messages, and whether the server has had to hold back or disconnect any of the sessions.<br />
+ * Usage: LoadTest [-clients n] [-channels n] [-users n] [-rate lines/s] [-duration s] [-size chars] [-churn share] [-echo share]
+ * [-flood lines/s burst recvq] [-botflood lines/s burst] [-report s]
+ *
+ * @author newbiehacker
+ * @see FakeIrcServer
+ */
+public final class LoadTest implements IRCEventListener, ErrorHandler {
+    private static final int SAMPLES = 1 << 20;
+    private final ConnectionManager cm;
+    private final List<String> channels;
+    private final long[] samples, all;
+    private int sampleCount, allCount;
+    private long messages, lost, echoes, disconnects, errors;
+    private double botRate = 2;
+    private int botBurst = 5;
+
+    private LoadTest(ConnectionManager cm, List<String> channels) {
+        this.cm = cm;
+        this.channels = channels;
+        this.samples = new long[SAMPLES];
+        this.all = new long[SAMPLES];
+    }
+
+    /**
+     * Application entry point
+     *
+     * @param args the arguments to send to this program
+     * @throws IOException if the server couldn't be started
+     * @throws InterruptedException if we are interrupted while the test runs
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = 4, channelCount = 20, users = 5000, duration = 30, report = 5;
+        double rate = 1000;
+        String[] flood = null, botFlood = null;
+        Double churn = null, echo = null;
+        Integer size = null;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-clients"))
+                clients = Integer.parseInt(args[++i]);
+            else if (a.equals("-channels"))
+                channelCount = Integer.parseInt(args[++i]);
+            else if (a.equals("-users"))
+                users = Integer.parseInt(args[++i]);
+            else if (a.equals("-rate"))
+                rate = Double.parseDouble(args[++i]);
+            else if (a.equals("-duration"))
+                duration = Integer.parseInt(args[++i]);
+            else if (a.equals("-size"))
+                size = Integer.valueOf(args[++i]);
+            else if (a.equals("-churn"))
+                churn = Double.valueOf(args[++i]);
+            else if (a.equals("-echo"))
+                echo = Double.valueOf(args[++i]);
+            else if (a.equals("-flood"))
+                flood = new String[]{args[++i], args[++i], args[++i]};
+            else if (a.equals("-botflood"))
+                botFlood = new String[]{args[++i], args[++i]};
+            else if (a.equals("-report"))
+                report = Integer.parseInt(args[++i]);
+            else
+                throw new IllegalArgumentException("Unknown argument " + a);
+        }
+        FakeIrcServer server = new FakeIrcServer(channelCount, users);
+        server.setMessageRate(rate);
+        if (size != null)
+            server.setMessageSize(size);
+        if (churn != null)
+            server.setChurn(churn);
+        if (echo != null)
+            server.setEchoRatio(echo);
+        if (flood != null)
+            server.setFloodLimits(Double.parseDouble(flood[0]), Integer.parseInt(flood[1]), Integer.parseInt(flood[2]));
+        int port = server.start();
+
+        ConnectionManager cm = new ConnectionManager();
+        LoadTest test = new LoadTest(cm, server.getChannelNames());
+        if (botFlood != null) {
+            test.botRate = Double.parseDouble(botFlood[0]);
+            test.botBurst = Integer.parseInt(botFlood[1]);
+        }
+        cm.registerErrorHandler(test);
+        cm.registerListener(test);
+        System.out.println("Connecting " + clients + " sessions to " + channelCount + " channels of " + users + " users, at " + rate
+                + " lines/s for " + duration + "s");
+        for (int i = 0; i < clients; i++)
+            cm.connect("127.0.0.1", port, "load" + i, "load", "CommodoreJ load test");
+
+        long start = System.currentTimeMillis(), end = start + duration * 1000L;
+        long lastGenerated = 0, lastMessages = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(report * 1000L, Math.max(1, end - System.currentTimeMillis())));
+            long generated = server.getGenerated(), messages = test.getMessages();
+            System.out.printf("[%3ds] simulated users sent %d lines (%d/s), %d of their messages reached the listener (%d/s)%n",
+                    (System.currentTimeMillis() - start) / 1000, generated, (generated - lastGenerated) / report, messages,
+                    (messages - lastMessages) / report);
+            test.report(server, false);
+            lastGenerated = generated;
+            lastMessages = messages;
+        }
+        System.out.println();
+        System.out.println("Final report");
+        test.report(server, true);
+        cm.stop();
+        server.stop();
+        System.exit(0);
+    }
+
+    public void onIRCEvent(IRCEvent e) {
+        switch (e.getType()) {
+            case CONNECT:
+                Session s = e.getSource();
+                s.setFloodLimits(botRate, botBurst, 0, 0);
+                for (String chan : channels)
+                    s.joinChannel(chan);
+                break;
+            case MESSAGE:
+                IRCMessageEvent m = (IRCMessageEvent) e;
+                String text = m.getMessage();
+                boolean echo = text.startsWith("!echo ");
+                // Only the simulated users' messages start with the time, and not the echoes of the other sessions
+                int t = echo ? 6 : 0;
+                if (!text.startsWith("t=", t))
+                    break;
+                int sp = text.indexOf(' ', t);
+                long sent;
+                try {
+                    sent = Long.parseLong(text.substring(t + 2, sp == -1 ? text.length() : sp));
+                } catch (NumberFormatException ex) {
+                    break;
+                }
+                sample(System.nanoTime() - sent);
+                if (echo) {
+                    synchronized (this) {
+                        echoes++;
+                    }
+                    m.getSource().sendMessage(m.getTarget().toString(), "echo " + text.substring(t));
+                }
+                break;
+            case DISCONNECT:
+                synchronized (this) {
+                    disconnects++;
+                }
+                break;
+        }
+    }
+
+    public void onError(Throwable t) {
+        synchronized (this) {
+            errors++;
+        }
+        t.printStackTrace();
+    }
+
+    private synchronized void sample(long latency) {
+        messages++;
+        if (sampleCount < samples.length)
+            samples[sampleCount++] = latency;
+        if (allCount < all.length)
+            all[allCount++] = latency;
+        else
+            lost++;
+    }
+
+    private synchronized long getMessages() {
+        return messages;
+    }
+
+    /**
+     * Prints the latencies sampled since the last report, or over the whole test if it's the last, along with the state of the
+     * sessions and the server
+     */
+    private void report(FakeIrcServer server, boolean last) {
+        long[] l;
+        long echoes, disconnects, errors, lost;
+        synchronized (this) {
+            lost = this.lost;
+            l = last ? Arrays.copyOf(all, allCount) : Arrays.copyOf(samples, sampleCount);
+            sampleCount = 0;
+            echoes = this.echoes;
+            disconnects = this.disconnects;
+            errors = this.errors;
+        }
+        Arrays.sort(l);
+        if (l.length > 0)
+            System.out.printf("  latency: p50 %.2fms, p90 %.2fms, p99 %.2fms, p99.9 %.2fms, max %.2fms over %d messages%n",
+                    percentile(l, 50), percentile(l, 90), percentile(l, 99), percentile(l, 99.9), l[l.length - 1] / 1e6, l.length);
+        int queued = 0;
+        long sent = 0, dropped = 0, maxWait = 0, totalWait = 0;
+        for (Session s : cm.getSessions()) {
+            queued += s.getOutboundQueueSize();
+            sent += s.getOutboundLinesSent();
+            dropped += s.getOutboundLinesDropped();
+            totalWait += s.getAverageOutboundWait() * s.getOutboundLinesSent();
+            maxWait = Math.max(maxWait, s.getMaxOutboundWait());
+        }
+        System.out.printf("  sessions: %d echoes asked for, %d lines sent, %d waiting, %d dropped as duplicates, average wait %dms, max wait %dms%n",
+                echoes, sent, queued, dropped, sent == 0 ? 0 : totalWait / sent, maxWait);
+        System.out.printf("  listener: %d events waiting (peak %d), %d dropped; %d disconnects, %d errors%n",
+                cm.getPendingEvents(), cm.getPeakPendingEvents(), cm.getDroppedEvents(), disconnects, errors);
+        System.out.printf("  server: %d connections, %d lines in, %d held back by flood limits, %d excess floods, %d sendq exceeded, %.1fMB out%n",
+                server.getConnections(), server.getLinesIn(), server.getThrottled(), server.getExcessFloods(),
+                server.getSendQExceeded(), server.getBytesOut() / 1048576.0);
+        if (last && lost > 0)
+            System.out.println("  (" + lost + " latencies weren't sampled, as there were too many)");
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+}
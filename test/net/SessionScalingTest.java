@@ -0,0 +1,123 @@
+package net;
+
+import net.newbiehacker.commodorej.ConnectionManager;
+import net.newbiehacker.commodorej.Session;
+import net.newbiehacker.commodorej.event.ErrorHandler;
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connects 1,000 sessions from one ConnectionManager to a FakeIrcServer, and checks that they all register, join their channels and
+ * hear the simulated users talking, on a handful of threads and without any of them being disconnected
+ *
+ * @author newbiehacker
+ * @see LoadTest
+ */
+public class SessionScalingTest implements IRCEventListener, ErrorHandler {
+    private static final int SESSIONS = 1000;
+    private static final int CHANNELS = 50;
+    private static final long TIMEOUT = 60000;
+    private final AtomicInteger connects = new AtomicInteger(), disconnects = new AtomicInteger();
+    private final Set<Session> heard = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+    private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    private FakeIrcServer server;
+    private ConnectionManager cm;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeIrcServer(CHANNELS, CHANNELS * 10);
+        server.setMessageRate(2000);
+        server.setChurn(0.01);
+        server.setEchoRatio(0);
+        cm = new ConnectionManager();
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+        server.stop();
+    }
+
+    public void onIRCEvent(IRCEvent e) {
+        switch (e.getType()) {
+            case CONNECT:
+                connects.incrementAndGet();
+                String nick = e.getSource().getNick();
+                e.getSource().joinChannel("#load" + Integer.parseInt(nick.substring("scale".length())) % CHANNELS);
+                break;
+            case MESSAGE:
+                heard.add(e.getSource());
+                break;
+            case DISCONNECT:
+                disconnects.incrementAndGet();
+                break;
+        }
+    }
+
+    public void onError(Throwable t) {
+        errors.add(t);
+    }
+
+    private void await(String what, int count, Counter counter) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (counter.get() < count) {
+            assertTrue(errors.toString(), errors.isEmpty());
+            assertEquals("disconnects", 0, disconnects.get());
+            if (System.currentTimeMillis() > end)
+                fail("Only " + counter.get() + " of " + count + " sessions " + what);
+            Thread.sleep(50);
+        }
+    }
+
+    private interface Counter {
+        int get();
+    }
+
+    @Test
+    public void aThousandSessions() throws Exception {
+        cm.registerErrorHandler(this);
+        cm.registerListener(this);
+        int port = server.start();
+        int threadsBefore = Thread.activeCount();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < SESSIONS; i++)
+            cm.connect("127.0.0.1", port, "scale" + i, "scale", "CommodoreJ scaling test");
+
+        await("connected", SESSIONS, new Counter() {
+            public int get() {
+                return connects.get();
+            }
+        });
+        long connected = System.currentTimeMillis();
+        await("heard from their channel", SESSIONS, new Counter() {
+            public int get() {
+                return heard.size();
+            }
+        });
+        int threads = Thread.activeCount() - threadsBefore;
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf("%d sessions connected in %dms and all heard from their channels in %dms, using %d threads and %.1fMB of heap%n",
+                SESSIONS, connected - start, System.currentTimeMillis() - start, threads, (rt.totalMemory() - rt.freeMemory()) / 1048576.0);
+
+        assertEquals(SESSIONS, cm.getSessions().size());
+        assertEquals(SESSIONS, server.getConnections());
+        assertEquals(0, server.getExcessFloods());
+        assertEquals(0, server.getSendQExceeded());
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, disconnects.get());
+        // The sessions share the manager's I/O processors and event workers, rather than having threads of their own
+        assertTrue(threads + " threads", threads < 100);
+    }
+}
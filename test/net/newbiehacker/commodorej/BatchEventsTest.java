@@ -0,0 +1,70 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCBatchEvent;
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCQuitEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the lines of a batch reach both the listeners which want them together and those which only asked for their types
+ *
+ * @author newbiehacker
+ */
+public class BatchEventsTest {
+    private ConnectionManager cm;
+    private TestConnection c;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").welcome();
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    @Test
+    public void typedSubscribersGetTheLinesOfABatch() throws Exception {
+        TestListener all = new TestListener(), quits = new TestListener();
+        cm.registerListener(all);
+        cm.subscribe(quits, EnumSet.of(IRCEvent.Type.QUIT));
+        c.receive(":irc.example.net BATCH +ref example",
+                "@batch=ref :a!login@host QUIT :bye",
+                "@batch=ref :b!login@host QUIT :bye",
+                ":irc.example.net BATCH -ref");
+        List<IRCEvent> l = quits.await(IRCEvent.Type.QUIT, 2);
+        assertEquals("a", ((IRCQuitEvent) l.get(0)).getUser().getNick());
+        assertEquals("b", ((IRCQuitEvent) l.get(1)).getUser().getNick());
+        // A listener which takes batches gets the quits in the batch, and not a second time on their own
+        IRCBatchEvent b = (IRCBatchEvent) all.await(IRCEvent.Type.BATCH, 1).get(0);
+        assertEquals("example", b.getBatchType());
+        assertEquals(2, b.getEvents().size());
+        assertTrue(all.events(IRCEvent.Type.QUIT).isEmpty());
+        assertEquals(2, quits.events().size());
+    }
+
+    @Test
+    public void typedSubscribersGetTheQuitsOfANetsplitBatch() throws Exception {
+        TestListener quits = new TestListener();
+        cm.subscribe(quits, EnumSet.of(IRCEvent.Type.QUIT));
+        c.session.setSplitUserEvents(true);
+        c.receive(":bot!login@host JOIN #chan",
+                ":a!login@host JOIN #chan",
+                ":b!login@host JOIN #chan",
+                ":irc.example.net BATCH +split netsplit hub.example.net leaf.example.net",
+                "@batch=split :a!login@host QUIT :hub.example.net leaf.example.net",
+                "@batch=split :b!login@host QUIT :hub.example.net leaf.example.net",
+                ":irc.example.net BATCH -split");
+        assertEquals(2, quits.await(IRCEvent.Type.QUIT, 2).size());
+        assertEquals(1, c.session.getChannel("#chan").getUserCount());
+    }
+}
@@ -0,0 +1,74 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests folding names to lower case, and hashing and comparing them as though they had been folded
+ *
+ * @author newbiehacker
+ */
+public class CaseMappingTest {
+    private static final String[] NAMES = {"", "nick", "NICK", "NiCk", "[]\\~", "{}|^", "Nick[away]", "nick{away}", "\\o/", "|o/",
+            "~tilde", "^tilde", "ÉlÈve", "日本語", "a_b-c`d"};
+
+    @Test
+    public void hashCodesAreThoseOfTheFoldedNames() {
+        for (CaseMapping cm : CaseMapping.values())
+            for (String s : NAMES)
+                assertEquals(cm + " " + s, cm.fold(s).hashCode(), cm.hashCode(s));
+    }
+
+    @Test
+    public void hashCodesOfEveryAsciiCharacter() {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 128; c++)
+            sb.append(c);
+        String all = sb.toString();
+        for (CaseMapping cm : CaseMapping.values()) {
+            assertEquals(cm.toString(), cm.fold(all).hashCode(), cm.hashCode(all));
+            for (char c = 0; c < 128; c++)
+                assertEquals(cm + " " + (int) c, cm.fold(String.valueOf(c)).hashCode(), cm.hashCode(String.valueOf(c)));
+        }
+    }
+
+    @Test
+    public void hashCodesOfRandomNames() {
+        Random r = new Random(42);
+        char[] c = new char[16];
+        for (int n = 0; n < 10000; n++) {
+            int len = r.nextInt(c.length);
+            for (int i = 0; i < len; i++)
+                c[i] = (char) (n % 10 == 0 ? r.nextInt(0x3000) : r.nextInt(128));
+            String s = new String(c, 0, len);
+            for (CaseMapping cm : CaseMapping.values())
+                assertEquals(cm.fold(s).hashCode(), cm.hashCode(s));
+        }
+    }
+
+    @Test
+    public void eachMappingFoldsItsOwnCharacters() {
+        assertEquals("{}|^", CaseMapping.RFC1459.fold("[]\\~"));
+        assertEquals("{}|~", CaseMapping.STRICT_RFC1459.fold("[]\\~"));
+        assertEquals("[]\\~", CaseMapping.ASCII.fold("[]\\~"));
+        assertTrue(CaseMapping.RFC1459.equals("Nick[away]", "nick{AWAY}"));
+        assertFalse(CaseMapping.ASCII.equals("Nick[away]", "nick{AWAY}"));
+        assertTrue(CaseMapping.STRICT_RFC1459.equals("a\\b", "A|B"));
+        assertFalse(CaseMapping.STRICT_RFC1459.equals("a~b", "A^B"));
+        // The same hash code for names which are the same, which is what lets FoldedMap find them
+        assertEquals(CaseMapping.RFC1459.hashCode("Nick[away]"), CaseMapping.RFC1459.hashCode("nick{AWAY}"));
+        assertEquals(CaseMapping.STRICT_RFC1459.hashCode("a\\b"), CaseMapping.STRICT_RFC1459.hashCode("A|B"));
+    }
+
+    @Test
+    public void namesAlreadyInLowerCaseAreKept() {
+        String s = "nick{away}";
+        assertSame(s, CaseMapping.RFC1459.fold(s));
+        assertTrue(CaseMapping.RFC1459.isFolded(s));
+        assertFalse(CaseMapping.RFC1459.isFolded("nick[away]"));
+        assertTrue(CaseMapping.ASCII.isFolded("nick[away]"));
+    }
+}
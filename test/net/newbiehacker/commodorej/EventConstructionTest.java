@@ -0,0 +1,79 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCServerMessageEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that events are only created for listeners which want them, are dated without a Date, and share their server nodes
+ *
+ * @author newbiehacker
+ */
+public class EventConstructionTest {
+    private ConnectionManager cm;
+    private TestConnection c;
+    private TestListener l;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").welcome();
+        l = new TestListener();
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    @Test
+    public void numericsFromTheSameServerShareItsNode() throws Exception {
+        cm.subscribe(l, EnumSet.of(IRCEvent.Type.SERVER_MESSAGE));
+        c.receive(":irc.example.net 251 bot :There are 5 users",
+                ":irc.example.net 252 bot 1 :operators online",
+                ":hub.example.net 253 bot 2 :unknown connections",
+                ":irc.example.net 254 bot 3 :channels formed",
+                "255 bot :I have 5 clients");
+        List<IRCEvent> events = l.await(IRCEvent.Type.SERVER_MESSAGE, 5);
+        Node server = ((IRCServerMessageEvent) events.get(0)).getSender();
+        assertEquals("irc.example.net", server.toString());
+        assertSame(server, ((IRCServerMessageEvent) events.get(1)).getSender());
+        Node hub = ((IRCServerMessageEvent) events.get(2)).getSender();
+        assertEquals("hub.example.net", hub.toString());
+        assertSame(server, ((IRCServerMessageEvent) events.get(3)).getSender());
+        // A line without a prefix came from the server we last heard from
+        assertSame(server, ((IRCServerMessageEvent) events.get(4)).getSender());
+        assertEquals(255, ((IRCServerMessageEvent) events.get(4)).getNumeric());
+    }
+
+    @Test
+    public void eventsNobodyWantsAreNotFired() throws Exception {
+        cm.subscribe(l, EnumSet.of(IRCEvent.Type.NOTICE));
+        long fired = cm.getFiredEvents();
+        c.receive(":nick!login@host PRIVMSG bot :hello", ":irc.example.net 251 bot :There are 5 users");
+        assertEquals(fired, cm.getFiredEvents());
+        c.receive(":nick!login@host NOTICE bot :hello");
+        assertEquals(fired + 1, cm.getFiredEvents());
+    }
+
+    @Test
+    public void eventsAreDatedByTheirLine() throws Exception {
+        cm.registerListener(l);
+        long before = System.currentTimeMillis();
+        c.receive("@time=2020-01-01T00:00:00.000Z :nick!login@host PRIVMSG bot :from the history",
+                ":nick!login@host PRIVMSG bot :just now");
+        long after = System.currentTimeMillis();
+        List<IRCEvent> events = l.await(IRCEvent.Type.MESSAGE, 2);
+        assertEquals(1577836800000L, events.get(0).getTimestamp());
+        assertEquals(1577836800000L, events.get(0).getTime().getTime());
+        long t = events.get(1).getTimestamp();
+        assertTrue(t >= before && t <= after);
+    }
+}
@@ -0,0 +1,161 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCMessageEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the delivery of events from a session to the listeners which want them
+ *
+ * @author newbiehacker
+ */
+public class EventDispatcherTest {
+    private ConnectionManager cm;
+    private TestConnection c;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(16, 2);
+        c = new TestConnection(cm, "bot").welcome();
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    private void messages(String target, int from, int to) throws Exception {
+        for (int i = from; i < to; i++)
+            c.receive(":nick!login@host PRIVMSG " + target + " :" + i);
+    }
+
+    private static void assertInOrder(List<IRCEvent> events, int count) {
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(String.valueOf(i), ((IRCMessageEvent) events.get(i)).getMessage());
+    }
+
+    private void awaitDelivered(long count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (cm.getDeliveredEvents() < count) {
+            if (System.currentTimeMillis() > end)
+                fail("Only " + cm.getDeliveredEvents() + " of " + count + " events were delivered");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void eachListenerSeesEventsInOrder() throws Exception {
+        TestListener a = new TestListener(), b = new TestListener();
+        cm.registerListener(a);
+        cm.registerListener(b);
+        // Far more than a mailbox holds, so the session has to wait for the listeners on the way
+        messages("bot", 0, 500);
+        assertInOrder(a.await(IRCEvent.Type.MESSAGE, 500), 500);
+        assertInOrder(b.await(IRCEvent.Type.MESSAGE, 500), 500);
+    }
+
+    @Test
+    public void listenerErrorsGoToTheErrorHandlers() throws Exception {
+        final RuntimeException thrown = new RuntimeException("listener failed");
+        TestListener errors = new TestListener();
+        TestListener l = new TestListener() {
+            public synchronized void onIRCEvent(IRCEvent e) {
+                super.onIRCEvent(e);
+                if (e.getType() == IRCEvent.Type.MESSAGE && ((IRCMessageEvent) e).getMessage().equals("0"))
+                    throw thrown;
+            }
+        };
+        cm.registerErrorHandler(errors);
+        cm.registerListener(l);
+        messages("bot", 0, 2);
+        // The listener goes on getting events after throwing
+        assertInOrder(l.await(IRCEvent.Type.MESSAGE, 2), 2);
+        assertSame(thrown, errors.awaitErrors(1).get(0));
+        assertTrue(l.errors().isEmpty());
+    }
+
+    @Test
+    public void subscribersOnlyGetTheTypesTheyAskedFor() throws Exception {
+        TestListener l = new TestListener();
+        cm.subscribe(l, EnumSet.of(IRCEvent.Type.NOTICE));
+        messages("bot", 0, 3);
+        c.receive(":nick!login@host NOTICE bot :hi");
+        // The notice came after the messages, so they would have been delivered by now
+        l.await(IRCEvent.Type.NOTICE, 1);
+        assertEquals(1, l.events().size());
+        assertFalse(cm.isWanted(IRCEvent.Type.MESSAGE));
+        assertTrue(cm.isWanted(IRCEvent.Type.NOTICE));
+    }
+
+    @Test
+    public void channelSubscribersMatchTheChannelNameWithoutCase() throws Exception {
+        TestListener l = new TestListener();
+        // {} and [] are the same letters in rfc1459 casemapping
+        cm.subscribe(l, "#{Test}");
+        c.receive(":bot!login@host JOIN #[test]", ":bot!login@host JOIN #other");
+        messages("#other", 0, 3);
+        messages("#[TEST]", 0, 3);
+        assertInOrder(l.await(IRCEvent.Type.MESSAGE, 3), 3);
+        for (IRCEvent e : l.events())
+            assertEquals("#[test]", e.getEventChannel().getName());
+    }
+
+    @Test
+    public void fullMailboxesDropNewestEvents() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        TestListener l = new TestListener() {
+            public void onIRCEvent(IRCEvent e) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onIRCEvent(e);
+            }
+        };
+        cm.registerListener(l, 2, OverflowPolicy.DROP_NEWEST);
+        messages("bot", 0, 10);
+        long dropped = cm.getDroppedEvents(l);
+        // Two events wait in the mailbox and the worker may have taken one more before it filled up
+        assertTrue("dropped " + dropped, dropped == 7 || dropped == 8);
+        assertEquals(dropped, cm.getDroppedEvents());
+        release.countDown();
+        List<IRCEvent> events = l.await(IRCEvent.Type.MESSAGE, (int) (10 - dropped));
+        assertEquals("0", ((IRCMessageEvent) events.get(0)).getMessage());
+        assertEquals("1", ((IRCMessageEvent) events.get(1)).getMessage());
+    }
+
+    @Test
+    public void countersCountFiredAndDeliveredEvents() throws Exception {
+        cm.registerListener(new TestListener());
+        cm.registerListener(new TestListener());
+        long fired = cm.getFiredEvents(), delivered = cm.getDeliveredEvents();
+        messages("bot", 0, 5);
+        assertEquals(fired + 5, cm.getFiredEvents());
+        awaitDelivered(delivered + 10);
+        assertEquals(0, cm.getPendingEvents());
+        assertTrue(cm.getPeakPendingEvents() >= 1);
+    }
+
+    @Test
+    public void stoppedManagersFireNothing() throws Exception {
+        TestListener l = new TestListener();
+        cm.registerListener(l);
+        messages("bot", 0, 1);
+        l.await(IRCEvent.Type.MESSAGE, 1);
+        cm.stop();
+        long fired = cm.getFiredEvents();
+        messages("bot", 1, 3);
+        assertEquals(fired, cm.getFiredEvents());
+        assertEquals(1, l.events(IRCEvent.Type.MESSAGE).size());
+    }
+}
@@ -0,0 +1,112 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests looking up users and channels in mixed case, including while the session is changing its maps
+ *
+ * @author newbiehacker
+ */
+public class FoldedMapTest {
+    private static final int MEMBERS = 200;
+    private ConnectionManager cm;
+    private TestConnection c;
+    private Session s;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").welcome();
+        s = c.session;
+        c.receive(":bot!login@host JOIN #Chan[1]");
+        for (int i = 0; i < MEMBERS; i++)
+            c.receive(":Member" + i + "[x]!login@host JOIN #Chan[1]");
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    @Test
+    public void namesAreFoundInAnyCase() {
+        FoldedMap<String> m = new FoldedMap<String>(CaseMapping.RFC1459);
+        assertEquals("nick{x}", m.put("Nick[X]", "a"));
+        assertEquals("a", m.get("NICK{x}"));
+        assertEquals("a", m.get("nick[x]"));
+        assertTrue(m.containsKey("NiCk{X}"));
+        assertNull(m.get("nick"));
+        assertEquals("a", m.remove("NICK[X]"));
+        assertEquals(0, m.size());
+
+        assertSame(s.getUser("member0{x}"), s.getUser("MEMBER0[X]"));
+        assertNotNull(s.getUser("MEMBER0[X]"));
+        assertSame(s.getChannel("#chan{1}"), s.getChannel("#CHAN[1]"));
+        assertEquals(MEMBERS + 1, s.getChannel("#cHaN[1]").getUserCount());
+    }
+
+    @Test
+    public void lookupsWhileTheSessionChangesItsMaps() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread reader = new Thread("FoldedMapTest-" + t) {
+                public void run() {
+                    try {
+                        for (int i = offset; !done.get(); i++) {
+                            // The members never leave, so they must always be found whatever case they're asked for in
+                            String nick = (i % 2 == 0 ? "MEMBER" : "member") + i % MEMBERS + (i % 3 == 0 ? "{X}" : "[x]");
+                            User u = s.getUser(nick);
+                            assertNotNull(nick, u);
+                            assertTrue(nick + " found " + u.getNick(), s.getCaseMapping().equals(nick, u.getNick()));
+                            assertNotNull(s.getChannel(i % 2 == 0 ? "#CHAN{1}" : "#chan[1]"));
+                            // The users coming and going may or may not be there, but mustn't be mistaken for anybody else. One found
+                            // just before changing nick may already have their new nick by the time we look at it
+                            String churnNick = "churn" + i % 50;
+                            User churn = s.getUser(churnNick.toUpperCase());
+                            if (churn != null) {
+                                String found = churn.getNick();
+                                assertTrue(found, s.getCaseMapping().equals(churnNick, found) || s.getCaseMapping().equals(churnNick + "_", found));
+                            }
+                            lookups.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        try {
+            for (int n = 0; n < 20000 && failure.get() == null; n++) {
+                String nick = "churn" + n % 50;
+                c.receive(":" + nick + "!login@host JOIN #Chan[1]",
+                        ":" + nick + "!login@host NICK " + nick.toUpperCase() + "_",
+                        ":" + nick.toUpperCase() + "_!login@host QUIT :bye");
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers)
+                reader.join();
+        }
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue(lookups.get() > 0);
+        assertEquals(MEMBERS + 1, s.getChannel("#chan[1]").getUserCount());
+        assertEquals(MEMBERS + 1, s.users.size());
+    }
+}
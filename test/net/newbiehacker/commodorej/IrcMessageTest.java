@@ -0,0 +1,186 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the splitting of lines into their tags, prefix, command and parameters
+ *
+ * @author newbiehacker
+ */
+public class IrcMessageTest {
+    private static IrcMessage parse(String line) {
+        IrcMessage m = new IrcMessage();
+        assertTrue(m.parse(line));
+        return m;
+    }
+
+    @Test
+    public void userPrefix() {
+        IrcMessage m = parse(":nick!login@host.example PRIVMSG #chan :hello there");
+        assertTrue(m.hasPrefix());
+        assertTrue(m.isUserPrefix());
+        assertEquals("nick!login@host.example", m.getPrefix());
+        assertEquals("nick", m.getPrefixNick());
+        assertEquals("login", m.getPrefixLogin());
+        assertEquals("host.example", m.getPrefixHost());
+        assertTrue(m.prefixEquals("nick!login@host.example"));
+        assertFalse(m.prefixEquals("nick"));
+    }
+
+    @Test
+    public void serverPrefix() {
+        IrcMessage m = parse(":irc.example.net NOTICE * :*** Looking up your hostname");
+        assertTrue(m.hasPrefix());
+        assertFalse(m.isUserPrefix());
+        assertEquals("irc.example.net", m.getPrefixNick());
+        assertNull(m.getPrefixLogin());
+        assertNull(m.getPrefixHost());
+    }
+
+    @Test
+    public void prefixWithHostButNoLogin() {
+        IrcMessage m = parse(":nick@host JOIN #a");
+        assertFalse(m.isUserPrefix());
+        assertEquals("nick", m.getPrefixNick());
+        assertNull(m.getPrefixLogin());
+        assertEquals("host", m.getPrefixHost());
+    }
+
+    @Test
+    public void noPrefix() {
+        IrcMessage m = parse("PING :irc.example.net");
+        assertFalse(m.hasPrefix());
+        assertFalse(m.isUserPrefix());
+        assertNull(m.getPrefix());
+        assertNull(m.getPrefixNick());
+        assertFalse(m.prefixEquals(""));
+        assertTrue(m.isCommand("PING"));
+        assertEquals("irc.example.net", m.getTrailing());
+    }
+
+    @Test
+    public void parameters() {
+        IrcMessage m = parse(":srv 353 bot = #chan :@op +voice  plain");
+        assertTrue(m.isNumeric());
+        assertEquals(353, m.getNumeric());
+        assertEquals("353", m.getCommand());
+        assertEquals(4, m.getParameterCount());
+        assertEquals("bot", m.getParameter(0));
+        assertEquals('#', m.getParameterChar(2));
+        assertEquals(5, m.getParameterLength(2));
+        assertTrue(m.parameterEquals(2, "#chan"));
+        assertFalse(m.parameterEquals(2, "#cha"));
+        assertTrue(m.hasTrailing());
+        assertEquals("@op +voice  plain", m.getTrailing());
+        assertEquals("#chan :@op +voice  plain", m.getRaw(2));
+        assertArrayEquals(new String[]{"#chan", "@op +voice  plain"}, m.getParameters(2));
+        assertNull(m.getParameter(4));
+        assertEquals(-1, m.getParameterLength(-1));
+        assertEquals("", m.getRaw(9));
+        assertEquals(0, m.getParameters(9).length);
+    }
+
+    @Test
+    public void parametersWithoutTrailing() {
+        IrcMessage m = parse(":n!u@h MODE #a +ov  x y");
+        assertFalse(m.isNumeric());
+        assertEquals(-1, m.getNumeric());
+        assertFalse(m.hasTrailing());
+        assertArrayEquals(new String[]{"#a", "+ov", "x", "y"}, m.getParameters(0));
+        assertEquals("+ov  x y", m.getRaw(1));
+    }
+
+    @Test
+    public void emptyTrailingAndColonsInside() {
+        IrcMessage m = parse(":n!u@h PRIVMSG #a ::) :(");
+        assertEquals(":) :(", m.getParameter(1));
+        m = parse(":n!u@h TOPIC #a :");
+        assertEquals(2, m.getParameterCount());
+        assertEquals("", m.getTrailing());
+        assertEquals('\u0000', m.getParameterChar(1));
+    }
+
+    @Test
+    public void manyParameters() {
+        StringBuilder sb = new StringBuilder(":srv 005 bot");
+        for (int i = 0; i < 40; i++)
+            sb.append(" P").append(i);
+        sb.append(" :are supported");
+        IrcMessage m = parse(sb.toString());
+        assertEquals(42, m.getParameterCount());
+        assertEquals("P39", m.getParameter(40));
+        assertEquals("are supported", m.getTrailing());
+    }
+
+    @Test
+    public void tags() {
+        IrcMessage m = parse("@time=2024-01-02T03:04:05.678Z;account=alice;+draft/flag;msgid=abc :a!b@c PRIVMSG #x :hi");
+        assertTrue(m.hasTags());
+        assertEquals("2024-01-02T03:04:05.678Z", m.getTag("time"));
+        assertEquals("alice", m.getTag("account"));
+        assertEquals("abc", m.getTag("msgid"));
+        assertTrue(m.hasTag("+draft/flag"));
+        assertEquals("", m.getTag("+draft/flag"));
+        assertNull(m.getTag("acc"));
+        assertNull(m.getTag("batch"));
+        assertEquals("a", m.getPrefixNick());
+        assertTrue(m.isCommand("PRIVMSG"));
+        assertEquals("hi", m.getTrailing());
+    }
+
+    @Test
+    public void tagValuesAreUnescaped() {
+        IrcMessage m = parse("@a=one\\stwo;b=semi\\:colon;c=back\\\\slash;d=cr\\rlf\\n;e=unknown\\x;f=trailing\\ :s PING");
+        assertEquals("one two", m.getTag("a"));
+        assertEquals("semi;colon", m.getTag("b"));
+        assertEquals("back\\slash", m.getTag("c"));
+        assertEquals("cr\rlf\n", m.getTag("d"));
+        assertEquals("unknownx", m.getTag("e"));
+        assertEquals("trailing", m.getTag("f"));
+    }
+
+    @Test
+    public void emptyTagValue() {
+        IrcMessage m = parse("@a=;b PING :x");
+        assertEquals("", m.getTag("a"));
+        assertEquals("", m.getTag("b"));
+        assertFalse(m.hasPrefix());
+    }
+
+    @Test
+    public void messageWithoutTags() {
+        IrcMessage m = parse(":a!b@c PRIVMSG #x :@not=a;tag");
+        assertFalse(m.hasTags());
+        assertFalse(m.hasTag("not"));
+        assertNull(m.getTag("not"));
+    }
+
+    @Test
+    public void linesWithoutACommand() {
+        IrcMessage m = new IrcMessage();
+        assertFalse(m.parse(""));
+        assertFalse(m.parse(":prefix.only"));
+        assertFalse(m.parse("@tag=only"));
+        assertFalse(m.parse("@a=b :prefix "));
+    }
+
+    @Test
+    public void reuseForgetsThePreviousLine() {
+        IrcMessage m = parse("@time=x :a!b@c PRIVMSG #x :first");
+        assertTrue(m.parse("PING y"));
+        assertFalse(m.hasTags());
+        assertFalse(m.hasPrefix());
+        assertFalse(m.hasTrailing());
+        assertEquals(1, m.getParameterCount());
+        assertEquals("y", m.getParameter(0));
+        assertEquals("PING y", m.getLine());
+        // A longer line than the buffer was made for
+        StringBuilder sb = new StringBuilder(":a!b@c PRIVMSG #x :");
+        for (int i = 0; i < 2000; i++)
+            sb.append('z');
+        assertTrue(m.parse(sb.toString()));
+        assertEquals(2000, m.getParameterLength(1));
+    }
+}
@@ -0,0 +1,142 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the splitting of received bytes into lines, however the bytes happen to arrive
+ *
+ * @author newbiehacker
+ */
+public class LineFramerTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static List<String> lines(LineFramer f, ByteBuffer in) {
+        List<String> l = new ArrayList<String>();
+        String line;
+        while ((line = f.next(in)) != null)
+            l.add(line);
+        assertFalse(in.hasRemaining());
+        return l;
+    }
+
+    private static List<String> lines(LineFramer f, String s) {
+        return lines(f, ByteBuffer.wrap(s.getBytes(UTF8)));
+    }
+
+    private static List<String> list(String... s) {
+        List<String> l = new ArrayList<String>();
+        for (String line : s)
+            l.add(line);
+        return l;
+    }
+
+    @Test
+    public void stripsEitherLineTerminator() {
+        LineFramer f = new LineFramer(UTF8);
+        assertEquals(list("PING :a", "PING :b", "", "x"), lines(f, "PING :a\r\nPING :b\n\r\nx\n"));
+    }
+
+    @Test
+    public void keepsPartialLineUntilItEnds() {
+        LineFramer f = new LineFramer(UTF8);
+        assertEquals(list("first"), lines(f, "first\r\nsec"));
+        assertEquals(list(), lines(f, "ond line"));
+        assertEquals(list("second line", "third"), lines(f, "\r\nthird\r\n"));
+    }
+
+    @Test
+    public void lineTerminatorSplitAcrossBuffers() {
+        LineFramer f = new LineFramer(UTF8);
+        assertEquals(list(), lines(f, "hello\r"));
+        assertEquals(list("hello"), lines(f, "\n"));
+    }
+
+    @Test
+    public void multiByteCharacterSplitAcrossBuffers() {
+        LineFramer f = new LineFramer(UTF8);
+        byte[] b = "PRIVMSG #a :日本\r\n".getBytes(UTF8);
+        // Cut in the middle of the first character, which is three bytes long
+        int cut = "PRIVMSG #a :".length() + 1;
+        assertEquals(list(), lines(f, ByteBuffer.wrap(b, 0, cut)));
+        assertEquals(list("PRIVMSG #a :日本"), lines(f, ByteBuffer.wrap(b, cut, b.length - cut)));
+    }
+
+    @Test
+    public void oneByteAtATime() {
+        LineFramer f = new LineFramer(UTF8);
+        byte[] b = ":n!u@h PRIVMSG #a :héllo\r\nPING :x\r\n".getBytes(UTF8);
+        List<String> l = new ArrayList<String>();
+        for (int i = 0; i < b.length; i++)
+            l.addAll(lines(f, ByteBuffer.wrap(b, i, 1)));
+        assertEquals(list(":n!u@h PRIVMSG #a :héllo", "PING :x"), l);
+    }
+
+    @Test
+    public void honoursArrayOffsetOfSlicedBuffers() {
+        LineFramer f = new LineFramer(UTF8);
+        byte[] b = "junkPING :a\r\nPING :b\r\njunk".getBytes(UTF8);
+        ByteBuffer slice = ByteBuffer.wrap(b, 4, b.length - 8).slice();
+        assertEquals(list("PING :a", "PING :b"), lines(f, slice));
+    }
+
+    @Test
+    public void readsDirectBuffers() {
+        LineFramer f = new LineFramer(UTF8);
+        byte[] b = "PING :a\r\nPI".getBytes(UTF8);
+        ByteBuffer d = ByteBuffer.allocateDirect(b.length);
+        d.put(b).flip();
+        assertEquals(list("PING :a"), lines(f, d));
+        d = ByteBuffer.allocateDirect(5);
+        d.put("NG\r\n".getBytes(UTF8)).flip();
+        assertEquals(list("PING"), lines(f, d));
+    }
+
+    @Test
+    public void dropsLinesThatAreTooLong() {
+        LineFramer f = new LineFramer(UTF8);
+        StringBuilder sb = new StringBuilder("PRIVMSG #a :");
+        while (sb.length() <= LineFramer.MAX_LINE)
+            sb.append("xxxxxxxxxx");
+        String longLine = sb.toString();
+        // Whether the long line arrives in one go or in pieces, it's dropped and the next line is intact
+        assertEquals(list("before", "after"), lines(f, "before\r\n" + longLine + "\r\nafter\r\n"));
+        assertEquals(list(), lines(f, longLine.substring(0, 100)));
+        assertEquals(list(), lines(f, longLine.substring(100)));
+        assertEquals(list("after"), lines(f, "\r\nafter\r\n"));
+    }
+
+    @Test
+    public void keepsLinesUpToTheLimit() {
+        LineFramer f = new LineFramer(UTF8);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < LineFramer.MAX_LINE)
+            sb.append('x');
+        String line = sb.toString();
+        assertEquals(list(), lines(f, line.substring(0, 10)));
+        assertEquals(list(line), lines(f, line.substring(10) + "\n"));
+    }
+
+    @Test
+    public void resetDropsPartialLine() {
+        LineFramer f = new LineFramer(UTF8);
+        assertEquals(list(), lines(f, "half a li"));
+        f.reset();
+        assertEquals(list("PING :x"), lines(f, "PING :x\r\n"));
+    }
+
+    @Test
+    public void decodesWithTheChosenCharset() {
+        LineFramer f = new LineFramer(Charset.forName("ISO-8859-1"));
+        assertEquals(list("café"), lines(f, ByteBuffer.wrap(new byte[]{'c', 'a', 'f', (byte) 0xe9, '\r', '\n'})));
+        f.setCharset(UTF8);
+        assertEquals(UTF8, f.getCharset());
+        assertEquals(list("café"), lines(f, "café\r\n"));
+    }
+}
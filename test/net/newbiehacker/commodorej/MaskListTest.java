@@ -0,0 +1,164 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests matching hostmasks against channel lists, through each of the ways MaskList indexes its entries
+ *
+ * @author newbiehacker
+ */
+public class MaskListTest {
+    private ConnectionManager cm;
+    private TestConnection c;
+    private MaskList list;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").welcome();
+        list = new MaskList(c.session);
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    private void add(String... masks) {
+        for (String m : masks)
+            list.add(new ChannelListEntry(m, "op", 0));
+    }
+
+    @Test
+    public void wildcards() {
+        assertTrue(MaskList.matches("*", ""));
+        assertTrue(MaskList.matches("*", "anything"));
+        assertTrue(MaskList.matches("a?c", "abc"));
+        assertFalse(MaskList.matches("a?c", "ac"));
+        assertTrue(MaskList.matches("*!*@*.example.com", "nick!login@host.example.com"));
+        assertFalse(MaskList.matches("*!*@*.example.com", "nick!login@example.com"));
+        // The star has to give back what it took when the rest doesn't match
+        assertTrue(MaskList.matches("*ab*abc", "ababcabc"));
+        assertTrue(MaskList.matches("a**b", "ab"));
+        assertFalse(MaskList.matches("abc", "abcd"));
+        assertFalse(MaskList.matches("abc*d", "abc"));
+    }
+
+    @Test
+    public void exactHosts() {
+        add("*!*@host.example.com");
+        assertTrue(list.matches("nick!login@host.example.com"));
+        assertFalse(list.matches("nick!login@other.example.com"));
+        assertFalse(list.matches("nick!login@host.example.com.evil"));
+    }
+
+    @Test
+    public void domains() {
+        add("*!*@*.example.com");
+        assertTrue(list.matches("nick!login@a.example.com"));
+        assertTrue(list.matches("nick!login@a.b.c.example.com"));
+        assertFalse(list.matches("nick!login@example.com"));
+        assertFalse(list.matches("nick!login@a.example.org"));
+    }
+
+    @Test
+    public void addressesAndCloaks() {
+        add("*!*@192.168.*", "*!*@user/*", "*!*@2001:db8:*");
+        assertTrue(list.matches("nick!login@192.168.0.1"));
+        assertFalse(list.matches("nick!login@192.169.0.1"));
+        assertTrue(list.matches("nick!login@user/alice"));
+        assertFalse(list.matches("nick!login@unaffiliated/alice"));
+        assertTrue(list.matches("nick!login@2001:db8::1"));
+    }
+
+    @Test
+    public void nicks() {
+        add("troll!*@*");
+        assertTrue(list.matches("troll!anyone@anywhere"));
+        assertFalse(list.matches("trolls!anyone@anywhere"));
+    }
+
+    @Test
+    public void everythingElse() {
+        add("*!*bob*@*", "*!~*@*.example.net", "guest??!*@*");
+        assertTrue(list.matches("nick!xbobx@host"));
+        assertTrue(list.matches("nick!~login@a.example.net"));
+        assertFalse(list.matches("nick!login@a.example.net"));
+        assertTrue(list.matches("guest42!login@host"));
+        assertFalse(list.matches("guest4!login@host"));
+    }
+
+    @Test
+    public void extendedBansNeverMatchHostmasks() {
+        add("$a:account", "$~a");
+        assertEquals(2, list.size());
+        assertFalse(list.matches("account!login@host"));
+        assertTrue(list.getMatching("nick!login@host").isEmpty());
+    }
+
+    @Test
+    public void masksAreMatchedWithoutCase() {
+        // {} and [] are the same letters in rfc1459 casemapping
+        add("*!*@HOST.Example.COM", "[troll]!*@*");
+        assertTrue(list.matches("nick!login@host.example.com"));
+        assertTrue(list.matches("{TROLL}!login@host"));
+    }
+
+    @Test
+    public void changingTheCaseMappingIndexesTheListAgain() throws Exception {
+        add("[troll]!*@*");
+        c.receive(":irc.example.net 005 bot CASEMAPPING=ascii :are supported by this server");
+        assertFalse(list.matches("{troll}!login@host"));
+        assertTrue(list.matches("[TROLL]!login@host"));
+    }
+
+    @Test
+    public void entriesAreReplacedAndRemovedByTheirMask() {
+        add("*!*@host.example.com", "*!*@*.example.com", "troll!*@*");
+        add("*!*@HOST.example.com");
+        assertEquals(3, list.size());
+        assertEquals("*!*@HOST.example.com", list.getEntries().get(2).getMask());
+        assertNotNull(list.remove("*!*@host.EXAMPLE.com"));
+        assertNull(list.remove("*!*@host.example.com"));
+        assertFalse(list.matches("nick!login@example.com"));
+        assertTrue(list.matches("nick!login@host.example.com"));
+        assertNotNull(list.remove("*!*@*.example.com"));
+        assertFalse(list.matches("nick!login@host.example.com"));
+        list.clear();
+        assertEquals(0, list.size());
+        assertFalse(list.matches("troll!login@host"));
+    }
+
+    @Test
+    public void matchingEntriesComeInTheOrderTheyWereAdded() {
+        add("*!*@*.example.com", "troll!*@*", "*!*@other.example.org", "*!*@host.example.com", "*!*troll*@*");
+        List<ChannelListEntry> l = list.getMatching("troll!troll@host.example.com");
+        assertEquals(4, l.size());
+        assertEquals("*!*@*.example.com", l.get(0).getMask());
+        assertEquals("troll!*@*", l.get(1).getMask());
+        assertEquals("*!*@host.example.com", l.get(2).getMask());
+        assertEquals("*!*troll*@*", l.get(3).getMask());
+    }
+
+    @Test
+    public void exceptsOverrideBans() throws Exception {
+        c.receive(":irc.example.net 005 bot CHANMODES=beI,k,l,imnpst EXCEPTS :are supported by this server",
+                ":bot!login@host JOIN #chan", ":alice!alice@host.example.com JOIN #chan",
+                ":bob!bob@host.example.com JOIN #chan", ":carol!carol@elsewhere.example.org JOIN #chan",
+                ":op!login@host MODE #chan +be *!*@*.example.com bob!*@*");
+        Session s = c.session;
+        Channel chan = s.getChannel("#chan");
+        assertTrue(chan.isBanned(s.getUser("alice")));
+        assertFalse(chan.isBanned(s.getUser("bob")));
+        assertFalse(chan.isBanned(s.getUser("carol")));
+        c.receive(":op!login@host MODE #chan -b *!*@*.EXAMPLE.com");
+        assertFalse(chan.isBanned(s.getUser("alice")));
+        assertTrue(chan.getChannelList('b').isEmpty());
+    }
+}
@@ -0,0 +1,159 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the splitting of long messages into lines which fit in 512 bytes, and the lines the outbound queue drops
+ *
+ * @author newbiehacker
+ */
+public class OutboundQueueTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HOST = "a-rather-long-hostname.users.irc.example.net";
+    private ConnectionManager cm;
+    private TestConnection c;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").welcome();
+        // Seeing ourselves join tells us the host the server will put in front of our lines
+        c.receive(":bot!login@" + HOST + " JOIN #chan");
+        c.clear();
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+
+    private static String decode(byte[] b) throws CharacterCodingException {
+        // Fails on a character that has been cut in half
+        return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(b)).toString();
+    }
+
+    /**
+     * Returns the bodies of the messages sent, checking that each line is whole and fits once the server has added our prefix
+     */
+    private String sentBody(String head) throws CharacterCodingException {
+        int prefix = (":bot!~login@" + HOST + " ").length();
+        StringBuilder sb = new StringBuilder();
+        List<byte[]> lines = c.sentBytes();
+        assertTrue(lines.size() > 1);
+        for (byte[] b : lines) {
+            assertTrue(b.length + " bytes", prefix + b.length <= 510);
+            String line = decode(b);
+            assertTrue(line, line.startsWith(head));
+            sb.append(line.substring(head.length()));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void longMessagesAreSplitBetweenWords() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 2000; i++)
+            sb.append("word").append(i).append(' ');
+        String message = sb.toString().trim();
+        c.session.sendMessage("#chan", message);
+        StringBuilder joined = new StringBuilder();
+        for (String line : c.sent()) {
+            String body = line.substring("PRIVMSG #chan :".length());
+            assertFalse(body, body.startsWith(" ") || body.endsWith(" "));
+            if (joined.length() > 0)
+                joined.append(' ');
+            joined.append(body);
+        }
+        assertEquals(message, joined.toString());
+        sentBody("PRIVMSG #chan :");
+    }
+
+    @Test
+    public void multibyteCharactersAreNeverCutInHalf() throws Exception {
+        for (String ch : new String[]{"é", "€", "😀"}) {
+            c.clear();
+            String message = "x" + repeat(ch, 600);
+            c.session.sendMessage("#chan", message);
+            assertEquals(message, sentBody("PRIVMSG #chan :"));
+        }
+    }
+
+    @Test
+    public void lineBreaksStartNewLines() throws Exception {
+        c.session.sendNotice("#chan", "one\r\ntwo\nthree\r\n\nfour");
+        List<String> sent = c.sent();
+        assertEquals(4, sent.size());
+        assertEquals("NOTICE #chan :one", sent.get(0));
+        assertEquals("NOTICE #chan :two", sent.get(1));
+        assertEquals("NOTICE #chan :three", sent.get(2));
+        assertEquals("NOTICE #chan :four", sent.get(3));
+    }
+
+    @Test
+    public void shortMessagesAreSentWhole() throws Exception {
+        c.session.sendMessage("#chan", "hello é€");
+        assertEquals(1, c.sent().size());
+        assertEquals("PRIVMSG #chan :hello é€", c.sent().get(0));
+    }
+
+    @Test
+    public void aHeadWithNoRoomLeftIsSentOnce() throws Exception {
+        String target = "#" + repeat("c", 450);
+        c.session.sendMessage(target, "hello");
+        List<String> sent = c.sent();
+        assertEquals(1, sent.size());
+        assertEquals("PRIVMSG " + target + " :hello", sent.get(0));
+    }
+
+    @Test
+    public void repeatedCommandsWaitingToBeSentAreDropped() throws Exception {
+        // Only one line may go straight away, so the rest have to wait
+        c.session.setFloodLimits(0.001, 1, 0, 0);
+        c.session.sendLine("MODE #chan +o alice");
+        c.session.sendLine("MODE #chan +o alice");
+        c.session.sendLine("MODE #chan +o alice");
+        c.session.sendMessage("#chan", "again");
+        c.session.sendMessage("#chan", "again");
+        assertEquals(1, c.sent().size());
+        assertEquals(1, c.session.getOutboundLinesDropped());
+        assertEquals(3, c.session.getOutboundQueueSize());
+    }
+
+    @Test
+    public void joinsAndPartsKeepTheirPlaceBehindMessages() throws Exception {
+        // The first line uses up the burst, so the rest wait until the limits are lifted
+        c.session.setFloodLimits(0.001, 1, 0, 0);
+        c.session.sendMessage("#other", "first");
+        c.session.sendMessage("NickServ", "IDENTIFY secret");
+        c.session.sendLine("JOIN #secret");
+        c.session.sendMessage("#chan", "bye");
+        c.session.sendLine("PART #chan :gone");
+        c.session.sendLine("MODE #other +m");
+        assertEquals(1, c.sent().size());
+        c.session.setFloodLimits(0, 0, 0, 0);
+        List<String> sent = c.sent();
+        // Channel modes still go ahead of the messages
+        assertEquals("MODE #other +m", sent.get(1));
+        assertTrue(sent.indexOf("PRIVMSG NickServ :IDENTIFY secret") < sent.indexOf("JOIN #secret"));
+        assertTrue(sent.indexOf("PRIVMSG #chan :bye") < sent.indexOf("PART #chan :gone"));
+        assertEquals(6, sent.size());
+    }
+}
@@ -0,0 +1,123 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCMessageEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests delivering events in PER_CHANNEL order, and letting go of a channel's mailbox once we have left it
+ *
+ * @author newbiehacker
+ */
+public class PerChannelDeliveryTest {
+    private static final int CHANNELS = 10;
+    private ExecutorService executor;
+    private ConnectionManager cm;
+    private EventDispatcher dispatcher;
+    private TestConnection c;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        cm = new ConnectionManager(8, executor, DeliveryOrder.PER_CHANNEL);
+        Field f = ConnectionManager.class.getDeclaredField("eventQueue");
+        f.setAccessible(true);
+        dispatcher = (EventDispatcher) f.get(cm);
+        c = new TestConnection(cm, "bot").welcome();
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+        executor.shutdownNow();
+    }
+
+    private void joinAll() throws Exception {
+        for (int i = 0; i < CHANNELS; i++)
+            c.receive(":bot!login@host JOIN #c" + i);
+    }
+
+    private void awaitMailboxes(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (dispatcher.getMailboxCount() != count) {
+            if (System.currentTimeMillis() > end)
+                fail(dispatcher.getMailboxCount() + " mailboxes are left, not " + count);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void eachChannelIsDeliveredInOrder() throws Exception {
+        TestListener l = new TestListener() {
+            public void onIRCEvent(IRCEvent e) {
+                // Give the other channels' lanes a chance to overtake this one
+                if (e.getType() == IRCEvent.Type.MESSAGE && Integer.parseInt(((IRCMessageEvent) e).getMessage()) % 37 == 0)
+                    Thread.yield();
+                super.onIRCEvent(e);
+            }
+        };
+        cm.registerListener(l);
+        joinAll();
+        for (int i = 0; i < 1000; i++)
+            c.receive(":nick!login@host PRIVMSG #c" + (i % CHANNELS) + " :" + i);
+        List<IRCEvent> events = l.await(IRCEvent.Type.MESSAGE, 1000);
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        for (IRCEvent e : events) {
+            IRCMessageEvent m = (IRCMessageEvent) e;
+            int n = Integer.parseInt(m.getMessage());
+            Integer previous = last.put(m.getEventChannel().getName(), n);
+            if (previous != null)
+                assertEquals(previous + CHANNELS, n);
+        }
+        assertEquals(CHANNELS, last.size());
+    }
+
+    @Test
+    public void leavingAChannelRetiresItsLane() throws Exception {
+        TestListener l = new TestListener();
+        cm.registerListener(l);
+        joinAll();
+        for (int i = 0; i < CHANNELS; i++)
+            c.receive(":nick!login@host PRIVMSG #c" + i + " :" + i);
+        c.receive(":nick!login@host NOTICE bot :hi");
+        l.await(IRCEvent.Type.MESSAGE, CHANNELS);
+        l.await(IRCEvent.Type.NOTICE, 1);
+        // A lane for each channel, and one for the notice which didn't happen on a channel
+        assertEquals(CHANNELS + 1, dispatcher.getMailboxCount());
+
+        c.receive(":bot!login@host PART #c0", ":op!login@host KICK #c1 bot :bye");
+        awaitMailboxes(CHANNELS - 1);
+        assertEquals(2, l.events(IRCEvent.Type.PART).size() + l.events(IRCEvent.Type.KICK).size());
+
+        // Rejoining takes a new lane, and events still arrive through it
+        c.receive(":bot!login@host JOIN #c0", ":nick!login@host PRIVMSG #c0 :again");
+        assertEquals("again", ((IRCMessageEvent) l.await(IRCEvent.Type.MESSAGE, CHANNELS + 1).get(CHANNELS)).getMessage());
+        assertEquals(CHANNELS, dispatcher.getMailboxCount());
+    }
+
+    @Test
+    public void disconnectingRetiresEveryLane() throws Exception {
+        TestListener l = new TestListener();
+        cm.registerListener(l);
+        joinAll();
+        for (int i = 0; i < 100; i++)
+            c.receive(":nick!login@host PRIVMSG #c" + (i % CHANNELS) + " :" + i);
+        c.close();
+        // The events waiting in the lanes are still delivered before they go
+        l.await(IRCEvent.Type.MESSAGE, 100);
+        l.await(IRCEvent.Type.DISCONNECT, 1);
+        awaitMailboxes(0);
+        assertEquals(0, cm.getDroppedEvents());
+    }
+}
@@ -0,0 +1,114 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the PREFIX table, and the prefixes members are given from NAMES replies and mode changes
+ *
+ * @author newbiehacker
+ */
+public class PrefixTableTest {
+    private ConnectionManager cm;
+
+    @After
+    public void tearDown() {
+        if (cm != null)
+            cm.stop();
+    }
+
+    @Test
+    public void bitsRankHighestFirst() {
+        PrefixTable pt = PrefixTable.parse("(qaohv)~&@%+");
+        assertEquals(1, pt.modeBit('q'));
+        assertEquals(4, pt.modeBit('o'));
+        assertEquals(16, pt.modeBit('v'));
+        assertEquals(1, pt.prefixBit('~'));
+        assertEquals(4, pt.prefixBit('@'));
+        assertEquals(16, pt.prefixBit('+'));
+        assertEquals(4 | 16, pt.prefixBits("@+"));
+        assertEquals('@', pt.highest(4 | 16));
+        assertEquals('~', pt.highest(1 | 4));
+        assertEquals("&%+", pt.toPrefixes(2 | 8 | 16));
+        assertEquals('\u0000', pt.highest(0));
+        assertEquals("", pt.toPrefixes(0));
+    }
+
+    @Test
+    public void modesAndPrefixesAreKeptApart() {
+        PrefixTable pt = PrefixTable.DEFAULT;
+        assertEquals(0, pt.modeBit('@'));
+        assertEquals(0, pt.prefixBit('o'));
+        assertEquals(0, pt.prefixBits("oscar"));
+        assertEquals(0, pt.modeBit('x'));
+        assertEquals(0, pt.prefixBit('é'));
+    }
+
+    @Test
+    public void badPrefixesFallBackToTheDefault() {
+        assertSame(PrefixTable.DEFAULT, PrefixTable.parse(null));
+        assertSame(PrefixTable.DEFAULT, PrefixTable.parse(""));
+        assertSame(PrefixTable.DEFAULT, PrefixTable.parse("ov@+"));
+        assertSame(PrefixTable.DEFAULT, PrefixTable.parse("(ov)@"));
+        assertSame(PrefixTable.DEFAULT, PrefixTable.parse("(ov"));
+    }
+
+    private TestConnection join(String... names) throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        TestConnection c = new TestConnection(cm, "bot").welcome();
+        c.receive(":irc.example.net 005 bot PREFIX=(qaohv)~&@%+ :are supported by this server",
+                ":bot!login@host JOIN #chan");
+        StringBuilder sb = new StringBuilder(":irc.example.net 353 bot = #chan :");
+        for (String n : names)
+            sb.append(n).append(' ');
+        c.receive(sb.toString().trim(), ":irc.example.net 366 bot #chan :End of /NAMES list.");
+        return c;
+    }
+
+    @Test
+    public void namesRepliesGiveMembersTheirPrefixes() throws Exception {
+        Session s = join("@op", "+voice", "oscar", "vince", "ovid", "@+both", "~&@%+all", "~owner", "bot").session;
+        Channel c = s.getChannel("#chan");
+        assertEquals(9, c.getUserCount());
+        assertEquals('@', c.getUserMode(s.getUser("op")));
+        assertEquals("+", c.getUserModes(s.getUser("voice")));
+        // Nicks which start with a mode letter have no prefix
+        for (String nick : new String[]{"oscar", "vince", "ovid", "bot"}) {
+            assertNotNull(nick, s.getUser(nick));
+            assertEquals(nick, '\u0000', c.getUserMode(s.getUser(nick)));
+        }
+        assertEquals("@+", c.getUserModes(s.getUser("both")));
+        assertEquals("~&@%+", c.getUserModes(s.getUser("all")));
+        assertEquals('~', c.getUserMode(s.getUser("owner")));
+        assertTrue(c.hasUserMode(s.getUser("both"), 'o'));
+        assertTrue(c.hasUserMode(s.getUser("both"), '+'));
+        assertFalse(c.hasUserMode(s.getUser("op"), 'v'));
+    }
+
+    @Test
+    public void losingOneModeKeepsTheOthers() throws Exception {
+        TestConnection c = join("@+both", "plain");
+        Session s = c.session;
+        Channel chan = s.getChannel("#chan");
+        User both = s.getUser("both"), plain = s.getUser("plain");
+        c.receive(":op!login@host MODE #chan -o+vh both plain plain");
+        assertEquals("+", chan.getUserModes(both));
+        assertEquals('%', chan.getUserMode(plain));
+        assertEquals("%+", chan.getUserModes(plain));
+    }
+
+    @Test
+    public void whoRepliesGiveMembersTheirPrefixes() throws Exception {
+        TestConnection c = join("plain", "oscar");
+        Session s = c.session;
+        c.receive(":irc.example.net 352 bot #chan login host irc.example.net plain H@+ :0 Plain User",
+                ":irc.example.net 352 bot #chan login host irc.example.net oscar G :0 Oscar",
+                ":irc.example.net 315 bot #chan :End of /WHO list.");
+        Channel chan = s.getChannel("#chan");
+        assertEquals("@+", chan.getUserModes(s.getUser("plain")));
+        assertEquals("", chan.getUserModes(s.getUser("oscar")));
+        assertEquals("host", s.getUser("oscar").getHost());
+    }
+}
@@ -0,0 +1,167 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests registering with the server, and negotiating capabilities with CAP on the way
+ *
+ * @author newbiehacker
+ */
+public class RegistrationTest {
+    private ConnectionManager cm;
+    private TestConnection c;
+    private Session s;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").open();
+        s = c.session;
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    /**
+     * Returns the lines sent since the last call
+     */
+    private List<String> sent() {
+        List<String> l = c.sent();
+        c.clear();
+        return l;
+    }
+
+    private void assertState(Registration.State state) {
+        assertEquals(state, s.registration.getState());
+    }
+
+    @Test
+    public void capabilitiesAreAskedForBeforeRegistering() {
+        assertEquals(Arrays.asList("CAP LS 302", "NICK bot", "USER login irc.example.net  *8 :Test"), sent());
+        assertState(Registration.State.NEGOTIATING);
+        assertFalse(s.isRegistered());
+    }
+
+    @Test
+    public void offeredCapabilitiesAreRequestedAndAcknowledged() throws Exception {
+        sent();
+        // The list comes in two lines, and we wait for the last
+        c.receive(":irc.example.net CAP * LS * :multi-prefix sasl=PLAIN,EXTERNAL echo-message",
+                ":irc.example.net CAP * LS :server-time batch unknown-cap");
+        // echo-message isn't asked for unless the application wants it
+        assertEquals(Arrays.asList("CAP REQ :multi-prefix server-time batch"), sent());
+        assertEquals("PLAIN,EXTERNAL", s.registration.getValue("sasl"));
+
+        c.receive(":irc.example.net CAP bot ACK :multi-prefix server-time batch");
+        assertEquals(Arrays.asList("CAP END"), sent());
+        assertState(Registration.State.REGISTERING);
+        assertEquals(new HashSet<String>(Arrays.asList("multi-prefix", "server-time", "batch")), s.getCapabilities());
+        assertTrue(s.multiPrefix);
+
+        c.receive(":irc.example.net 001 bot :Welcome to the test network");
+        assertTrue(s.isRegistered());
+        assertTrue(sent().isEmpty());
+    }
+
+    @Test
+    public void refusedRequestsStillEndNegotiation() throws Exception {
+        c.receive(":irc.example.net CAP * LS :multi-prefix");
+        sent();
+        c.receive(":irc.example.net CAP bot NAK :multi-prefix");
+        assertEquals(Arrays.asList("CAP END"), sent());
+        assertTrue(s.getCapabilities().isEmpty());
+        assertState(Registration.State.REGISTERING);
+    }
+
+    @Test
+    public void negotiationEndsStraightAwayWhenNothingWeWantIsOffered() throws Exception {
+        sent();
+        c.receive(":irc.example.net CAP * LS :sasl unknown-cap");
+        assertEquals(Arrays.asList("CAP END"), sent());
+        assertState(Registration.State.REGISTERING);
+    }
+
+    @Test
+    public void serversWithoutCapRegisterUsAsUsual() throws Exception {
+        sent();
+        c.receive(":irc.example.net 421 bot CAP :Unknown command");
+        assertState(Registration.State.REGISTERING);
+        c.receive(":irc.example.net 001 bot :Welcome to the test network");
+        assertTrue(s.isRegistered());
+        // There's nothing to end with a server that doesn't know CAP
+        assertTrue(sent().isEmpty());
+    }
+
+    @Test
+    public void theWelcomeTellsUsOurNick() throws Exception {
+        c.receive(":irc.example.net CAP * LS :", ":irc.example.net 001 bot_ :Welcome to the test network");
+        assertEquals("bot_", s.getNick());
+    }
+
+    @Test
+    public void capabilitiesCanComeAndGoOnceRegistered() throws Exception {
+        c.receive(":irc.example.net CAP * LS :", ":irc.example.net 001 bot :Welcome to the test network");
+        sent();
+        c.receive(":irc.example.net CAP bot NEW :away-notify");
+        assertEquals(Arrays.asList("CAP REQ :away-notify"), sent());
+        c.receive(":irc.example.net CAP bot ACK :away-notify");
+        assertTrue(s.hasCapability("away-notify"));
+        // Negotiation has already ended, so there's no second CAP END
+        assertTrue(sent().isEmpty());
+
+        s.requestCapability("echo-message", true);
+        assertTrue(sent().isEmpty());
+        c.receive(":irc.example.net CAP bot NEW :echo-message");
+        assertEquals(Arrays.asList("CAP REQ :echo-message"), sent());
+        c.receive(":irc.example.net CAP bot ACK :echo-message");
+        assertTrue(s.hasCapability("echo-message"));
+
+        c.receive(":irc.example.net CAP bot DEL :away-notify");
+        assertFalse(s.hasCapability("away-notify"));
+        c.receive(":irc.example.net CAP bot ACK :-echo-message");
+        assertTrue(s.getCapabilities().isEmpty());
+    }
+
+    @Test
+    public void longRequestsAreSplit() throws Exception {
+        StringBuilder ls = new StringBuilder(":irc.example.net CAP * LS :");
+        for (int i = 0; i < 40; i++) {
+            String cap = "vendor.example/capability-" + i;
+            s.requestCapability(cap, true);
+            ls.append(cap).append(' ');
+        }
+        sent();
+        c.receive(ls.toString().trim());
+        List<String> reqs = sent();
+        assertTrue(reqs.size() > 1);
+        for (String r : reqs) {
+            assertTrue(r, r.startsWith("CAP REQ :"));
+            assertTrue(r, r.length() < 512);
+        }
+        for (int i = 0; i < reqs.size(); i++)
+            c.receive(":irc.example.net CAP bot ACK :" + reqs.get(i).substring("CAP REQ :".length()));
+        assertEquals(Arrays.asList("CAP END"), sent());
+        assertEquals(40, s.getCapabilities().size());
+    }
+
+    @Test
+    public void disconnectingForgetsTheCapabilities() throws Exception {
+        c.receive(":irc.example.net CAP * LS :multi-prefix", ":irc.example.net CAP bot ACK :multi-prefix",
+                ":irc.example.net 001 bot :Welcome to the test network");
+        assertTrue(s.hasCapability("multi-prefix"));
+        c.close();
+        assertTrue(s.getCapabilities().isEmpty());
+        assertFalse(s.multiPrefix);
+        assertState(Registration.State.CONNECTING);
+    }
+}
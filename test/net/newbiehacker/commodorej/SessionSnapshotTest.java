@@ -0,0 +1,195 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests saving a session's state to a snapshot, and starting a new session warm from it
+ *
+ * @author newbiehacker
+ */
+public class SessionSnapshotTest {
+    private static final String SUPPORT = ":irc.example.net 005 bot PREFIX=(qaohv)~&@%+ CHANTYPES=# CHANMODES=beI,k,l,imnpst EXCEPTS :are supported by this server";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ConnectionManager cm;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        file = folder.newFile("bot.state");
+        TestConnection c = connect(new TestConnection(cm, "bot"));
+        c.receive(":bot!login@host JOIN #chan",
+                ":irc.example.net 332 bot #chan :The topic",
+                ":irc.example.net 333 bot #chan op 1300000000",
+                ":irc.example.net 353 bot = #chan :~&@%+owner @+both voice plain bot",
+                ":irc.example.net 366 bot #chan :End of /NAMES list.",
+                ":irc.example.net 352 bot #chan olog ohost irc.example.net owner H~&@%+ :0 Owner",
+                ":irc.example.net 352 bot #chan blog bhost irc.example.net both H@+ :0 Both",
+                ":irc.example.net 352 bot #chan vlog vhost irc.example.net voice H+ :0 Voice",
+                ":irc.example.net 352 bot #chan plog phost irc.example.net plain H :0 Plain",
+                ":irc.example.net 315 bot #chan :End of /WHO list.",
+                ":irc.example.net 324 bot #chan +ntl 50",
+                ":irc.example.net 367 bot #chan *!*@bad.example.com op 1300000001",
+                ":irc.example.net 368 bot #chan :End of Channel Ban List",
+                ":irc.example.net 348 bot #chan *!*@good.example.com op 1300000002",
+                ":irc.example.net 349 bot #chan :End of Channel Exception List");
+        // Real names come from extended-join, which the test server doesn't have
+        c.session.getUser("owner").realName = "The Owner";
+        c.session.getUser("plain").realName = "Plain";
+        c.session.saveState(file);
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    /**
+     * Registers the specified connection with the same server support as the session the snapshot was taken from
+     */
+    private static TestConnection connect(TestConnection c) throws Exception {
+        c.open();
+        c.receive(":irc.example.net CAP * LS :", ":irc.example.net 001 bot :Welcome to the test network", SUPPORT);
+        c.clear();
+        return c;
+    }
+
+    private TestConnection restore() throws Exception {
+        TestConnection c = new TestConnection(cm, "bot");
+        c.session.restoreState(SessionSnapshot.read(file));
+        return connect(c);
+    }
+
+    @Test
+    public void restoredSessionsRejoinWithWhatTheyKnew() throws Exception {
+        TestConnection c = restore();
+        c.receive(":bot!login@host JOIN #chan");
+        Session s = c.session;
+        Channel chan = s.getChannel("#chan");
+        assertEquals(5, chan.getUserCount());
+        User owner = s.getUser("owner"), both = s.getUser("both");
+        assertEquals("~&@%+", chan.getUserModes(owner));
+        assertEquals("@+", chan.getUserModes(both));
+        assertEquals("+", chan.getUserModes(s.getUser("voice")));
+        assertEquals("", chan.getUserModes(s.getUser("plain")));
+        assertEquals("olog", owner.getName());
+        assertEquals("ohost", owner.getHost());
+        assertEquals("The Owner", owner.getRealName());
+        assertEquals("The topic", chan.getTopic());
+        assertEquals("op", chan.getTopicSetter());
+        assertEquals(1300000000000L, chan.getTopicTime().getTime());
+        assertTrue(chan.hasMode('n'));
+        assertEquals("50", chan.getModeParameter('l'));
+
+        List<ChannelListEntry> bans = chan.getChannelList('b');
+        assertEquals(1, bans.size());
+        assertEquals("*!*@bad.example.com", bans.get(0).getMask());
+        assertEquals("op", bans.get(0).getSetter());
+        assertEquals(1300000001000L, bans.get(0).getTime().getTime());
+        List<ChannelListEntry> excepts = chan.getChannelList('e');
+        assertEquals(1, excepts.size());
+        assertEquals(1300000002000L, excepts.get(0).getTime().getTime());
+
+        // Every member was restored with their host, so there's nobody to WHO
+        c.receive(":irc.example.net 353 bot = #chan :~&@%+owner @+both voice plain bot",
+                ":irc.example.net 366 bot #chan :End of /NAMES list.");
+        for (String line : c.sent())
+            assertFalse(line, line.startsWith("WHO"));
+    }
+
+    @Test
+    public void endOfNamesRemovesTheUsersWhoLeft() throws Exception {
+        TestConnection c = restore();
+        c.receive(":bot!login@host JOIN #chan",
+                ":irc.example.net 353 bot = #chan :@owner plain bot",
+                ":irc.example.net 366 bot #chan :End of /NAMES list.");
+        Session s = c.session;
+        Channel chan = s.getChannel("#chan");
+        assertEquals(3, chan.getUserCount());
+        assertFalse(chan.hasUser(s.getUser("both")));
+        assertFalse(chan.hasUser(s.getUser("voice")));
+        // The NAMES reply is newer than the snapshot, but without multi-prefix it only holds the highest prefix, so the lower ones are kept
+        assertEquals("@%+", chan.getUserModes(s.getUser("owner")));
+        assertEquals("ohost", s.getUser("owner").getHost());
+    }
+
+    @Test
+    public void usersWhoseLoginOrHostChangedAreNotTaken() throws Exception {
+        SessionSnapshot snapshot = SessionSnapshot.read(file);
+        assertNull(snapshot.takeUser("owner", "olog", "elsewhere"));
+        assertNull(snapshot.takeUser("both", "other", "bhost"));
+        // Not knowing the login or host yet isn't a reason to turn them away
+        User voice = snapshot.takeUser("VOICE", null, null);
+        assertEquals("VOICE", voice.getNick());
+        assertEquals("vhost", voice.getHost());
+        User plain = snapshot.takeUser("plain", "plog", "phost");
+        assertEquals("Plain", plain.getRealName());
+        assertNull(snapshot.takeUser("plain", "plog", "phost"));
+
+        // A session meeting somebody else using a nick doesn't give them the snapshot's real name
+        TestConnection c = restore();
+        c.receive(":owner!olog@elsewhere PRIVMSG bot :hi");
+        assertNull(c.session.getUser("owner").getRealName());
+    }
+
+    @Test
+    public void truncatedSnapshotsCantBeRead() throws Exception {
+        byte[] data = Files.readAllBytes(file.toPath());
+        for (int len = 0; len < data.length; len++) {
+            write(Arrays.copyOf(data, len));
+            try {
+                SessionSnapshot.read(file);
+                fail("Read a snapshot cut off after " + len + " of " + data.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void corruptSnapshotsCantBeRead() throws Exception {
+        byte[] data = Files.readAllBytes(file.toPath());
+        byte[] bad = data.clone();
+        bad[0] ^= 0xFF;
+        assertUnreadable(bad, "Not a session snapshot");
+        bad = data.clone();
+        bad[7] = 2;
+        assertUnreadable(bad, "Unsupported session snapshot version 2");
+        // Refers to a String which hasn't been written, which is the first byte after the time
+        bad = data.clone();
+        bad[16] = 0x7F;
+        assertUnreadable(bad, "Corrupt session snapshot");
+    }
+
+    private void assertUnreadable(byte[] data, String message) throws IOException {
+        write(data);
+        try {
+            SessionSnapshot.read(file);
+            fail("Read a corrupt snapshot");
+        } catch (IOException expected) {
+            assertEquals(message, expected.getMessage());
+        }
+    }
+
+    private void write(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package net.newbiehacker.commodorej;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Session connected to nothing but the test using it, which feeds it lines as though the server had sent them and keeps the lines
+ * it writes
+ *
+ * @author newbiehacker
+ */
+final class TestConnection implements InvocationHandler {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    final ConnectionManager cm;
+    final Session session;
+    private final IoSession io;
+    private final List<byte[]> written;
+
+    /**
+     * Creates a session with no flood limits for the specified nick, which hasn't connected yet
+     */
+    TestConnection(ConnectionManager cm, String nick) {
+        this.cm = cm;
+        this.session = new Session(cm, "irc.example.net", 6667, nick, "login", "Test");
+        this.io = (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(), new Class<?>[]{IoSession.class}, this);
+        this.written = new ArrayList<byte[]>();
+        session.setFloodLimits(0, 0, 0, 0);
+    }
+
+    /**
+     * Connects the session, which starts registering with the server
+     */
+    TestConnection open() throws Exception {
+        session.sessionOpened(io);
+        return this;
+    }
+
+    /**
+     * Connects the session and lets it finish registering without any capabilities
+     */
+    TestConnection welcome() throws Exception {
+        open();
+        receive(":irc.example.net CAP * LS :",
+                ":irc.example.net 001 " + session.getNick() + " :Welcome to the test network",
+                ":irc.example.net 005 " + session.getNick() + " PREFIX=(ov)@+ CHANTYPES=# :are supported by this server");
+        clear();
+        return this;
+    }
+
+    /**
+     * Hands the session the specified lines in one read, as though the server had sent them
+     */
+    void receive(String... lines) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (String l : lines)
+            sb.append(l).append("\r\n");
+        session.messageReceived(io, ByteBuffer.wrap(sb.toString().getBytes(UTF8)));
+    }
+
+    /**
+     * Disconnects the session
+     */
+    void close() throws Exception {
+        session.sessionClosed(io);
+    }
+
+    /**
+     * Returns the lines the session has written, without their line endings
+     */
+    synchronized List<String> sent() {
+        List<String> l = new ArrayList<String>(written.size());
+        for (byte[] b : written)
+            l.add(new String(b, UTF8));
+        return l;
+    }
+
+    /**
+     * Returns the bytes of each line the session has written, without their line endings
+     */
+    synchronized List<byte[]> sentBytes() {
+        return new ArrayList<byte[]>(written);
+    }
+
+    /**
+     * Forgets the lines the session has written so far
+     */
+    synchronized void clear() {
+        written.clear();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("write"))
+            wrote((ByteBuffer) args[0]);
+        else if (name.equals("isConnected"))
+            return Boolean.TRUE;
+        else if (name.equals("hashCode"))
+            return System.identityHashCode(proxy);
+        else if (name.equals("equals"))
+            return proxy == args[0];
+        else if (name.equals("toString"))
+            return "TestConnection(" + session.getNick() + ")";
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class)
+            return Boolean.FALSE;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        if (type == double.class)
+            return 0D;
+        if (type == float.class)
+            return 0F;
+        return null;
+    }
+
+    /**
+     * Splits a write into its lines, as a write may gather several of them
+     */
+    private synchronized void wrote(ByteBuffer buf) {
+        java.nio.ByteBuffer b = buf.buf().duplicate();
+        byte[] data = new byte[b.remaining()];
+        b.get(data);
+        int start = 0;
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                written.add(Arrays.copyOfRange(data, start, i));
+                start = i + 2;
+                i++;
+            }
+        }
+        if (start < data.length)
+            written.add(Arrays.copyOfRange(data, start, data.length));
+    }
+}
@@ -0,0 +1,84 @@
+package net.newbiehacker.commodorej;
+
+import net.newbiehacker.commodorej.event.ErrorHandler;
+import net.newbiehacker.commodorej.event.IRCEvent;
+import net.newbiehacker.commodorej.event.IRCEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the events and errors it is told of, so that a test can wait for them to arrive
+ *
+ * @author newbiehacker
+ */
+class TestListener implements IRCEventListener, ErrorHandler {
+    private static final long TIMEOUT = 10000;
+    private final List<IRCEvent> events = new ArrayList<IRCEvent>();
+    private final List<Throwable> errors = new ArrayList<Throwable>();
+
+    public synchronized void onIRCEvent(IRCEvent e) {
+        events.add(e);
+        notifyAll();
+    }
+
+    public synchronized void onError(Throwable t) {
+        errors.add(t);
+        notifyAll();
+    }
+
+    /**
+     * Returns the events we have been told of so far
+     */
+    synchronized List<IRCEvent> events() {
+        return new ArrayList<IRCEvent>(events);
+    }
+
+    /**
+     * Returns the events of the specified type we have been told of so far
+     */
+    synchronized List<IRCEvent> events(IRCEvent.Type type) {
+        List<IRCEvent> l = new ArrayList<IRCEvent>();
+        for (IRCEvent e : events)
+            if (e.getType() == type)
+                l.add(e);
+        return l;
+    }
+
+    synchronized List<Throwable> errors() {
+        return new ArrayList<Throwable>(errors);
+    }
+
+    /**
+     * Waits until we have been told of at least the specified number of events of a type, returning them
+     *
+     * @throws AssertionError if they don't arrive within ten seconds
+     */
+    synchronized List<IRCEvent> await(IRCEvent.Type type, int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        List<IRCEvent> l;
+        while ((l = events(type)).size() < count) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0)
+                throw new AssertionError("Only " + l.size() + " of " + count + " " + type + " events arrived");
+            wait(left);
+        }
+        return l;
+    }
+
+    /**
+     * Waits until we have been told of at least the specified number of errors, returning them
+     *
+     * @throws AssertionError if they don't arrive within ten seconds
+     */
+    synchronized List<Throwable> awaitErrors(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (errors.size() < count) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0)
+                throw new AssertionError("Only " + errors.size() + " of " + count + " errors arrived");
+            wait(left);
+        }
+        return errors();
+    }
+}
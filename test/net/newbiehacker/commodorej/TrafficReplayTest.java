@@ -0,0 +1,206 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests recording a session's traffic and playing it back into a new session
+ *
+ * @author newbiehacker
+ */
+public class TrafficReplayTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ConnectionManager cm;
+    private TestListener errors;
+    private File file, replayed;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        errors = new TestListener();
+        cm.registerErrorHandler(errors);
+        file = folder.newFile("bot.rec");
+        replayed = folder.newFile("replayed.rec");
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    /**
+     * Creates a session which records to our file and has registered
+     */
+    private TestConnection record(TrafficRecorder recorder) throws Exception {
+        TestConnection c = new TestConnection(cm, "bot");
+        c.session.setRecorder(recorder);
+        return c.welcome();
+    }
+
+    /**
+     * Plays our file back into a session which records to another, mapping the file the specified number of bytes at a time
+     */
+    private Session replay(int window) throws Exception {
+        TrafficReplay replay = new TrafficReplay(cm, file, window);
+        TrafficRecorder recorder = new TrafficRecorder(replayed);
+        replay.getSession().setRecorder(recorder);
+        replay.run();
+        recorder.close();
+        assertTrue(errors.errors().toString(), errors.errors().isEmpty());
+        return replay.getSession();
+    }
+
+    /**
+     * Returns the lines in the specified recording, each marked with the way it went
+     */
+    private static List<String> records(File f) throws IOException {
+        List<String> l = new ArrayList<String>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            assertEquals(TrafficRecorder.MAGIC, in.readInt());
+            in.skipBytes(TrafficRecorder.HEADER - 4);
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt() - 1;
+                } catch (EOFException e) {
+                    break;
+                }
+                if (len < 0)
+                    break;
+                in.readLong();
+                byte direction = in.readByte();
+                byte[] b = new byte[len];
+                in.readFully(b);
+                String line = new String(b, "UTF-8");
+                if (direction == TrafficRecorder.IN)
+                    l.add("<<< " + line);
+                else if (direction == TrafficRecorder.OUT)
+                    l.add(">>> " + line);
+            }
+        } finally {
+            in.close();
+        }
+        return l;
+    }
+
+    private static List<String> nicks(Session s) {
+        List<String> l = new ArrayList<String>();
+        for (User u : s.getUsers())
+            l.add(u.getNick() + "!" + u.getName() + "@" + u.getHost());
+        Collections.sort(l);
+        return l;
+    }
+
+    @Test
+    public void replaysRebuildTheSession() throws Exception {
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        TestConnection c = record(recorder);
+        c.receive(":bot!login@host JOIN #chan",
+                ":irc.example.net 353 bot = #chan :@bot @alice!a@alice.example.com +bob!b@bob.example.com carol!c@carol.example.com",
+                ":irc.example.net 366 bot #chan :End of /NAMES list.",
+                ":bot!login@host JOIN #other",
+                ":irc.example.net 353 bot = #other :bot alice!a@alice.example.com dave!d@dave.example.com",
+                ":irc.example.net 366 bot #other :End of /NAMES list.",
+                ":alice!a@alice.example.com PRIVMSG #chan :hello",
+                ":carol!c@carol.example.com NICK caroline",
+                ":dave!d@dave.example.com QUIT :bye",
+                ":alice!a@alice.example.com MODE #chan +v caroline",
+                ":irc.example.net PING :irc.example.net");
+        c.session.sendMessage("#chan", "hello alice");
+        recorder.close();
+        assertTrue(recorder.getRecords() > 0);
+        assertEquals(recorder.getSize(), file.length());
+
+        Session s = replay(64 * 1024 * 1024);
+        assertEquals(nicks(c.session), nicks(s));
+        assertEquals(2, s.getChannels().size());
+        for (Channel original : c.session.getChannels()) {
+            Channel chan = s.getChannel(original.getName());
+            assertEquals(original.getUserCount(), chan.getUserCount());
+            for (User u : original.getUsers())
+                assertEquals(u.getNick(), original.getUserModes(u), chan.getUserModes(s.getUser(u.getNick())));
+        }
+        assertEquals("+", s.getChannel("#chan").getUserModes(s.getUser("caroline")));
+        // The replayed session received and sent the same lines as the one recorded, apart from what we sent ourselves
+        List<String> lines = records(file);
+        assertTrue(lines.remove(">>> PRIVMSG #chan :hello alice"));
+        assertTrue(lines.contains(">>> PONG :irc.example.net"));
+        assertEquals(lines, records(replayed));
+    }
+
+    @Test
+    public void recordingsLongerThanASegmentReplayIntact() throws Exception {
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        TestConnection c = record(recorder);
+        c.receive(":bot!login@host JOIN #chan");
+        // Enough to fill more than one 8MB segment, with lines of differing lengths so records land across the segment's end
+        String[] read = new String[100];
+        StringBuilder padding = new StringBuilder();
+        for (int n = 0; recorder.getSize() < 20 * 1024 * 1024; n++) {
+            for (int i = 0; i < read.length; i++) {
+                padding.setLength((n * read.length + i) % 251);
+                read[i] = ":user" + i + "!login@host PRIVMSG #chan :" + (n * read.length + i) + " " + padding.toString().replace('\0', 'x');
+            }
+            c.receive(read);
+        }
+        recorder.close();
+        replay(64 * 1024 * 1024);
+        List<String> lines = records(file);
+        assertTrue(lines.size() > 100000);
+        assertEquals(lines, records(replayed));
+    }
+
+    @Test
+    public void unclosedRecordingsEndAtTheFirstEmptyRecord() throws Exception {
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        try {
+            TestConnection c = record(recorder);
+            c.receive(":bot!login@host JOIN #chan", ":alice!a@alice.example.com PRIVMSG #chan :hello");
+            // As though the process had died here: the rest of the segment is still there, and empty
+            assertTrue(file.length() > recorder.getSize());
+            Session s = replay(64 * 1024 * 1024);
+            assertNotNull(s.getChannel("#chan"));
+            assertEquals(records(file), records(replayed));
+            assertNotNull(s.getUser("alice"));
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void recordsAcrossTheEndOfTheWindowAreRead() throws Exception {
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        TestConnection c = record(recorder);
+        c.receive(":bot!login@host JOIN #chan");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.setLength(0);
+            for (int j = 0; j < i % 300; j++)
+                sb.append((char) ('a' + j % 26));
+            c.receive(":user" + i % 10 + "!login@host PRIVMSG #chan :" + i + " " + sb);
+        }
+        recorder.close();
+        // A window not much bigger than the longest line, so that records keep landing across its end
+        replay(1000);
+        List<String> lines = records(file);
+        assertEquals(lines, records(replayed));
+        assertTrue(lines.contains("<<< :user9!login@host PRIVMSG #chan :1999 " + sb));
+    }
+}
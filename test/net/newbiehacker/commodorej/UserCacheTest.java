@@ -0,0 +1,154 @@
+package net.newbiehacker.commodorej;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests which users a session forgets, and the user-cache's statistics
+ *
+ * @author newbiehacker
+ */
+public class UserCacheTest {
+    private ConnectionManager cm;
+    private TestConnection c;
+    private Session s;
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new ConnectionManager(1024, 1);
+        c = new TestConnection(cm, "bot").welcome();
+        s = c.session;
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    private void message(String nick) throws Exception {
+        c.receive(":" + nick + "!login@host PRIVMSG bot :hi");
+    }
+
+    @Test
+    public void quittingUsersAreForgotten() throws Exception {
+        message("alice");
+        assertTrue(s.containsUser("ALICE"));
+        c.receive(":alice!login@host QUIT :bye");
+        assertFalse(s.containsUser("alice"));
+    }
+
+    @Test
+    public void theLeastRecentlySeenUsersAreForgottenWhenFull() throws Exception {
+        s.setUserIdleTime(0);
+        s.setUserCacheSize(100);
+        for (int i = 0; i < 300; i++)
+            message("user" + i);
+        assertTrue(s.getUsers().size() <= 100);
+        assertTrue(s.getUserCacheEvictions() >= 200);
+        // The user we just heard from is the last one we'd forget
+        assertTrue(s.containsUser("user299"));
+    }
+
+    @Test
+    public void usersOnOurChannelsAreNeverForgotten() throws Exception {
+        s.setUserIdleTime(0);
+        s.setUserCacheSize(10);
+        c.receive(":bot!login@host JOIN #chan");
+        StringBuilder names = new StringBuilder(":irc.example.net 353 bot = #chan :bot");
+        for (int i = 0; i < 50; i++)
+            names.append(" member").append(i);
+        c.receive(names.toString(), ":irc.example.net 366 bot #chan :End of /NAMES list.");
+        for (int i = 0; i < 50; i++)
+            message("stranger" + i);
+        for (int i = 0; i < 50; i++)
+            assertTrue(s.containsUser("member" + i));
+        assertTrue(s.containsUser("bot"));
+        assertTrue(s.getUserCacheEvictions() >= 40);
+
+        // Once they have left the channel they may go, although we don't look for them again until more users have come along
+        c.receive(":bot!login@host PART #chan");
+        for (int i = 50; i < 80; i++)
+            message("stranger" + i);
+        assertFalse(s.containsUser("member0"));
+        assertTrue(s.getUsers().size() <= 10);
+    }
+
+    @Test
+    public void idleUsersAreForgotten() throws Exception {
+        s.setUserIdleTime(50);
+        c.receive(":bot!login@host JOIN #chan", ":member!login@host JOIN #chan");
+        message("stranger");
+        Thread.sleep(100);
+        message("other");
+        assertFalse(s.containsUser("stranger"));
+        assertTrue(s.containsUser("member"));
+        assertTrue(s.containsUser("other"));
+        assertEquals(1, s.getUserCacheEvictions());
+    }
+
+    @Test
+    public void lookupsCountAsHitsAndMisses() throws Exception {
+        long hits = s.getUserCacheHits(), misses = s.getUserCacheMisses();
+        message("alice");
+        assertEquals(misses + 1, s.getUserCacheMisses());
+        message("alice");
+        assertEquals(hits + 1, s.getUserCacheHits());
+        assertNotNull(s.getUser("alice"));
+        assertNull(s.getUser("bob"));
+        assertEquals(hits + 2, s.getUserCacheHits());
+        assertEquals(misses + 2, s.getUserCacheMisses());
+    }
+
+    @Test
+    public void theLibrarysOwnLookupsDontCount() throws Exception {
+        message("alice");
+        long hits = s.getUserCacheHits(), misses = s.getUserCacheMisses();
+        assertNotNull(s.findUser("alice"));
+        assertNull(s.findUser("bob"));
+        // Targets of messages and modes are looked up without counting
+        c.receive(":irc.example.net NOTICE alice :hello", ":irc.example.net NOTICE bob :hello");
+        assertEquals(hits, s.getUserCacheHits());
+        assertEquals(misses, s.getUserCacheMisses());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    @Test
+    public void aMillionJoinsAndQuitsLeaveNothingBehind() throws Exception {
+        // Users join and quit a thousand behind one another, so the channel always has a thousand members
+        final int window = 1000, lines = 1000000, perRead = 1000;
+        c.receive(":bot!login@host JOIN #chan");
+        String[] read = new String[perRead];
+        long before = 0;
+        int maxUsers = 0;
+        for (int n = 0, line = 0; line < lines; n++) {
+            for (int i = 0; i < perRead; i += 2, line += 2) {
+                int joining = n * perRead / 2 + i / 2;
+                read[i] = ":user" + joining + "!login@host JOIN #chan";
+                read[i + 1] = joining < window ? ":irc.example.net PING :" + joining : ":user" + (joining - window) + "!login@host QUIT :bye";
+            }
+            c.receive(read);
+            maxUsers = Math.max(maxUsers, s.users.size());
+            if (line == lines / 2)
+                before = usedHeap();
+        }
+        long after = usedHeap();
+        System.out.printf("%d lines: at most %d users known, %d at the end, used heap %.1fMB half way and %.1fMB at the end%n",
+                lines, maxUsers, s.users.size(), before / 1048576.0, after / 1048576.0);
+        assertTrue(maxUsers + " users", maxUsers <= window + 1);
+        assertEquals(window + 1, s.users.size());
+        assertEquals(window + 1, s.getChannel("#chan").getUserCount());
+        // The second half of the lines shouldn't have left anything on the heap that the first half hadn't
+        assertTrue((after - before) / 1048576 + "MB more heap", after - before < 16 * 1048576);
+    }
+}